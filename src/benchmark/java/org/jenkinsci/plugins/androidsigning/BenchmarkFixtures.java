@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
+import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.annotation.Nonnull;
+
+import hudson.util.Secret;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * The inputs the benchmarks share besides the {@link SyntheticApkCorpus}: the test key store.
+ */
+class BenchmarkFixtures {
+
+    /**
+     * The test key store as a credential, without the Jenkins instance a {@code CertificateCredentialsImpl} needs.
+     * Like {@code CertificateCredentialsImpl}, it loads the key store from its bytes on every {@link #getKeyStore()}.
+     */
+    static class KeyStoreResourceCredentials extends BaseStandardCredentials implements StandardCertificateCredentials {
+
+        private static final long serialVersionUID = 1;
+
+        private final byte[] keyStoreBytes;
+        private final String password;
+        private final transient Secret secret;
+
+        KeyStoreResourceCredentials(String resourceName, String password) throws IOException {
+            super(CredentialsScope.GLOBAL, resourceName, resourceName);
+            try (InputStream keyStoreIn = BenchmarkFixtures.class.getResourceAsStream(resourceName)) {
+                if (keyStoreIn == null) {
+                    throw new IOException("no key store resource " + resourceName);
+                }
+                keyStoreBytes = readAll(keyStoreIn);
+            }
+            this.password = password;
+            secret = mock(Secret.class);
+            when(secret.getPlainText()).thenReturn(password);
+        }
+
+        @Nonnull
+        @Override
+        public KeyStore getKeyStore() {
+            try {
+                KeyStore keyStore = KeyStore.getInstance("PKCS12");
+                keyStore.load(new ByteArrayInputStream(keyStoreBytes), password.toCharArray());
+                return keyStore;
+            }
+            catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Nonnull
+        @Override
+        public Secret getPassword() {
+            return secret;
+        }
+    }
+
+    static KeyStoreResourceCredentials testKeyStore() throws IOException {
+        return new KeyStoreResourceCredentials(TestKeyStore.KEY_STORE_RESOURCE, SignApksBuilderTest.class.getSimpleName());
+    }
+
+    static SigningComponents testSigningComponents() throws IOException, GeneralSecurityException {
+        return SigningComponents.fromCredentials(testKeyStore(), TestKeyStore.KEY_ALIAS);
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count = in.read(buffer); count > -1; count = in.read(buffer)) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.android.apksig.ApkSigner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.TaskListener;
+
+
+/**
+ * Signing throughput by APK size and entry count, through {@link SignApksBuilder.SignApkCallable} as the build
+ * step runs it on an agent, and through apksig directly with and without the v1 scheme.  The unsigned APKs come
+ * from the {@link SyntheticApkCorpus}, with a fifth of their regular entries stored and two native libraries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SignApkBenchmark {
+
+    @Param({ "1", "16", "64" })
+    public int apkSizeMb;
+
+    @Param({ "10", "1000" })
+    public int entryCount;
+
+    private File workDir;
+    private File unsignedApk;
+    private File signedApk;
+    private SigningComponents signing;
+    private List<X509Certificate> certs;
+    private SigningTrace trace;
+
+    @Setup(Level.Trial)
+    public void createApk() throws Exception {
+        workDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        unsignedApk = new SyntheticApkCorpus().get(new SyntheticApkCorpus.Spec(apkSizeMb * 1024L * 1024L, entryCount)
+            .storedFraction(0.2)
+            .nativeLibraries(2, "arm64-v8a", 4096));
+        signedApk = new File(workDir, "benchmark-signed.apk");
+        signing = BenchmarkFixtures.testSigningComponents();
+        certs = new ArrayList<>(signing.certChain.length);
+        for (Certificate cert : signing.certChain) {
+            certs.add((X509Certificate) cert);
+        }
+        trace = new SigningTrace(getClass().getSimpleName());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSignedApk() throws IOException {
+        BenchmarkFixtures.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public SignApksBuilder.SignApkCallable.Result signApkCallable() throws Exception {
+        SignApksBuilder.SignApkCallable signApk = new SignApksBuilder.SignApkCallable(signing.key, signing.certChain, signing.v1SigName,
+            signedApk.getAbsolutePath(), false, 0, trace.start("benchmark", null).context(), TaskListener.NULL);
+        return signApk.invoke(unsignedApk, null);
+    }
+
+    @Benchmark
+    public SignApksBuilder.SignApkCallable.Result signApkCallableWithMemoryLimit() throws Exception {
+        SignApksBuilder.SignApkCallable signApk = new SignApksBuilder.SignApkCallable(signing.key, signing.certChain, signing.v1SigName,
+            signedApk.getAbsolutePath(), false, 1024 * SigningMemoryLimit.MIB, trace.start("benchmark", null).context(), TaskListener.NULL);
+        return signApk.invoke(unsignedApk, null);
+    }
+
+    @Benchmark
+    public File apksigV1AndV2() throws Exception {
+        return signWithApksig(true);
+    }
+
+    @Benchmark
+    public File apksigV2Only() throws Exception {
+        return signWithApksig(false);
+    }
+
+    private File signWithApksig(boolean v1) throws Exception {
+        ApkSigner.SignerConfig signerConfig = new ApkSigner.SignerConfig.Builder(signing.v1SigName, signing.key, certs).build();
+        new ApkSigner.Builder(Collections.singletonList(signerConfig))
+            .setInputApk(unsignedApk)
+            .setOutputApk(signedApk)
+            .setV1SigningEnabled(v1)
+            .setV2SigningEnabled(true)
+            .build()
+            .sign();
+        return signedApk;
+    }
+}
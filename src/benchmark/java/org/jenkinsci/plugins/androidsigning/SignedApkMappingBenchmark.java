@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+
+
+/**
+ * Mapping unsigned APK names to signed APK paths, for a batch of APKs with the names Gradle builds give them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SignedApkMappingBenchmark {
+
+    private static final String[] NAMES = {
+        "app-release-unsigned.apk",
+        "app-chocolate-release-unsigned.apk",
+        "app-vanilla-release.apk",
+        "app-release-UNSIGNED.apk",
+        "appunsigned.apk",
+    };
+    private static final int APK_COUNT = 100;
+
+    private final SignedApkMappingStrategy siblingMapping = new SignedApkMappingStrategy.UnsignedApkSiblingMapping();
+    private final SignedApkMappingStrategy builderDirMapping = new SignedApkMappingStrategy.UnsignedApkBuilderDirMapping();
+    private FilePath workspace;
+    private FilePath[] unsignedApks;
+
+    @Setup
+    public void createPaths() {
+        workspace = new FilePath(new File("/benchmark/workspace"));
+        unsignedApks = new FilePath[APK_COUNT];
+        for (int i = 0; i < APK_COUNT; i++) {
+            unsignedApks[i] = workspace.child("module-" + i).child("build/outputs/apk").child(NAMES[i % NAMES.length]);
+        }
+    }
+
+    @Benchmark
+    public void siblingMapping(Blackhole signedApks) {
+        for (FilePath unsignedApk : unsignedApks) {
+            signedApks.consume(siblingMapping.destinationForUnsignedApk(unsignedApk, workspace));
+        }
+    }
+
+    @Benchmark
+    public void builderDirMapping(Blackhole signedApks) {
+        for (FilePath unsignedApk : unsignedApks) {
+            signedApks.consume(builderDirMapping.destinationForUnsignedApk(unsignedApk, workspace));
+        }
+    }
+}
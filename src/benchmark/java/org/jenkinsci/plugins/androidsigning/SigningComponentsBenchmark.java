@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decoding the signing key and certificate chain from a PKCS12 key store credential, which every signing step does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SigningComponentsBenchmark {
+
+    private BenchmarkFixtures.KeyStoreResourceCredentials credentials;
+
+    @Setup
+    public void loadCredentials() throws Exception {
+        credentials = BenchmarkFixtures.testKeyStore();
+    }
+
+    @Benchmark
+    public SigningComponents fromCredentials() throws Exception {
+        return SigningComponents.fromCredentials(credentials, TestKeyStore.KEY_ALIAS);
+    }
+
+    @Benchmark
+    public SigningComponents fromCredentialsWithoutAlias() throws Exception {
+        return SigningComponents.fromCredentials(credentials, null);
+    }
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+
+
+/**
+ * The glob scan {@link SignApksBuilder} makes of the workspace, over a workspace of Gradle-like modules with
+ * {@value #FILES_PER_MODULE} files each, one of them an unsigned APK.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WorkspaceScanBenchmark {
+
+    static final int FILES_PER_MODULE = 100;
+
+    @Param({ "10", "100" })
+    public int moduleCount;
+
+    @Param({ "**/*-unsigned.apk", "module-*/build/outputs/apk/*-unsigned.apk" })
+    public String glob;
+
+    private File workspaceDir;
+    private FilePath workspace;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws IOException {
+        workspaceDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        for (int module = 0; module < moduleCount; module++) {
+            File moduleDir = new File(workspaceDir, "module-" + module);
+            File apkDir = new File(moduleDir, "build/outputs/apk");
+            File classesDir = new File(moduleDir, "build/intermediates/classes");
+            if (!apkDir.mkdirs() || !classesDir.mkdirs()) {
+                throw new IOException("failed to create module " + moduleDir);
+            }
+            Files.createFile(new File(apkDir, "module-" + module + "-release-unsigned.apk").toPath());
+            for (int file = 1; file < FILES_PER_MODULE; file++) {
+                Files.createFile(new File(classesDir, "Class" + file + ".class").toPath());
+            }
+        }
+        workspace = new FilePath(workspaceDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException {
+        BenchmarkFixtures.deleteRecursively(workspaceDir);
+    }
+
+    @Benchmark
+    public FilePath[] scan() throws Exception {
+        return workspace.list(glob, SignApksBuilder.BUILDER_DIR + "/**");
+    }
+}
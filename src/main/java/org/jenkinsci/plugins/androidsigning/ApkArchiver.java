@@ -0,0 +1,323 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.ArtifactManager;
+import jenkins.model.StandardArtifactManager;
+import jenkins.util.BuildListenerAdapter;
+import jenkins.util.VirtualFile;
+
+
+/**
+ * Hands the APKs a {@link SignApksBuilder} produces to the build's {@link jenkins.model.ArtifactManager}.
+ * By default, the archiver collects all the APKs and archives them in one batch after the last APK is
+ * signed.  In immediate mode, the archiver archives the APKs of each unsigned input on a background
+ * thread as soon as the signing step finishes with them, so archiving overlaps with signing the
+ * following APKs.  With a bound on pending archive tasks, as {@link SignApksBuilder}'s overlapped stages use, the
+ * signing step waits for the oldest task to finish before it hands over another.
+ * <p>
+ * With an {@link ApkBlobStore}, the archiver stores APK bytes once per digest and links each build's
+ * artifacts to the stored blobs, skipping the transfer from the workspace entirely when the store already
+ * has the APK.  This only works with the {@link StandardArtifactManager}, which keeps artifacts in the
+ * build directory; with any other artifact manager, the archiver archives normally.
+ * <p>
+ * The archiver also archives the delta patches of signed APKs, as {@link ApkDeltaPatch} describes, right after it
+ * archives the APKs, so in immediate mode patches are made on the archive thread rather than holding up signing.
+ * It makes each patch in the controller from the archived APK and the same artifact of the previous successful
+ * build, so neither APK goes to the workspace node, and archives the patch only when it is smaller than the APK.
+ */
+class ApkArchiver {
+
+    private final Run<?, ?> run;
+    private final FilePath workspace;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final boolean immediate;
+    private final ApkBlobStore blobStore;
+    private final SigningTrace trace;
+    private final int maxPending;
+    private final Map<String, String> batch = new LinkedHashMap<>();
+    private final List<FilePath> batchRemovals = new ArrayList<>();
+    private final List<String> batchDeltaPatches = new ArrayList<>();
+    private final List<Future<Void>> pending = new ArrayList<>();
+    private final Map<String, String> knownSha256s = new ConcurrentHashMap<>();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private long blockedNanos;
+    private ExecutorService archiveThread;
+
+    ApkArchiver(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, boolean immediate, @CheckForNull ApkBlobStore blobStore,
+        SigningTrace trace) {
+        this(run, workspace, launcher, listener, immediate, blobStore, trace, 0);
+    }
+
+    /**
+     * @param maxPending the number of immediate archive tasks that may be pending before {@link #archive} waits
+     * for the oldest, or 0 for no bound
+     */
+    ApkArchiver(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, boolean immediate, @CheckForNull ApkBlobStore blobStore,
+        SigningTrace trace, int maxPending) {
+        this.run = run;
+        this.workspace = workspace;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.immediate = immediate;
+        this.blobStore = blobStore;
+        this.trace = trace;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Remember the SHA-256 digest of a workspace file, so deduplicating it does not have to read the file again.
+     * @param workspacePath the workspace-relative path of the file
+     */
+    void knownSha256(String workspacePath, String sha256) {
+        knownSha256s.put(workspacePath, sha256);
+    }
+
+    /**
+     * Archive the given artifacts, then delete the given workspace files.
+     * @param artifacts map of archive paths to workspace-relative paths, as {@link jenkins.model.ArtifactManager#archive} expects
+     * @param removeAfterArchive workspace files to delete once they are safely in the archive
+     * @param traceParent the span to trace immediate archiving under
+     */
+    void archive(Map<String, String> artifacts, List<FilePath> removeAfterArchive, SigningTrace.Span traceParent) throws IOException, InterruptedException {
+        archive(artifacts, removeAfterArchive, Collections.emptyList(), traceParent);
+    }
+
+    /**
+     * Archive the given artifacts, then delete the given workspace files, and archive delta patches for the given
+     * signed APKs.
+     * @param deltaPatches archive paths of signed APKs among the artifacts to archive a delta patch of, from the
+     * previous successful build's artifact at the same path, with the patch extension
+     */
+    void archive(Map<String, String> artifacts, List<FilePath> removeAfterArchive, Collection<String> deltaPatches, SigningTrace.Span traceParent)
+        throws IOException, InterruptedException {
+        if (artifacts.isEmpty()) {
+            return;
+        }
+        if (!immediate) {
+            batch.putAll(artifacts);
+            batchRemovals.addAll(removeAfterArchive);
+            batchDeltaPatches.addAll(deltaPatches);
+            return;
+        }
+        checkPending(false);
+        if (maxPending > 0 && pending.size() >= maxPending) {
+            long waitStart = System.nanoTime();
+            while (pending.size() >= maxPending) {
+                waitFor(pending.remove(0));
+            }
+            blockedNanos += System.nanoTime() - waitStart;
+        }
+        if (archiveThread == null) {
+            archiveThread = Executors.newSingleThreadExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "SignApksBuilder archiver for " + run.getFullDisplayName()));
+        }
+        Map<String, String> apkArtifacts = new LinkedHashMap<>(artifacts);
+        List<FilePath> apkRemovals = new ArrayList<>(removeAfterArchive);
+        List<String> apkDeltaPatches = new ArrayList<>(deltaPatches);
+        RemoteCallAccounting remoteCalls = RemoteCallAccounting.current();
+        pending.add(archiveThread.submit(() -> {
+            if (remoteCalls != null) {
+                remoteCalls.attach();
+            }
+            try {
+                archiveNow(apkArtifacts, apkRemovals, apkDeltaPatches, traceParent);
+            }
+            finally {
+                RemoteCallAccounting.detach();
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Archive the remaining batch, or wait for all the immediate archive tasks to complete.
+     * @param traceParent the span to trace batch archiving under
+     */
+    void finish(SigningTrace.Span traceParent) throws IOException, InterruptedException {
+        if (!batch.isEmpty()) {
+            archiveNow(batch, batchRemovals, batchDeltaPatches, traceParent);
+            batch.clear();
+            batchRemovals.clear();
+            batchDeltaPatches.clear();
+        }
+        checkPending(true);
+    }
+
+    /**
+     * Stop the archive thread, if any.  Call this in a {@code finally} block after {@link #finish()}.
+     */
+    void close() {
+        if (archiveThread != null) {
+            archiveThread.shutdownNow();
+            archiveThread = null;
+        }
+    }
+
+    /**
+     * @return how long the archiver spent archiving
+     */
+    long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    /**
+     * @return how long {@link #archive} waited for pending archive tasks
+     */
+    long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    private void archiveNow(Map<String, String> artifacts, List<FilePath> removeAfterArchive, List<String> deltaPatches, SigningTrace.Span traceParent)
+        throws IOException, InterruptedException {
+        long archiveStart = System.nanoTime();
+        SigningMetrics.Timing archiveTiming = SigningMetrics.get().start(SigningMetrics.Stage.ARCHIVE, trace, traceParent);
+        archiveTiming.span().attribute("artifacts", artifacts.size());
+        ArtifactManager artifactManager = run.pickArtifactManager();
+        if (blobStore != null && artifactManager instanceof StandardArtifactManager) {
+            archiveDeduplicated(artifacts);
+        }
+        else {
+            if (blobStore != null) {
+                listener.getLogger().printf("[SignApksBuilder] artifact manager %s does not support deduplicated APKs; archiving normally%n",
+                    artifactManager.getClass().getName());
+            }
+            artifactManager.archive(workspace, launcher, BuildListenerAdapter.wrap(listener), artifacts);
+        }
+        archiveTiming.stop();
+        for (FilePath archived : removeAfterArchive) {
+            listener.getLogger().printf("[SignApksBuilder] removing archived APK %s from workspace%n", archived.getRemote());
+            archived.delete();
+        }
+        for (String signedArchivePath : deltaPatches) {
+            archiveDeltaPatch(signedArchivePath, traceParent);
+        }
+        busyNanos.addAndGet(System.nanoTime() - archiveStart);
+    }
+
+    private void archiveDeltaPatch(String signedArchivePath, SigningTrace.Span traceParent) throws IOException, InterruptedException {
+        Run<?, ?> previous = run.getPreviousSuccessfulBuild();
+        if (previous == null) {
+            listener.getLogger().printf("[SignApksBuilder] no previous successful build; skipping delta patch for %s%n", signedArchivePath);
+            return;
+        }
+        VirtualFile previousApk = previous.getArtifactManager().root().child(signedArchivePath);
+        if (!previousApk.isFile()) {
+            listener.getLogger().printf("[SignApksBuilder] %s did not archive %s; skipping delta patch%n", previous.getFullDisplayName(), signedArchivePath);
+            return;
+        }
+
+        SigningTrace.Span deltaSpan = trace.start("delta", traceParent).attribute("apk", signedArchivePath);
+        File deltaDir = Util.createTempDir();
+        try {
+            File baseApk = localArtifact(previous, signedArchivePath, new File(deltaDir, "base.apk"));
+            File signedApk = localArtifact(run, signedArchivePath, new File(deltaDir, "signed.apk"));
+            String patchName = signedArchivePath.substring(signedArchivePath.lastIndexOf('/') + 1) + ApkDeltaPatch.FILE_EXTENSION;
+            ApkDeltaPatch.Stats stats = ApkDeltaPatch.create(baseApk, signedApk, new File(deltaDir, patchName));
+            deltaSpan.attribute("bytes", stats.patchSize);
+            if (stats.patchSize >= stats.targetSize) {
+                listener.getLogger().printf("[SignApksBuilder] delta patch for %s from %s is %,d bytes, no smaller than the %,d byte APK; not archiving it%n",
+                    signedArchivePath, previous.getFullDisplayName(), stats.patchSize, stats.targetSize);
+                return;
+            }
+            listener.getLogger().printf("[SignApksBuilder] delta patch for %s from %s is %,d bytes (%d%% of %,d bytes); %,d bytes reused from the previous APK%n",
+                signedArchivePath, previous.getFullDisplayName(), stats.patchSize, stats.patchSize * 100 / Math.max(1, stats.targetSize), stats.targetSize, stats.copiedBytes);
+            run.pickArtifactManager().archive(new FilePath(deltaDir), new Launcher.LocalLauncher(listener), BuildListenerAdapter.wrap(listener),
+                Collections.singletonMap(signedArchivePath + ApkDeltaPatch.FILE_EXTENSION, patchName));
+        }
+        finally {
+            SignApksBuilder.deleteQuietly(new FilePath(deltaDir), listener);
+            deltaSpan.end();
+        }
+    }
+
+    /**
+     * @return the file of the given artifact of the given build, read in place from the build directory, or else
+     * copied to the given file
+     */
+    private static File localArtifact(Run<?, ?> build, String archivePath, File copy) throws IOException {
+        if (build.getArtifactManager() instanceof StandardArtifactManager) {
+            return new File(build.getArtifactsDir(), archivePath);
+        }
+        try (InputStream artifact = build.getArtifactManager().root().child(archivePath).open()) {
+            Files.copy(artifact, copy.toPath());
+        }
+        return copy;
+    }
+
+    private void archiveDeduplicated(Map<String, String> artifacts) throws IOException, InterruptedException {
+        File artifactsDir = run.getArtifactsDir();
+        for (Map.Entry<String, String> artifact : artifacts.entrySet()) {
+            FilePath source = workspace.child(artifact.getValue());
+            String sha256 = knownSha256s.get(artifact.getValue());
+            if (sha256 == null) {
+                sha256 = source.act(new DigestFileCallable(DigestFileCallable.SHA_256));
+                RemoteCallAccounting.recordReceived(source, sha256);
+            }
+            if (blobStore.store(source, sha256)) {
+                listener.getLogger().printf("[SignApksBuilder] stored new APK blob %s for %s%n", sha256, artifact.getValue());
+            }
+            else {
+                listener.getLogger().printf("[SignApksBuilder] APK blob %s already stored; skipping transfer of %s%n", sha256, artifact.getValue());
+            }
+            blobStore.link(sha256, new File(artifactsDir, artifact.getKey()));
+        }
+    }
+
+    private void checkPending(boolean wait) throws IOException, InterruptedException {
+        Iterator<Future<Void>> cursor = pending.iterator();
+        while (cursor.hasNext()) {
+            Future<Void> task = cursor.next();
+            if (!wait && !task.isDone()) {
+                continue;
+            }
+            waitFor(task);
+            cursor.remove();
+        }
+    }
+
+    private static void waitFor(Future<Void> task) throws IOException, InterruptedException {
+        try {
+            task.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("error archiving APKs", cause);
+        }
+    }
+}
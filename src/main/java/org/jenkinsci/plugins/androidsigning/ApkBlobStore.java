@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+
+/**
+ * A content-addressed store of archived APK bytes on the Jenkins master.  Each blob is named for the SHA-256
+ * digest of its content, and builds link to the blobs from their artifact directories, so byte-identical APKs
+ * from many builds occupy the disk only once.  Links are hard links where the file system supports them;
+ * otherwise the store falls back to copying the blob into the build's artifact directory.
+ * <p>
+ * Digests come from the agents, so the store takes only lower-case hex SHA-256 digests as blob names, and checks
+ * the digest of each blob it receives on the master before the blob enters the store.
+ */
+class ApkBlobStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ApkBlobStore.class.getName());
+
+    static final String STORE_DIR_NAME = "android-signing-blobs";
+
+    private static final Pattern SHA_256_PATTERN = Pattern.compile("^[0-9a-f]{64}$");
+
+    static ApkBlobStore forJenkins() {
+        return new ApkBlobStore(new File(Jenkins.getActiveInstance().getRootDir(), STORE_DIR_NAME));
+    }
+
+    private final File root;
+
+    ApkBlobStore(@Nonnull File root) {
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the digest is not a lower-case hex SHA-256 digest
+     */
+    File blobFor(String sha256) {
+        if (sha256 == null || !SHA_256_PATTERN.matcher(sha256).matches()) {
+            throw new IllegalArgumentException("not a SHA-256 digest: " + sha256);
+        }
+        return new File(new File(root, sha256.substring(0, 2)), sha256 + ".apk");
+    }
+
+    boolean contains(String sha256) {
+        return blobFor(sha256).isFile();
+    }
+
+    /**
+     * Copy the given file into the store unless the store already has a blob with the given digest.
+     * @return true if the file was transferred, false if the store already had the blob
+     * @throws IOException if the digest of the transferred file is not the given digest
+     */
+    boolean store(FilePath source, String sha256) throws IOException, InterruptedException {
+        File blob = blobFor(sha256);
+        if (blob.isFile()) {
+            // refresh the blob so the cleanup does not remove it before this build links it
+            blob.setLastModified(System.currentTimeMillis());
+            return false;
+        }
+        File blobDir = blob.getParentFile();
+        if (!blobDir.isDirectory() && !blobDir.mkdirs() && !blobDir.isDirectory()) {
+            throw new IOException("failed to create APK blob store directory " + blobDir);
+        }
+        File incoming = File.createTempFile(sha256 + "-", ".incoming", blobDir);
+        try {
+            source.copyTo(new FilePath(incoming));
+            String incomingSha256 = new DigestFileCallable(DigestFileCallable.SHA_256).invoke(incoming, null);
+            if (!incomingSha256.equals(sha256)) {
+                throw new IOException(String.format("APK %s has SHA-256 %s, not %s as reported; not storing it", source.getRemote(), incomingSha256, sha256));
+            }
+            // concurrent builds storing the same blob write identical bytes, so the last move wins harmlessly
+            Files.move(incoming.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            blob.setLastModified(System.currentTimeMillis());
+        }
+        finally {
+            Files.deleteIfExists(incoming.toPath());
+        }
+        return true;
+    }
+
+    /**
+     * Make the blob with the given digest appear at the given path, replacing any existing file there.
+     */
+    void link(String sha256, File target) throws IOException {
+        Path blob = blobFor(sha256).toPath();
+        File targetDir = target.getParentFile();
+        if (!targetDir.isDirectory() && !targetDir.mkdirs() && !targetDir.isDirectory()) {
+            throw new IOException("failed to create artifact directory " + targetDir);
+        }
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), blob);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.FINE, "failed to link APK blob " + blob + " to " + target + "; copying instead", e);
+            Files.copy(blob, target.toPath());
+        }
+    }
+
+    /**
+     * Delete blobs that no build links to any more, i.e., whose only remaining link is the store's own.
+     * This only works on file systems that report link counts; on others, the store keeps every blob.
+     * @param minAgeMillis only delete blobs at least this old, to avoid racing with a build that is linking a new blob
+     * @return the number of blobs deleted
+     */
+    int removeUnreferenced(long minAgeMillis) throws IOException {
+        File[] blobDirs = root.listFiles(File::isDirectory);
+        if (blobDirs == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        int removed = 0;
+        for (File blobDir : blobDirs) {
+            File[] blobs = blobDir.listFiles((dir, name) -> name.endsWith(".apk"));
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                if (blob.lastModified() > cutoff) {
+                    continue;
+                }
+                Number linkCount;
+                try {
+                    linkCount = (Number) Files.getAttribute(blob.toPath(), "unix:nlink");
+                }
+                catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    LOGGER.fine("file system does not report link counts; keeping all APK blobs in " + root);
+                    return removed;
+                }
+                if (linkCount.intValue() <= 1 && blob.delete()) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    @Extension
+    public static class UnreferencedBlobCleanup extends AsyncPeriodicWork {
+
+        public UnreferencedBlobCleanup() {
+            super("Android signing APK blob cleanup");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return DAY;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            int removed = forJenkins().removeUnreferenced(TimeUnit.HOURS.toMillis(1));
+            listener.getLogger().printf("removed %d unreferenced APK blobs%n", removed);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * A file-by-file binary patch that rebuilds a target APK byte-for-byte from a base APK.  The patch copies
+ * the data of every ZIP entry the target shares unchanged with the base from the base, and carries all
+ * other bytes of the target literally: local headers, changed and new entries, the APK signing block, and
+ * the central directory.  Because consecutive builds of an app usually differ in only a few entries, the
+ * patch is typically a small fraction of the signed APK.
+ * <p>
+ * The patch is a gzip stream of the following, with numbers big-endian as {@link DataOutputStream} writes them:
+ * <pre>
+ *   "APKDELTA" magic, int format version 1
+ *   long target size, 32-byte target SHA-256, 32-byte base SHA-256
+ *   operations, each a one-byte opcode followed by its operands:
+ *     1 COPY: long base offset, long length
+ *     2 DATA: int length, then the literal bytes
+ *     0 END
+ * </pre>
+ * Applying the patch verifies the SHA-256 of both the base and the result.  Clients apply archived patches with
+ * {@link #main(String[])}, which needs nothing but the plugin's jar and a Java 8 runtime.
+ */
+public class ApkDeltaPatch {
+
+    static final String FILE_EXTENSION = ".delta";
+
+    private static final byte[] MAGIC = "APKDELTA".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_DATA = 2;
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** copying an entry this small from the base costs more patch bytes than the entry itself */
+    private static final long MIN_COPY_SIZE = 32;
+
+    static class Stats {
+        final long targetSize;
+        final long patchSize;
+        final long copiedBytes;
+        final long literalBytes;
+
+        Stats(long targetSize, long patchSize, long copiedBytes, long literalBytes) {
+            this.targetSize = targetSize;
+            this.patchSize = patchSize;
+            this.copiedBytes = copiedBytes;
+            this.literalBytes = literalBytes;
+        }
+    }
+
+    static Stats create(File base, File target, File patch) throws IOException {
+        ApkZipLayout baseLayout = ApkZipLayout.read(base);
+        ApkZipLayout targetLayout = ApkZipLayout.read(target);
+        Map<String, ApkZipLayout.Entry> baseEntries = baseLayout.getEntriesByName();
+        byte[] baseSha256 = sha256(base);
+
+        long copied = 0, literal = 0;
+        try (FileChannel baseIn = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+             FileChannel targetIn = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(patch), CHUNK_SIZE)))) {
+
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(targetLayout.fileSize);
+            out.write(sha256(target));
+            out.write(baseSha256);
+
+            long cursor = 0;
+            for (ApkZipLayout.Entry entry : targetLayout.getEntriesByOffset()) {
+                ApkZipLayout.Entry baseEntry = baseEntries.get(entry.name);
+                if (baseEntry == null || entry.compressedSize < MIN_COPY_SIZE || entry.dataOffset < cursor ||
+                    baseEntry.method != entry.method || baseEntry.crc != entry.crc || baseEntry.compressedSize != entry.compressedSize ||
+                    !rangesEqual(baseIn, baseEntry.dataOffset, targetIn, entry.dataOffset, entry.compressedSize)) {
+                    continue;
+                }
+                literal += writeData(targetIn, cursor, entry.dataOffset - cursor, out);
+                out.writeByte(OP_COPY);
+                out.writeLong(baseEntry.dataOffset);
+                out.writeLong(entry.compressedSize);
+                copied += entry.compressedSize;
+                cursor = entry.dataEnd();
+            }
+            literal += writeData(targetIn, cursor, targetLayout.fileSize - cursor, out);
+            out.writeByte(OP_END);
+        }
+
+        return new Stats(targetLayout.fileSize, patch.length(), copied, literal);
+    }
+
+    static void apply(File base, File patch, File target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(patch), CHUNK_SIZE)));
+             FileChannel baseIn = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(patch + " is not an APK delta patch");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(patch + " has unsupported APK delta patch version " + version);
+            }
+            long targetSize = in.readLong();
+            byte[] targetSha256 = new byte[32];
+            byte[] baseSha256 = new byte[32];
+            in.readFully(targetSha256);
+            in.readFully(baseSha256);
+            if (!Arrays.equals(baseSha256, sha256(base))) {
+                throw new IOException(base + " is not the base APK of delta patch " + patch);
+            }
+
+            MessageDigest targetDigest = newSha256();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(target), CHUNK_SIZE), targetDigest)) {
+                byte op;
+                while ((op = in.readByte()) != OP_END) {
+                    if (op == OP_COPY) {
+                        long offset = in.readLong();
+                        long length = in.readLong();
+                        ByteBuffer buf = ByteBuffer.wrap(chunk);
+                        while (length > 0) {
+                            buf.clear();
+                            buf.limit((int) Math.min(chunk.length, length));
+                            int count = baseIn.read(buf, offset);
+                            if (count < 0) {
+                                throw new IOException("delta patch " + patch + " copies past the end of base APK " + base);
+                            }
+                            out.write(chunk, 0, count);
+                            offset += count;
+                            length -= count;
+                        }
+                    }
+                    else if (op == OP_DATA) {
+                        int length = in.readInt();
+                        while (length > 0) {
+                            int count = in.read(chunk, 0, Math.min(chunk.length, length));
+                            if (count < 0) {
+                                throw new IOException("unexpected end of delta patch " + patch);
+                            }
+                            out.write(chunk, 0, count);
+                            length -= count;
+                        }
+                    }
+                    else {
+                        throw new IOException("delta patch " + patch + " has unknown operation " + op);
+                    }
+                }
+            }
+            if (target.length() != targetSize || !Arrays.equals(targetDigest.digest(), targetSha256)) {
+                throw new IOException("applying delta patch " + patch + " to " + base + " did not produce the expected APK");
+            }
+        }
+    }
+
+    /**
+     * Apply a delta patch from the command line:
+     * {@code java -cp android-signing.jar org.jenkinsci.plugins.androidsigning.ApkDeltaPatch <base APK> <delta patch> <output APK>}
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("usage: java -cp android-signing.jar " + ApkDeltaPatch.class.getName() + " <base APK> <delta patch> <output APK>");
+            System.exit(2);
+        }
+        File target = new File(args[2]);
+        try {
+            apply(new File(args[0]), new File(args[1]), target);
+        }
+        catch (IOException e) {
+            System.err.println("error applying delta patch: " + e.getMessage());
+            if (target.exists() && !target.delete()) {
+                System.err.println("failed to delete " + target);
+            }
+            System.exit(1);
+        }
+    }
+
+    private static long writeData(FileChannel in, long offset, long length, DataOutputStream out) throws IOException {
+        long written = 0;
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        while (written < length) {
+            buf.clear();
+            buf.limit((int) Math.min(CHUNK_SIZE, length - written));
+            int count = in.read(buf, offset + written);
+            if (count < 0) {
+                throw new IOException("unexpected end of file at offset " + (offset + written));
+            }
+            out.writeByte(OP_DATA);
+            out.writeInt(count);
+            out.write(buf.array(), 0, count);
+            written += count;
+        }
+        return written;
+    }
+
+    private static boolean rangesEqual(FileChannel a, long aOffset, FileChannel b, long bOffset, long length) throws IOException {
+        ByteBuffer aBuf = ByteBuffer.allocate(CHUNK_SIZE);
+        ByteBuffer bBuf = ByteBuffer.allocate(CHUNK_SIZE);
+        long compared = 0;
+        while (compared < length) {
+            int size = (int) Math.min(CHUNK_SIZE, length - compared);
+            aBuf.clear();
+            aBuf.limit(size);
+            bBuf.clear();
+            bBuf.limit(size);
+            while (aBuf.hasRemaining() && a.read(aBuf, aOffset + compared + aBuf.position()) > -1);
+            while (bBuf.hasRemaining() && b.read(bBuf, bOffset + compared + bBuf.position()) > -1);
+            if (aBuf.hasRemaining() || bBuf.hasRemaining()) {
+                return false;
+            }
+            aBuf.flip();
+            bBuf.flip();
+            if (!aBuf.equals(bBuf)) {
+                return false;
+            }
+            compared += size;
+        }
+        return true;
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] sha256(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        byte[] buf = new byte[CHUNK_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buf)) > -1) {
+                digest.update(buf, 0, count);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+
+/**
+ * Copies unsigned APKs from the workspace to the {@link SigningScratch scratch directory} of the node ahead of
+ * {@link SignApksBuilder}, so the signer's random reads of each APK hit local storage rather than a network mount.
+ * Each copy reads the APK start to end in large blocks, on a thread that copies the next APK while the current one
+ * is aligned and signed.  The APKs must be taken in the order the stager was given them.
+ */
+class ApkStager implements AutoCloseable {
+
+    static final int COPY_BUFFER_SIZE = 4 << 20;
+
+    /**
+     * Copy the file this is invoked on to the destination, replacing it, reading and writing it front to back in
+     * {@value #COPY_BUFFER_SIZE}-byte blocks.
+     */
+    static class CopySequentiallyCallable extends MasterToSlaveFileCallable<Long> {
+        private static final long serialVersionUID = 1;
+
+        private final String destination;
+
+        CopySequentiallyCallable(@Nonnull String destination) {
+            this.destination = destination;
+        }
+
+        @Override
+        public Long invoke(File source, VirtualChannel channel) throws IOException, InterruptedException {
+            long copied = 0;
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(new File(destination).toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                while (in.read(buf) >= 0) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("interrupted copying " + source.getAbsolutePath());
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        copied += out.write(buf);
+                    }
+                    buf.clear();
+                }
+            }
+            return copied;
+        }
+    }
+
+    private final List<FilePath> unsignedApks;
+    private final SigningScratch scratch;
+    private final TaskListener listener;
+    private final ExecutorService stageThread;
+    private final RemoteCallAccounting remoteCalls;
+    private final Map<String, Future<FilePath>> staging = new LinkedHashMap<>();
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private long waitNanos;
+    private int next;
+
+    ApkStager(@Nonnull List<FilePath> unsignedApks, @Nonnull SigningScratch scratch, @Nonnull String threadName, @Nonnull TaskListener listener) {
+        this.unsignedApks = new ArrayList<>(unsignedApks);
+        this.scratch = scratch;
+        this.listener = listener;
+        stageThread = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), threadName));
+        remoteCalls = RemoteCallAccounting.current();
+    }
+
+    /**
+     * Wait for the given APK to be copied to the scratch directory, and start copying the APK after it.  The caller
+     * deletes the copy when done with it.
+     *
+     * @return the copy of the APK in the scratch directory
+     */
+    synchronized FilePath take(@Nonnull FilePath unsignedApk) throws IOException, InterruptedException {
+        Future<FilePath> staged;
+        if (!staging.isEmpty()) {
+            String prefetched = staging.keySet().iterator().next();
+            if (!prefetched.equals(unsignedApk.getRemote())) {
+                throw new IllegalStateException("staging " + unsignedApk.getRemote() + " out of order");
+            }
+            staged = staging.remove(prefetched);
+        }
+        else {
+            if (next >= unsignedApks.size() || !unsignedApks.get(next).getRemote().equals(unsignedApk.getRemote())) {
+                throw new IllegalStateException("staging " + unsignedApk.getRemote() + " out of order");
+            }
+            staged = stage(unsignedApks.get(next++));
+        }
+        if (next < unsignedApks.size()) {
+            FilePath following = unsignedApks.get(next++);
+            staging.put(following.getRemote(), stage(following));
+        }
+        long waitStart = System.nanoTime();
+        try {
+            return staged.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("error staging " + unsignedApk.getRemote(), cause);
+        }
+        finally {
+            waitNanos += System.nanoTime() - waitStart;
+        }
+    }
+
+    private Future<FilePath> stage(FilePath unsignedApk) {
+        return stageThread.submit(() -> {
+            if (remoteCalls != null) {
+                remoteCalls.attach();
+            }
+            try {
+                long stageStart = System.nanoTime();
+                FilePath stagedApk = scratch.createTempFile("staged-" + unsignedApk.getBaseName() + "-", ".apk", unsignedApk.length());
+                try {
+                    CopySequentiallyCallable copy = new CopySequentiallyCallable(stagedApk.getRemote());
+                    stagedBytes.addAndGet(unsignedApk.act(copy));
+                    busyNanos.addAndGet(System.nanoTime() - stageStart);
+                    return stagedApk;
+                }
+                catch (IOException | InterruptedException | RuntimeException e) {
+                    SignApksBuilder.deleteQuietly(stagedApk, listener);
+                    throw e;
+                }
+            }
+            finally {
+                RemoteCallAccounting.detach();
+            }
+        });
+    }
+
+    /**
+     * Copy a file the signer wrote in the scratch directory to its destination in the workspace in one sequential
+     * write.
+     */
+    static void writeBack(@Nonnull FilePath scratchFile, @Nonnull FilePath destination) throws IOException, InterruptedException {
+        CopySequentiallyCallable copy = new CopySequentiallyCallable(destination.getRemote());
+        scratchFile.act(copy);
+    }
+
+    /**
+     * Log how much the stager copied, and how long the caller waited for copies.
+     */
+    void report() {
+        listener.getLogger().printf("[SignApksBuilder] staged %,d bytes in the scratch directory in %,d ms; signing waited %,d ms for staged APKs%n",
+            stagedBytes.get(), TimeUnit.NANOSECONDS.toMillis(busyNanos.get()), TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    /**
+     * Stop copying, and delete the copies the caller did not take.
+     */
+    @Override
+    public synchronized void close() {
+        stageThread.shutdownNow();
+        boolean interrupted = Thread.interrupted();
+        try {
+            stageThread.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        finally {
+            for (Future<FilePath> staged : staging.values()) {
+                if (staged.isDone() && !staged.isCancelled()) {
+                    try {
+                        SignApksBuilder.deleteQuietly(staged.get(), listener);
+                    }
+                    catch (ExecutionException | InterruptedException e) {
+                        // the copy failed and deleted what it wrote
+                    }
+                }
+            }
+            staging.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
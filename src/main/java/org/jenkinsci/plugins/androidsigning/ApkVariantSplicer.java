@@ -0,0 +1,318 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+
+/**
+ * Writes white-label variants of a base APK, each the base with the files of an overlay directory replacing or
+ * adding entries.  The entries the overlay does not touch are copied as they are stored in the base, compressed
+ * bytes and all, so a variant costs about as much as copying the base, and the entries are aligned the way
+ * {@code zipalign -p 4} aligns them, or {@code zipalign -P 16 4} for 16 KB pages, so variants of an aligned base need
+ * no zipalign of their own.  An overlay file replacing an entry is stored or compressed as the entry was; a new
+ * entry is compressed, except native libraries and {@code resources.arsc}, which are stored and aligned as zipalign
+ * would.  The base's v1 signature files and any APK Signing Block are left out, as signing the variant replaces them.
+ */
+class ApkVariantSplicer {
+
+    static final int ALIGNMENT = 4;
+    /** the page alignment of stored native libraries unless a larger page size is configured */
+    static final int NATIVE_LIBRARY_ALIGNMENT = 4096;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CD_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int CD_ENTRY_SIZE = 46;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    private static final int UTF8_FLAG = 0x800;
+    private static final String RESOURCE_TABLE = "resources.arsc";
+    private static final Pattern V1_SIGNATURE_FILE = Pattern.compile("META-INF/[^/]+\\.(SF|RSA|DSA|EC)");
+
+    /**
+     * Write each variant of the base APK this is invoked on.
+     */
+    static class SpliceVariantsCallable extends MasterToSlaveFileCallable<Integer> implements RemoteCallAccounting.EstimatedPayload {
+        private static final long serialVersionUID = 1;
+
+        private final Map<String, String> overlayDirsByOutput;
+        private final int nativeLibraryAlignment;
+
+        /**
+         * @param overlayDirsByOutput the overlay directory of each variant, by the path of the variant to write
+         */
+        SpliceVariantsCallable(@Nonnull Map<String, String> overlayDirsByOutput) {
+            this(overlayDirsByOutput, NATIVE_LIBRARY_ALIGNMENT);
+        }
+
+        /**
+         * @param nativeLibraryAlignment the page size to align stored native libraries to
+         */
+        SpliceVariantsCallable(@Nonnull Map<String, String> overlayDirsByOutput, int nativeLibraryAlignment) {
+            this.overlayDirsByOutput = overlayDirsByOutput;
+            this.nativeLibraryAlignment = nativeLibraryAlignment;
+        }
+
+        @Override
+        public long estimatePayloadBytes() {
+            return RemoteCallAccounting.estimatePayloadBytes(overlayDirsByOutput);
+        }
+
+        @Override
+        public Integer invoke(File base, VirtualChannel channel) throws IOException, InterruptedException {
+            ApkZipLayout layout = ApkZipLayout.read(base);
+            try (FileChannel baseIn = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+                for (Map.Entry<String, String> variant : overlayDirsByOutput.entrySet()) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    splice(baseIn, layout, overlayFiles(new File(variant.getValue())), new File(variant.getKey()), nativeLibraryAlignment);
+                }
+            }
+            return overlayDirsByOutput.size();
+        }
+    }
+
+    /**
+     * @return the name of the variant of the named base APK, with the variant name before the {@code -unsigned.apk}
+     * or {@code .apk} suffix of the base name
+     */
+    static String variantApkName(@Nonnull String baseApkName, @Nonnull String variant) {
+        for (String suffix : new String[] { "-unsigned.apk", ".apk" }) {
+            if (baseApkName.endsWith(suffix)) {
+                return baseApkName.substring(0, baseApkName.length() - suffix.length()) + "-" + variant + suffix;
+            }
+        }
+        return baseApkName + "-" + variant;
+    }
+
+    /**
+     * @return the files under the given directory, by the entry name each replaces or adds
+     */
+    static Map<String, File> overlayFiles(@Nonnull File overlayDir) throws IOException {
+        Path root = overlayDir.toPath();
+        Map<String, File> files = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path file : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String entryName = root.relativize(file).toString().replace(File.separatorChar, '/');
+                files.put(entryName, file.toFile());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Write the base APK with the given overlay files to the output file.
+     *
+     * @param overlays the overlay files, by entry name
+     */
+    static void splice(@Nonnull FileChannel base, @Nonnull ApkZipLayout layout, @Nonnull Map<String, File> overlays, @Nonnull File output) throws IOException {
+        splice(base, layout, overlays, output, NATIVE_LIBRARY_ALIGNMENT);
+    }
+
+    /**
+     * Write the base APK with the given overlay files to the output file, aligning stored native libraries to the
+     * given page size.
+     *
+     * @param overlays the overlay files, by entry name
+     */
+    static void splice(@Nonnull FileChannel base, @Nonnull ApkZipLayout layout, @Nonnull Map<String, File> overlays, @Nonnull File output,
+        int nativeLibraryAlignment) throws IOException {
+        Map<String, File> newEntries = new TreeMap<>(overlays);
+        List<ByteBuffer> centralDirectory = new ArrayList<>();
+        List<ApkZipLayout.Entry> baseEntries = layout.getEntriesByOffset();
+        // new entries get the time of the first base entry, so variants are as reproducible as their base
+        int defaultTime = baseEntries.isEmpty() ? 0 : baseEntries.get(0).lastModifiedTime;
+        int defaultDate = baseEntries.isEmpty() ? 0 : baseEntries.get(0).lastModifiedDate;
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (ApkZipLayout.Entry entry : baseEntries) {
+                if (V1_SIGNATURE_FILE.matcher(entry.name).matches()) {
+                    continue;
+                }
+                File overlay = newEntries.remove(entry.name);
+                if (overlay == null) {
+                    long offset = out.position();
+                    writeLocalHeader(out, entry.name, entry.flags, entry.method, entry.lastModifiedTime, entry.lastModifiedDate,
+                        entry.crc, entry.compressedSize, entry.uncompressedSize, nativeLibraryAlignment);
+                    transferFully(base, entry.dataOffset, entry.compressedSize, out);
+                    centralDirectory.add(centralDirectoryEntry(entry.name, entry.flags, entry.method, entry.lastModifiedTime, entry.lastModifiedDate,
+                        entry.crc, entry.compressedSize, entry.uncompressedSize, offset));
+                }
+                else {
+                    centralDirectory.add(writeOverlay(out, entry.name, overlay, entry.method, entry.lastModifiedTime, entry.lastModifiedDate,
+                        nativeLibraryAlignment));
+                }
+            }
+            for (Map.Entry<String, File> newEntry : newEntries.entrySet()) {
+                centralDirectory.add(writeOverlay(out, newEntry.getKey(), newEntry.getValue(), methodOfNewEntry(newEntry.getKey()), defaultTime, defaultDate,
+                    nativeLibraryAlignment));
+            }
+
+            long cdOffset = out.position();
+            for (ByteBuffer cdEntry : centralDirectory) {
+                writeFully(out, cdEntry);
+            }
+            long cdSize = out.position() - cdOffset;
+            ByteBuffer eocd = ByteBuffer.allocate(EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            eocd.putInt(EOCD_SIGNATURE).putShort((short) 0).putShort((short) 0)
+                .putShort((short) centralDirectory.size()).putShort((short) centralDirectory.size())
+                .putInt((int) cdSize).putInt((int) cdOffset).putShort((short) 0);
+            eocd.flip();
+            writeFully(out, eocd);
+        }
+    }
+
+    /**
+     * @return how to store an entry an overlay adds: native libraries and {@code resources.arsc} stored, so a variant
+     * can load them in place with {@code extractNativeLibs="false"} and installs at a target SDK of 30 or later, and
+     * everything else deflated
+     */
+    static int methodOfNewEntry(@Nonnull String name) {
+        if (name.equals(RESOURCE_TABLE) || name.startsWith("lib/") && name.endsWith(".so")) {
+            return ApkZipLayout.METHOD_STORED;
+        }
+        return ApkZipLayout.METHOD_DEFLATED;
+    }
+
+    private static ByteBuffer writeOverlay(FileChannel out, String name, File overlay, int method, int time, int date,
+        int nativeLibraryAlignment) throws IOException {
+        byte[] content = Files.readAllBytes(overlay.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        byte[] data = content;
+        if (method != ApkZipLayout.METHOD_STORED) {
+            method = ApkZipLayout.METHOD_DEFLATED;
+            data = deflate(content);
+        }
+        long offset = out.position();
+        writeLocalHeader(out, name, 0, method, time, date, crc.getValue(), data.length, content.length, nativeLibraryAlignment);
+        writeFully(out, ByteBuffer.wrap(data));
+        return centralDirectoryEntry(name, 0, method, time, date, crc.getValue(), data.length, content.length, offset);
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buf);
+                deflated.write(buf, 0, count);
+            }
+            return deflated.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write a local file header, padding its extra field so the data of a stored entry starts at its alignment.
+     */
+    private static void writeLocalHeader(FileChannel out, String name, int flags, int method, int time, int date, long crc,
+        long compressedSize, long uncompressedSize, int nativeLibraryAlignment) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dataOffset = out.position() + LOCAL_HEADER_SIZE + nameBytes.length;
+        int padding = 0;
+        if (method == ApkZipLayout.METHOD_STORED) {
+            int alignment = ZipAlignmentCheck.alignmentOf(name, nativeLibraryAlignment);
+            padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        }
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length + padding).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+            .putShort((short) 20)
+            .putShort((short) entryFlags(flags, nameBytes, name))
+            .putShort((short) method)
+            .putShort((short) time)
+            .putShort((short) date)
+            .putInt((int) crc)
+            .putInt((int) compressedSize)
+            .putInt((int) uncompressedSize)
+            .putShort((short) nameBytes.length)
+            .putShort((short) padding)
+            .put(nameBytes);
+        header.position(header.limit());
+        header.flip();
+        writeFully(out, header);
+    }
+
+    private static ByteBuffer centralDirectoryEntry(String name, int flags, int method, int time, int date, long crc,
+        long compressedSize, long uncompressedSize, long localHeaderOffset) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(CD_ENTRY_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(CD_ENTRY_SIGNATURE)
+            .putShort((short) 20)
+            .putShort((short) 20)
+            .putShort((short) entryFlags(flags, nameBytes, name))
+            .putShort((short) method)
+            .putShort((short) time)
+            .putShort((short) date)
+            .putInt((int) crc)
+            .putInt((int) compressedSize)
+            .putInt((int) uncompressedSize)
+            .putShort((short) nameBytes.length)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putInt(0)
+            .putInt((int) localHeaderOffset)
+            .put(nameBytes);
+        entry.flip();
+        return entry;
+    }
+
+    /**
+     * @return the flags of the base entry without the data descriptor, which the copy does not write, and with
+     * the UTF-8 flag for names that need it
+     */
+    private static int entryFlags(int flags, byte[] nameBytes, String name) {
+        flags &= ~DATA_DESCRIPTOR_FLAG;
+        if (nameBytes.length != name.length()) {
+            flags |= UTF8_FLAG;
+        }
+        return flags;
+    }
+
+    private static void transferFully(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long chunk = in.transferTo(position + transferred, count - transferred, out);
+            if (chunk <= 0) {
+                throw new IOException("unexpected end of base APK copying " + count + " bytes at offset " + position);
+            }
+            transferred += chunk;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+}
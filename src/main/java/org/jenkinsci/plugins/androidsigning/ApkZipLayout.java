@@ -0,0 +1,196 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The physical layout of the entries in an APK, read from the ZIP central directory and the local file
+ * headers only, without reading or inflating any entry data.  This does not support ZIP64 archives,
+ * which Android does not support either.
+ */
+class ApkZipLayout {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int CD_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int CD_ENTRY_MIN_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_MIN_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    static class Entry {
+        final String name;
+        final int flags;
+        final int method;
+        final int lastModifiedTime;
+        final int lastModifiedDate;
+        final long crc;
+        final long compressedSize;
+        final long uncompressedSize;
+        final long localHeaderOffset;
+        final long dataOffset;
+
+        private Entry(String name, int flags, int method, int lastModifiedTime, int lastModifiedDate, long crc, long compressedSize,
+            long uncompressedSize, long localHeaderOffset, long dataOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.lastModifiedTime = lastModifiedTime;
+            this.lastModifiedDate = lastModifiedDate;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+            this.dataOffset = dataOffset;
+        }
+
+        boolean isStored() {
+            return method == METHOD_STORED;
+        }
+
+        long dataEnd() {
+            return dataOffset + compressedSize;
+        }
+    }
+
+    static ApkZipLayout read(File apk) throws IOException {
+        try (FileChannel in = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            return read(in, apk.getPath());
+        }
+    }
+
+    static ApkZipLayout read(FileChannel in, String name) throws IOException {
+        long fileSize = in.size();
+        if (fileSize < EOCD_MIN_SIZE) {
+            throw new IOException(name + " is too small to be an APK");
+        }
+        int tailSize = (int) Math.min(fileSize, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(in, fileSize - tailSize, tailSize);
+        int eocdPos = -1;
+        for (int pos = tailSize - EOCD_MIN_SIZE; pos >= 0; pos--) {
+            if (tail.getInt(pos) == EOCD_SIGNATURE && pos + EOCD_MIN_SIZE + (tail.getShort(pos + 20) & 0xffff) == tailSize) {
+                eocdPos = pos;
+                break;
+            }
+        }
+        if (eocdPos < 0) {
+            throw new IOException(name + " has no ZIP end of central directory record");
+        }
+        int entryCount = tail.getShort(eocdPos + 10) & 0xffff;
+        long cdSize = tail.getInt(eocdPos + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocdPos + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            throw new IOException(name + " is a ZIP64 archive, which APKs do not support");
+        }
+        long eocdOffset = fileSize - tailSize + eocdPos;
+        if (cdOffset + cdSize > eocdOffset) {
+            throw new IOException(name + " has a central directory that overlaps the end of central directory record");
+        }
+
+        ByteBuffer cd = readFully(in, cdOffset, (int) cdSize);
+        ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_HEADER_MIN_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            int pos = cd.position();
+            if (cd.remaining() < CD_ENTRY_MIN_SIZE || cd.getInt(pos) != CD_ENTRY_SIGNATURE) {
+                throw new IOException(name + " has a malformed central directory entry at index " + i);
+            }
+            int flags = cd.getShort(pos + 8) & 0xffff;
+            int method = cd.getShort(pos + 10) & 0xffff;
+            int lastModifiedTime = cd.getShort(pos + 12) & 0xffff;
+            int lastModifiedDate = cd.getShort(pos + 14) & 0xffff;
+            long crc = cd.getInt(pos + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+            long uncompressedSize = cd.getInt(pos + 24) & 0xffffffffL;
+            int nameSize = cd.getShort(pos + 28) & 0xffff;
+            int extraSize = cd.getShort(pos + 30) & 0xffff;
+            int commentSize = cd.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameSize];
+            cd.position(pos + CD_ENTRY_MIN_SIZE);
+            cd.get(nameBytes);
+            cd.position(pos + CD_ENTRY_MIN_SIZE + nameSize + extraSize + commentSize);
+            String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+
+            localHeader.clear();
+            readFully(in, localHeaderOffset, localHeader);
+            if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException(name + " has no local file header for entry " + entryName + " at offset " + localHeaderOffset);
+            }
+            int localNameSize = localHeader.getShort(26) & 0xffff;
+            int localExtraSize = localHeader.getShort(28) & 0xffff;
+            long dataOffset = localHeaderOffset + LOCAL_HEADER_MIN_SIZE + localNameSize + localExtraSize;
+            entries.add(new Entry(entryName, flags, method, lastModifiedTime, lastModifiedDate, crc, compressedSize, uncompressedSize, localHeaderOffset, dataOffset));
+        }
+
+        return new ApkZipLayout(fileSize, cdOffset, cdSize, entries);
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long offset, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, offset, buf);
+        return buf;
+    }
+
+    private static void readFully(FileChannel in, long offset, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int count = in.read(buf, offset + buf.position());
+            if (count < 0) {
+                throw new EOFException("unexpected end of file reading " + buf.capacity() + " bytes at offset " + offset);
+            }
+        }
+        buf.flip();
+    }
+
+    final long fileSize;
+    final long centralDirectoryOffset;
+    final long centralDirectorySize;
+    private final List<Entry> entries;
+
+    private ApkZipLayout(long fileSize, long centralDirectoryOffset, long centralDirectorySize, List<Entry> entries) {
+        this.fileSize = fileSize;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.centralDirectorySize = centralDirectorySize;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the entries in central directory order
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the entries in the order they appear in the file
+     */
+    List<Entry> getEntriesByOffset() {
+        List<Entry> byOffset = new ArrayList<>(entries);
+        byOffset.sort(Comparator.comparingLong(entry -> entry.localHeaderOffset));
+        return byOffset;
+    }
+
+    Map<String, Entry> getEntriesByName() {
+        Map<String, Entry> byName = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            byName.put(entry.name, entry);
+        }
+        return byName;
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+
+/**
+ * Compute the hex-encoded digest of a file where the file resides, so only the digest crosses the channel.
+ */
+class DigestFileCallable extends MasterToSlaveFileCallable<String> {
+
+    private static final long serialVersionUID = 1;
+
+    static final String SHA_256 = "SHA-256";
+
+    private final String algorithm;
+
+    DigestFileCallable(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("error computing digest of " + f.getAbsolutePath(), e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(f)) {
+            int count;
+            while ((count = in.read(buffer)) > -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return Util.toHexString(digest.digest());
+    }
+}
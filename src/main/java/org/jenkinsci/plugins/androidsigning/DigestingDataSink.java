@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.android.apksig.util.DataSink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import hudson.Util;
+
+
+/**
+ * A {@link DataSink} that computes the MD5 and SHA-256 digests and the size of everything the signer writes
+ * on its way to the delegate sink.  {@link com.android.apksig.ApkSigner} writes the output APK strictly
+ * sequentially, so once signing finishes the digests are those of the whole signed APK, without reading
+ * the file again.  The sink also stops the signer between the chunks it writes once the signing thread is
+ * interrupted, as when the build is aborted, rather than let it finish the APK.
+ */
+class DigestingDataSink implements DataSink {
+
+    static class Digests implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final long size;
+        final String md5;
+        final String sha256;
+
+        Digests(long size, String md5, String sha256) {
+            this.size = size;
+            this.md5 = md5;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final DataSink delegate;
+    private final MessageDigest md5;
+    private final MessageDigest sha256;
+    private long size;
+
+    DigestingDataSink(DataSink delegate) throws IOException {
+        this.delegate = delegate;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+            sha256 = MessageDigest.getInstance(DigestFileCallable.SHA_256);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("error creating signed APK digests", e);
+        }
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        checkInterrupted();
+        delegate.consume(buf, offset, length);
+        md5.update(buf, offset, length);
+        sha256.update(buf, offset, length);
+        size += length;
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        checkInterrupted();
+        ByteBuffer md5Buf = buf.duplicate();
+        ByteBuffer sha256Buf = buf.duplicate();
+        int length = buf.remaining();
+        delegate.consume(buf);
+        md5.update(md5Buf);
+        sha256.update(sha256Buf);
+        size += length;
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("signing interrupted");
+        }
+    }
+
+    Digests getDigests() {
+        return new Digests(size, Util.toHexString(md5.digest()), Util.toHexString(sha256.digest()));
+    }
+}
@@ -0,0 +1,476 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.acegisecurity.Authentication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RequestAbortedException;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+
+/**
+ * Aligns and signs a batch of APKs on the online agents with a label that have a free executor, rather than on the
+ * node of the workspace.  Signing does not take the free executor, so Jenkins may start a build on the agent while
+ * it signs; the free executor only keeps busy agents out of the batch.  Signing only uses agents the build could be
+ * scheduled on: the build's authentication needs {@link Computer#BUILD} on the agent, the agent must accept tasks,
+ * and the built-in node never signs.  Agents in {@link Node.Mode#EXCLUSIVE} mode qualify, since the label names them
+ * as an exclusive agent requires.  The
+ * APKs are split into one shard per agent, balanced by their estimated signing times, or else by size, and each
+ * agent receives its APKs from the workspace, signs them, and sends the signed APKs back to their destinations in
+ * the workspace, all agents at once.  When an agent fails, for example because it goes offline, the APKs of its
+ * shard it has not signed go to the remaining agents; the APKs no agent could sign are left for the workspace node
+ * to sign.  Only a closed channel or an offline agent counts as the agent failing; other errors, such as zipalign
+ * failing, a signed APK of the wrong size, or copying the signed APK back to the workspace, fail the step as they
+ * do when signing in the workspace.
+ */
+class DistributedSigning {
+
+    /**
+     * The APKs one agent signs.
+     */
+    static class Shard {
+        final Node node;
+        final List<FilePath> apks = new ArrayList<>();
+        long bytes;
+        long cost;
+
+        Shard(Node node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * An APK an agent signed, and how long it took.
+     */
+    static class SignedApk {
+        final String nodeName;
+        final DigestingDataSink.Digests digests;
+        final boolean zipalignSkipped;
+        final long zipalignNanos;
+        final long signNanos;
+        /** null without a signing memory limit */
+        final SigningMemoryLimit.Usage memory;
+
+        SignedApk(String nodeName, DigestingDataSink.Digests digests, boolean zipalignSkipped, long zipalignNanos, long signNanos,
+            SigningMemoryLimit.Usage memory) {
+            this.nodeName = nodeName;
+            this.digests = digests;
+            this.zipalignSkipped = zipalignSkipped;
+            this.zipalignNanos = zipalignNanos;
+            this.signNanos = signNanos;
+            this.memory = memory;
+        }
+    }
+
+    static final String SHARD_DIR_NAME = "shards";
+
+    /**
+     * Split APKs across the given nodes by size, as {@link #plan(List, Map, Map)} does with each APK's size as its
+     * cost.
+     */
+    static List<Shard> plan(@Nonnull List<? extends Node> nodes, @Nonnull Map<FilePath, Long> apkSizes) {
+        return plan(nodes, apkSizes, apkSizes);
+    }
+
+    /**
+     * Split APKs across the given nodes, the costliest first, each to the node with the least cost so far, so the
+     * shards finish at about the same time.  Of the given nodes, the plan uses the fewest that finish as soon as
+     * all of them would, which leaves the rest idle when a few costly APKs bound the batch anyway.
+     *
+     * @param apkCosts the cost of each APK, such as its estimated signing time
+     * @return the shards with at least one APK
+     */
+    static List<Shard> plan(@Nonnull List<? extends Node> nodes, @Nonnull Map<FilePath, Long> apkSizes, @Nonnull Map<FilePath, Long> apkCosts) {
+        List<Shard> best = planOn(nodes, apkSizes, apkCosts);
+        long bestMakespan = makespan(best);
+        for (int nodeCount = 1; nodeCount < best.size(); nodeCount++) {
+            List<Shard> fewer = planOn(nodes.subList(0, nodeCount), apkSizes, apkCosts);
+            if (makespan(fewer) <= bestMakespan) {
+                return fewer;
+            }
+        }
+        return best;
+    }
+
+    private static List<Shard> planOn(List<? extends Node> nodes, Map<FilePath, Long> apkSizes, Map<FilePath, Long> apkCosts) {
+        List<Shard> shards = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            shards.add(new Shard(node));
+        }
+        List<FilePath> costliestFirst = new ArrayList<>(apkSizes.keySet());
+        costliestFirst.sort(Comparator.<FilePath>comparingLong(apk -> apkCosts.get(apk)).reversed().thenComparing(FilePath::getRemote));
+        for (FilePath apk : costliestFirst) {
+            Shard lightest = Collections.min(shards, Comparator.comparingLong(shard -> shard.cost));
+            lightest.apks.add(apk);
+            lightest.bytes += apkSizes.get(apk);
+            lightest.cost += apkCosts.get(apk);
+        }
+        shards.removeIf(shard -> shard.apks.isEmpty());
+        return shards;
+    }
+
+    /**
+     * @return the cost of the costliest shard
+     */
+    static long makespan(@Nonnull List<Shard> shards) {
+        long makespan = 0;
+        for (Shard shard : shards) {
+            makespan = Math.max(makespan, shard.cost);
+        }
+        return makespan;
+    }
+
+    /**
+     * @return the online nodes with the given label that have a free executor, which signing does not take, and that
+     * the given authentication may build on
+     */
+    static List<Node> nodesWithFreeExecutors(@Nonnull String label, @Nonnull Authentication auth, @Nonnull TaskListener listener) {
+        List<Node> nodes = new ArrayList<>();
+        Label jenkinsLabel = Jenkins.getActiveInstance().getLabel(label);
+        if (jenkinsLabel == null) {
+            return nodes;
+        }
+        for (Node node : jenkinsLabel.getNodes()) {
+            String whyNot = whyCannotSignOn(node, auth);
+            if (whyNot != null) {
+                listener.getLogger().printf("[SignApksBuilder] not signing on %s: %s%n", node.getDisplayName(), whyNot);
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (computer != null && computer.isOnline() && computer.getChannel() != null && computer.countIdle() > 0) {
+                nodes.add(node);
+            }
+        }
+        nodes.sort(Comparator.comparing(Node::getNodeName));
+        return nodes;
+    }
+
+    /**
+     * Check the conditions of {@link Node#canTake(hudson.model.Queue.BuildableItem)} that do not depend on the
+     * label of a queue item, since the signing label names the node instead.
+     *
+     * @return why the given authentication may not sign on the node, or null if it may
+     */
+    @CheckForNull
+    static String whyCannotSignOn(@Nonnull Node node, @Nonnull Authentication auth) {
+        if (node instanceof Jenkins) {
+            return "signing never runs on the built-in node";
+        }
+        if (!node.getACL().hasPermission(auth, Computer.BUILD)) {
+            return auth.getName() + " lacks permission to build on it";
+        }
+        Computer computer = node.toComputer();
+        if (computer != null && !computer.isAcceptingTasks()) {
+            return "it is not accepting tasks";
+        }
+        return null;
+    }
+
+    private final String label;
+    private final SigningComponents signingParams;
+    private final boolean skipZipalign;
+    private final boolean zipalignOnlyUnaligned;
+    private final int pageSizeKb;
+    private final boolean checkNativeLibraries;
+    private final String androidHome;
+    private final String zipalignPath;
+    private final boolean writeSha256File;
+    private final long memoryLimitBytes;
+    private final String runName;
+    private final TaskListener listener;
+    private final SigningTrace trace;
+    private final ApkSpans apkSpans;
+
+    /**
+     * Starts the span of an APK, or returns the one already started, so the spans of a shard's APKs have the same
+     * parents as when the workspace node signs them.
+     */
+    interface ApkSpans {
+        SigningTrace.Span start(@Nonnull FilePath unsignedApk) throws IOException, InterruptedException;
+    }
+
+    DistributedSigning(@Nonnull String label, @Nonnull SigningComponents signingParams, boolean skipZipalign, boolean zipalignOnlyUnaligned,
+        int pageSizeKb, boolean checkNativeLibraries, @CheckForNull String androidHome, @CheckForNull String zipalignPath, boolean writeSha256File, long memoryLimitBytes,
+        @Nonnull String runName, @Nonnull TaskListener listener, @Nonnull SigningTrace trace, @Nonnull ApkSpans apkSpans) {
+        this.label = label;
+        this.signingParams = signingParams;
+        this.skipZipalign = skipZipalign;
+        this.zipalignOnlyUnaligned = zipalignOnlyUnaligned;
+        this.pageSizeKb = pageSizeKb;
+        this.checkNativeLibraries = checkNativeLibraries;
+        this.androidHome = androidHome;
+        this.zipalignPath = zipalignPath;
+        this.writeSha256File = writeSha256File;
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.runName = runName;
+        this.listener = listener;
+        this.trace = trace;
+        this.apkSpans = apkSpans;
+    }
+
+    /**
+     * Sign the given unsigned APKs on the agents with this signing's label, balanced by size.
+     *
+     * @param destinations the signed APK path in the workspace for each unsigned APK
+     * @return the APKs the agents signed, by the remote path of the unsigned APK; the rest are for the workspace
+     * node to sign
+     */
+    Map<String, SignedApk> signAll(@Nonnull Map<FilePath, FilePath> destinations) throws IOException, InterruptedException {
+        return signAll(destinations, Collections.emptyMap());
+    }
+
+    /**
+     * Sign the given unsigned APKs on the agents with this signing's label, balanced by their estimated signing
+     * times, and log how the time the agents took compares to the estimate.
+     *
+     * @param destinations the signed APK path in the workspace for each unsigned APK
+     * @param estimatedMillis the estimated signing time of each unsigned APK, or empty to balance by size
+     * @return the APKs the agents signed, by the remote path of the unsigned APK; the rest are for the workspace
+     * node to sign
+     */
+    Map<String, SignedApk> signAll(@Nonnull Map<FilePath, FilePath> destinations, @Nonnull Map<FilePath, Long> estimatedMillis) throws IOException, InterruptedException {
+        Map<String, SignedApk> signed = new ConcurrentHashMap<>();
+        Set<String> failedNodes = new HashSet<>();
+        List<FilePath> remaining = new ArrayList<>(destinations.keySet());
+        Authentication auth = Jenkins.getAuthentication();
+        while (!remaining.isEmpty()) {
+            List<Node> nodes = nodesWithFreeExecutors(label, auth, listener);
+            nodes.removeIf(node -> failedNodes.contains(node.getNodeName()));
+            if (nodes.isEmpty()) {
+                listener.getLogger().printf("[SignApksBuilder] no online agents with label %s have a free executor; signing %d APKs in the workspace%n", label, remaining.size());
+                break;
+            }
+            Map<FilePath, Long> apkSizes = new LinkedHashMap<>();
+            for (FilePath apk : remaining) {
+                apkSizes.put(apk, apk.length());
+            }
+            boolean estimated = estimatedMillis.keySet().containsAll(apkSizes.keySet());
+            List<Shard> shards = plan(nodes, apkSizes, estimated ? estimatedMillis : apkSizes);
+            if (shards.size() < nodes.size()) {
+                listener.getLogger().printf("[SignApksBuilder] using %d of %d agents with label %s, as more would not finish sooner%n",
+                    shards.size(), nodes.size(), label);
+            }
+            remaining = new ArrayList<>();
+            long roundStart = System.nanoTime();
+            ExecutorService shardThreads = Executors.newFixedThreadPool(shards.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SignApksBuilder shards for " + runName));
+            try {
+                RemoteCallAccounting remoteCalls = RemoteCallAccounting.current();
+                List<Future<List<FilePath>>> unsignedByShard = new ArrayList<>(shards.size());
+                for (Shard shard : shards) {
+                    if (estimated) {
+                        listener.getLogger().printf("[SignApksBuilder] signing %d APKs, %,d bytes, on %s, estimated %,d ms%n",
+                            shard.apks.size(), shard.bytes, shard.node.getNodeName(), shard.cost);
+                    }
+                    else {
+                        listener.getLogger().printf("[SignApksBuilder] signing %d APKs, %,d bytes, on %s%n", shard.apks.size(), shard.bytes, shard.node.getNodeName());
+                    }
+                    unsignedByShard.add(shardThreads.submit(() -> {
+                        if (remoteCalls != null) {
+                            remoteCalls.attach();
+                        }
+                        try {
+                            return signShard(shard, destinations, signed);
+                        }
+                        finally {
+                            RemoteCallAccounting.detach();
+                        }
+                    }));
+                }
+                for (int i = 0; i < shards.size(); i++) {
+                    List<FilePath> unsigned = waitFor(unsignedByShard.get(i));
+                    if (!unsigned.isEmpty()) {
+                        failedNodes.add(shards.get(i).node.getNodeName());
+                        remaining.addAll(unsigned);
+                    }
+                }
+                if (estimated) {
+                    listener.getLogger().printf("[SignApksBuilder] predicted the agents would finish in %,d ms; they finished in %,d ms%n",
+                        makespan(shards), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStart));
+                }
+            }
+            finally {
+                shardThreads.shutdownNow();
+            }
+        }
+        return signed;
+    }
+
+    private static <T> T waitFor(Future<T> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Whether an error signing on an agent came from the agent or its channel, rather than from an APK or the
+     * workspace, so the APKs it left unsigned are worth retrying elsewhere.
+     */
+    static boolean isAgentFailure(@Nonnull IOException e, @CheckForNull Computer computer) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ChannelClosedException || cause instanceof RequestAbortedException) {
+                return true;
+            }
+        }
+        return computer == null || computer.isOffline() || computer.getChannel() == null;
+    }
+
+    private static long maxApkSize(Shard shard) throws IOException, InterruptedException {
+        long maxSize = 0;
+        for (FilePath apk : shard.apks) {
+            maxSize = Math.max(maxSize, apk.length());
+        }
+        return maxSize;
+    }
+
+    /**
+     * @return the APKs of the shard the node did not sign because it failed
+     */
+    private List<FilePath> signShard(Shard shard, Map<FilePath, FilePath> destinations, Map<String, SignedApk> signed) throws IOException, InterruptedException {
+        String nodeName = shard.node.getNodeName();
+        FilePath shardDir = null;
+        SigningScratch scratch = null;
+        int apkIndex = 0;
+        try {
+            Computer computer = shard.node.toComputer();
+            FilePath nodeRoot = shard.node.getRootPath();
+            if (computer == null || nodeRoot == null) {
+                throw new IOException(nodeName + " is offline");
+            }
+            EnvVars env = computer.getEnvironment();
+            env.overrideAll(computer.buildEnvironment(listener));
+            // the shard works on one APK at a time, with its unsigned, aligned, and signed copies
+            scratch = SigningScratch.forNode(shard.node, nodeRoot.child(SignApksBuilder.BUILDER_DIR).child(SHARD_DIR_NAME), listener);
+            shardDir = scratch.createTempDir("shard-", "", 3 * maxApkSize(shard));
+            ZipalignTool zipalign = new ZipalignTool(env, shardDir, listener.getLogger(), androidHome, zipalignPath, pageSizeKb);
+            Launcher launcher = shard.node.createLauncher(listener);
+
+            for (; apkIndex < shard.apks.size(); apkIndex++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                FilePath unsignedApk = shard.apks.get(apkIndex);
+                FilePath destination = destinations.get(unsignedApk);
+                SigningTrace.Span apkSpan = apkSpans.start(unsignedApk);
+                FilePath apkDir = shardDir.child(String.valueOf(apkIndex));
+                apkDir.mkdirs();
+                try (SigningConcurrencyLimiter.Permit permit = SigningConcurrencyLimiter.acquire(shard.node, listener)) {
+                    FilePath nodeUnsignedApk = apkDir.child(unsignedApk.getName());
+                    unsignedApk.copyTo(nodeUnsignedApk);
+
+                    FilePath nodeAlignedApk = nodeUnsignedApk;
+                    long zipalignNanos = 0;
+                    boolean zipalignSkipped = skipZipalign ||
+                        zipalignOnlyUnaligned && !ZipAlignmentCheck.needsZipalign(nodeUnsignedApk, unsignedApk.getName() + " on " + nodeName, pageSizeKb * 1024, listener);
+                    if (!zipalignSkipped) {
+                        nodeAlignedApk = apkDir.child("aligned-" + unsignedApk.getName());
+                        ArgumentListBuilder zipalignCommand = zipalign.commandFor(nodeUnsignedApk.getRemote(), nodeAlignedApk.getRemote());
+                        listener.getLogger().printf("[SignApksBuilder] %s: %s%n", nodeName, zipalignCommand);
+                        SigningMetrics.Timing zipalignTiming = SigningMetrics.get().start(SigningMetrics.Stage.ZIPALIGN, trace, apkSpan);
+                        RemoteCallAccounting.recordCall(apkDir, zipalignCommand.toList());
+                        int zipalignResult = launcher.launch()
+                            .cmds(zipalignCommand)
+                            .pwd(apkDir)
+                            .stdout(listener)
+                            .stderr(listener.getLogger())
+                            .join();
+                        if (zipalignResult != 0) {
+                            listener.fatalError("[SignApksBuilder] zipalign failed on %s: exit code %d", nodeName, zipalignResult);
+                            throw new AbortException(String.format("zipalign failed on APK %s: exit code %d", unsignedApk, zipalignResult));
+                        }
+                        zipalignNanos = zipalignTiming.stop();
+                    }
+                    if (checkNativeLibraries) {
+                        NativeLibraryAlignmentCheck.report(nodeAlignedApk, unsignedApk.getName() + " on " + nodeName, pageSizeKb * 1024, listener);
+                    }
+
+                    FilePath nodeSignedApk = apkDir.child(destination.getName());
+                    SigningMetrics.Timing signTiming = SigningMetrics.get().start(SigningMetrics.Stage.SIGN, trace, apkSpan);
+                    SignApksBuilder.SignApkCallable signApk = new SignApksBuilder.SignApkCallable(signingParams.key, signingParams.certChain,
+                        signingParams.v1SigName, nodeSignedApk.getRemote(), writeSha256File, memoryLimitBytes, signTiming.span().context(), listener);
+                    SignApksBuilder.SignApkCallable.Result signResult = nodeAlignedApk.act(signApk);
+                    RemoteCallAccounting.recordReceived(nodeAlignedApk, signResult);
+                    trace.addAll(signResult.spans);
+                    long signNanos = signTiming.stop();
+
+                    FilePath destinationParent = destination.getParent();
+                    if (destinationParent != null && !destinationParent.exists()) {
+                        destinationParent.mkdirs();
+                    }
+                    nodeSignedApk.copyTo(destination);
+                    if (writeSha256File) {
+                        String sha256FileName = destination.getName() + SignApksBuilder.SignApkCallable.SHA_256_FILE_EXTENSION;
+                        nodeSignedApk.sibling(sha256FileName).copyTo(destination.sibling(sha256FileName));
+                    }
+                    signed.put(unsignedApk.getRemote(), new SignedApk(nodeName, signResult.digests, zipalignSkipped, zipalignNanos, signNanos, signResult.memory));
+                    listener.getLogger().printf("[SignApksBuilder] signed APK %s on %s in %,d ms%n", unsignedApk.getName(), nodeName,
+                        TimeUnit.NANOSECONDS.toMillis(zipalignNanos + signNanos));
+                }
+                apkDir.deleteRecursive();
+            }
+            return Collections.emptyList();
+        }
+        catch (AbortException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            if (!isAgentFailure(e, shard.node.toComputer())) {
+                throw e;
+            }
+            List<FilePath> unsigned = new ArrayList<>(shard.apks.subList(apkIndex, shard.apks.size()));
+            listener.getLogger().printf("[SignApksBuilder] signing on %s failed; retrying its %d unsigned APKs elsewhere: %s%n",
+                nodeName, unsigned.size(), e);
+            return unsigned;
+        }
+        finally {
+            if (shardDir != null) {
+                SignApksBuilder.deleteQuietly(shardDir, listener);
+            }
+            if (scratch != null) {
+                scratch.close();
+            }
+        }
+    }
+}
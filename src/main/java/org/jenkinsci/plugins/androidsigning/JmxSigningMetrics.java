@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * {@link SigningMetrics} kept in memory and exposed as a {@link SigningMetricsMXBean}.  Stage timings go into
+ * power-of-two millisecond histograms, which are coarse but fixed in size and cheap to update concurrently.
+ */
+class JmxSigningMetrics extends SigningMetrics implements SigningMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(JmxSigningMetrics.class.getName());
+
+    static final String OBJECT_NAME = "org.jenkinsci.plugins.androidsigning:type=SigningMetrics";
+
+    static JmxSigningMetrics create() {
+        JmxSigningMetrics metrics = new JmxSigningMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(metrics, name);
+            }
+            catch (InstanceAlreadyExistsException e) {
+                // left over from a previous load of the plugin
+                server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            }
+        }
+        catch (JMException e) {
+            LOGGER.log(Level.WARNING, "failed to register signing metrics MBean " + OBJECT_NAME, e);
+        }
+        return metrics;
+    }
+
+    private static final int BUCKET_COUNT = Long.SIZE;
+
+    private static class StageStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long millis) {
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(millis));
+        }
+
+        long percentile(long count, double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank && seen > 0) {
+                    return bucket == 0 ? 0 : (1L << bucket) - 1;
+                }
+            }
+            return maxMillis.get();
+        }
+
+        void reset() {
+            count.set(0);
+            totalMillis.set(0);
+            maxMillis.set(0);
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                buckets.set(bucket, 0);
+            }
+        }
+
+        StageTiming snapshot() {
+            long snapshotCount = count.get();
+            return new StageTiming(snapshotCount, totalMillis.get(), maxMillis.get(),
+                percentile(snapshotCount, 0.5), percentile(snapshotCount, 0.95));
+        }
+    }
+
+    private final Map<Stage, StageStats> stages = new EnumMap<>(Stage.class);
+    private final AtomicLong apksSigned = new AtomicLong();
+    private final AtomicLong bytesSigned = new AtomicLong();
+    private final Map<String, RemoteCallAccounting.PhaseCounts> remotePhases = new ConcurrentSkipListMap<>();
+
+    JmxSigningMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageStats());
+        }
+    }
+
+    @Override
+    void recordStage(Stage stage, long nanos) {
+        stages.get(stage).record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    @Override
+    void recordSignedApk(long bytes) {
+        apksSigned.incrementAndGet();
+        bytesSigned.addAndGet(bytes);
+    }
+
+    @Override
+    void recordRemoteCalls(String phase, long calls, long bytesSent, long bytesReceived) {
+        RemoteCallAccounting.PhaseCounts counts = remotePhases.computeIfAbsent(phase, p -> new RemoteCallAccounting.PhaseCounts());
+        counts.calls.addAndGet(calls);
+        counts.bytesSent.addAndGet(bytesSent);
+        counts.bytesReceived.addAndGet(bytesReceived);
+    }
+
+    @Override
+    public long getApksSigned() {
+        return apksSigned.get();
+    }
+
+    @Override
+    public long getBytesSigned() {
+        return bytesSigned.get();
+    }
+
+    @Override
+    public Map<String, StageTiming> getStageTimings() {
+        Map<String, StageTiming> timings = new LinkedHashMap<>();
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            timings.put(stage.getKey().metricName, stage.getValue().snapshot());
+        }
+        return timings;
+    }
+
+    @Override
+    public Map<String, RemoteCalls> getRemoteCalls() {
+        Map<String, RemoteCalls> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, RemoteCallAccounting.PhaseCounts> phase : remotePhases.entrySet()) {
+            RemoteCallAccounting.PhaseCounts counts = phase.getValue();
+            calls.put(phase.getKey(), new RemoteCalls(counts.calls.get(), counts.bytesSent.get(), counts.bytesReceived.get()));
+        }
+        return calls;
+    }
+
+    @Override
+    public void reset() {
+        for (StageStats stage : stages.values()) {
+            stage.reset();
+        }
+        apksSigned.set(0);
+        bytesSigned.set(0);
+        remotePhases.clear();
+    }
+}
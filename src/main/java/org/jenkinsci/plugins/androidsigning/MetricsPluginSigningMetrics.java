@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.metrics.api.Metrics;
+
+
+/**
+ * {@link SigningMetrics} in the Metrics plugin's registry.  Only {@link SigningMetrics} refers to this class,
+ * and only after checking the Metrics plugin is installed, because the Metrics plugin is an optional dependency.
+ */
+class MetricsPluginSigningMetrics extends SigningMetrics {
+
+    @CheckForNull
+    static MetricsPluginSigningMetrics create() {
+        MetricRegistry registry = Metrics.metricRegistry();
+        return registry == null ? null : new MetricsPluginSigningMetrics(registry);
+    }
+
+    private final MetricRegistry registry;
+
+    private MetricsPluginSigningMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    void recordStage(Stage stage, long nanos) {
+        registry.timer(MetricRegistry.name(METRIC_PREFIX, "stage", stage.metricName)).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    void recordSignedApk(long bytes) {
+        registry.meter(MetricRegistry.name(METRIC_PREFIX, "apks")).mark();
+        registry.meter(MetricRegistry.name(METRIC_PREFIX, "bytes")).mark(bytes);
+        registry.histogram(MetricRegistry.name(METRIC_PREFIX, "apk-size")).update(bytes);
+    }
+
+    @Override
+    void recordRemoteCalls(String phase, long calls, long bytesSent, long bytesReceived) {
+        registry.meter(MetricRegistry.name(METRIC_PREFIX, "remote", phase, "calls")).mark(calls);
+        registry.meter(MetricRegistry.name(METRIC_PREFIX, "remote", phase, "bytes-sent")).mark(bytesSent);
+        registry.meter(MetricRegistry.name(METRIC_PREFIX, "remote", phase, "bytes-received")).mark(bytesReceived);
+    }
+}
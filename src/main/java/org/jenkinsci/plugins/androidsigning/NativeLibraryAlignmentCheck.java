@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+
+/**
+ * Checks that the native libraries of an APK can be loaded on devices with a given page size.  A stored library
+ * must start at a multiple of the page size in the APK for the device to map it straight from the APK, which
+ * zipalign sees to; and every {@code PT_LOAD} segment of a library, stored or compressed, must be aligned to a
+ * multiple of the page size for the device to map the segment at all, which only relinking the library, as with
+ * <code>-z max-page-size=16384</code>, fixes.  The check reads the ELF header and program headers of each library,
+ * inflating just those of a compressed library.
+ */
+class NativeLibraryAlignmentCheck extends MasterToSlaveFileCallable<List<String>> {
+
+    private static final long serialVersionUID = 1;
+
+    static final int MAX_REPORTED_VIOLATIONS = 10;
+    /** the most of each library read for its headers, which come first in libraries from the usual linkers */
+    static final int MAX_HEADERS_SIZE = 64 * 1024;
+
+    private static final int ELF_MAGIC = 0x464c457f;
+    private static final int ELF_CLASS_64 = 2;
+    private static final int ELF_DATA_BIG_ENDIAN = 2;
+    private static final int ELF32_HEADER_SIZE = 52;
+    private static final int ELF64_HEADER_SIZE = 64;
+    private static final int PT_LOAD = 1;
+
+    private final int pageSize;
+
+    /**
+     * @param pageSize the page size in bytes
+     */
+    NativeLibraryAlignmentCheck(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    static boolean isNativeLibrary(@Nonnull String entryName) {
+        return entryName.startsWith("lib/") && entryName.endsWith(".so");
+    }
+
+    /**
+     * Check the native libraries of the given APK on its node, and log what keeps them from loading with the given
+     * page size.  The build goes on either way.
+     *
+     * @param apkName the name of the APK for the console log
+     * @return the number of violations
+     */
+    static int report(@Nonnull FilePath apk, @Nonnull String apkName, int pageSize, @Nonnull TaskListener listener)
+        throws IOException, InterruptedException {
+        NativeLibraryAlignmentCheck check = new NativeLibraryAlignmentCheck(pageSize);
+        List<String> violations = apk.act(check);
+        RemoteCallAccounting.recordReceived(apk, violations);
+        if (violations.isEmpty()) {
+            listener.getLogger().printf("[SignApksBuilder] native libraries of %s are aligned for %d KB pages%n", apkName, pageSize / 1024);
+            return 0;
+        }
+        listener.getLogger().printf("[SignApksBuilder] %d native library alignment problems in %s keep it from loading with %d KB pages:%n",
+            violations.size(), apkName, pageSize / 1024);
+        for (String violation : violations.subList(0, Math.min(violations.size(), MAX_REPORTED_VIOLATIONS))) {
+            listener.getLogger().printf("[SignApksBuilder]   %s%n", violation);
+        }
+        if (violations.size() > MAX_REPORTED_VIOLATIONS) {
+            listener.getLogger().printf("[SignApksBuilder]   and %d more%n", violations.size() - MAX_REPORTED_VIOLATIONS);
+        }
+        return violations.size();
+    }
+
+    /**
+     * @return a description of each violation in the APK of the given layout, read from the given channel
+     */
+    List<String> check(@Nonnull FileChannel in, @Nonnull ApkZipLayout layout) throws IOException {
+        List<String> violations = new ArrayList<>();
+        for (ApkZipLayout.Entry entry : layout.getEntries()) {
+            if (!isNativeLibrary(entry.name)) {
+                continue;
+            }
+            if (entry.isStored() && entry.dataOffset % pageSize != 0) {
+                violations.add(String.format("%s is stored at offset %d, not a multiple of %d; zipalign the APK for the page size",
+                    entry.name, entry.dataOffset, pageSize));
+            }
+            ByteBuffer headers = readHeaders(in, entry);
+            if (headers == null) {
+                violations.add(String.format("%s is compressed with unsupported method %d", entry.name, entry.method));
+                continue;
+            }
+            String violation = checkLoadSegments(entry.name, headers, pageSize);
+            if (violation != null) {
+                violations.add(violation);
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * @return the start of the library's data, uncompressed, or null if it is compressed with a method other than
+     * deflate
+     */
+    @CheckForNull
+    static ByteBuffer readHeaders(@Nonnull FileChannel in, @Nonnull ApkZipLayout.Entry entry) throws IOException {
+        int size = (int) Math.min(MAX_HEADERS_SIZE, entry.uncompressedSize);
+        if (entry.isStored()) {
+            ByteBuffer headers = ByteBuffer.allocate(size);
+            while (headers.hasRemaining()) {
+                if (in.read(headers, entry.dataOffset + headers.position()) < 0) {
+                    throw new IOException("unexpected end of APK in " + entry.name);
+                }
+            }
+            headers.flip();
+            return headers;
+        }
+        if (entry.method != ApkZipLayout.METHOD_DEFLATED) {
+            return null;
+        }
+        byte[] headers = new byte[size];
+        int inflated = 0;
+        ByteBuffer compressed = ByteBuffer.allocate(8192);
+        long position = entry.dataOffset;
+        long end = entry.dataOffset + entry.compressedSize;
+        Inflater inflater = new Inflater(true);
+        try {
+            while (inflated < size && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (position >= end) {
+                        break;
+                    }
+                    compressed.clear();
+                    compressed.limit((int) Math.min(compressed.capacity(), end - position));
+                    int read = in.read(compressed, position);
+                    if (read < 0) {
+                        throw new IOException("unexpected end of APK in " + entry.name);
+                    }
+                    position += read;
+                    inflater.setInput(compressed.array(), 0, read);
+                }
+                inflated += inflater.inflate(headers, inflated, size - inflated);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("corrupt compressed data in " + entry.name, e);
+        }
+        finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(headers, 0, inflated);
+    }
+
+    /**
+     * @param elf the start of the library
+     * @return a description of the first {@code PT_LOAD} segment aligned to less than a multiple of the page size,
+     * or of why the headers could not be read, or null if the segments are aligned
+     */
+    @CheckForNull
+    static String checkLoadSegments(@Nonnull String name, @Nonnull ByteBuffer elf, int pageSize) {
+        elf.order(ByteOrder.LITTLE_ENDIAN);
+        if (elf.limit() < ELF32_HEADER_SIZE || elf.getInt(0) != ELF_MAGIC) {
+            return name + " is not an ELF file";
+        }
+        boolean is64 = elf.get(4) == ELF_CLASS_64;
+        if (is64 && elf.limit() < ELF64_HEADER_SIZE) {
+            return name + " is not an ELF file";
+        }
+        if (elf.get(5) == ELF_DATA_BIG_ENDIAN) {
+            elf.order(ByteOrder.BIG_ENDIAN);
+        }
+        long programHeadersOffset = is64 ? elf.getLong(32) : elf.getInt(28) & 0xffffffffL;
+        int programHeaderSize = elf.getShort(is64 ? 54 : 42) & 0xffff;
+        int programHeaderCount = elf.getShort(is64 ? 56 : 44) & 0xffff;
+        for (int i = 0; i < programHeaderCount; i++) {
+            long offset = programHeadersOffset + (long) i * programHeaderSize;
+            if (offset < 0 || offset + programHeaderSize > elf.limit()) {
+                return String.format("%s has program headers past its first %d bytes, which were not checked", name, elf.limit());
+            }
+            if (elf.getInt((int) offset) != PT_LOAD) {
+                continue;
+            }
+            long align = is64 ? elf.getLong((int) offset + 48) : elf.getInt((int) offset + 28) & 0xffffffffL;
+            if (align < pageSize || align % pageSize != 0) {
+                return String.format("%s has a LOAD segment aligned to %d bytes, not a multiple of %d; relink it with -z max-page-size=%d",
+                    name, align, pageSize, pageSize);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> invoke(File apk, VirtualChannel channel) throws IOException, InterruptedException {
+        try (FileChannel in = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            return check(in, ApkZipLayout.read(in, apk.getPath()));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.annotation.Nonnull;
+
+
+/**
+ * A {@link DataSink} that writes the signed APK to a file through one pooled direct buffer.  Writing heap buffers
+ * straight to a file channel makes the JDK copy each into a temporary direct buffer as large as the write, so a
+ * multi-megabyte write from the signer costs as much direct memory again; this sink copies every write through its
+ * {@value #BUFFER_SIZE}-byte buffer instead, so signing holds no more direct memory than that however large the
+ * APK or its writes are.  The buffers come from a pool shared by the signing operations of the JVM.
+ * <p>
+ * The signer reads back what it wrote to compute the APK Signature Scheme v2 digests, so it must read the output
+ * through {@link #asDataSource}, which writes out the buffer before each read.
+ */
+class PooledBufferDataSink implements DataSink, AutoCloseable {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The direct buffers of the JVM's signing operations, kept for reuse up to {@value #MAX_POOLED} at once, as
+     * direct memory is freed only when the garbage collector gets to it.
+     */
+    static class Pool {
+        static final int MAX_POOLED = 8;
+
+        private static final Deque<ByteBuffer> pooled = new ArrayDeque<>();
+
+        static synchronized ByteBuffer acquire() {
+            ByteBuffer buf = pooled.poll();
+            return buf != null ? buf : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        static synchronized void release(ByteBuffer buf) {
+            buf.clear();
+            if (pooled.size() < MAX_POOLED) {
+                pooled.push(buf);
+            }
+        }
+
+        static synchronized int pooledCount() {
+            return pooled.size();
+        }
+    }
+
+    private final FileChannel out;
+    private ByteBuffer buf;
+    private long flushedSize;
+    private long peakDirectBytes;
+
+    /**
+     * @param out the channel of the empty output file, which the sink writes from the start with positional writes,
+     * so other users of the channel see no change in its position
+     */
+    PooledBufferDataSink(@Nonnull FileChannel out) {
+        this.out = out;
+    }
+
+    @Override
+    public void consume(byte[] data, int offset, int length) throws IOException {
+        consume(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public void consume(ByteBuffer data) throws IOException {
+        if (buf == null) {
+            buf = Pool.acquire();
+            peakDirectBytes = Math.max(peakDirectBytes, buf.capacity());
+        }
+        while (data.hasRemaining()) {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            int chunk = Math.min(buf.remaining(), data.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + chunk);
+            buf.put(slice);
+            data.position(data.position() + chunk);
+        }
+    }
+
+    /**
+     * Write out what the buffer holds.
+     */
+    void flush() throws IOException {
+        if (buf == null || buf.position() == 0) {
+            return;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            flushedSize += out.write(buf, flushedSize);
+        }
+        buf.clear();
+    }
+
+    /**
+     * @return the number of bytes consumed so far
+     */
+    long size() {
+        return flushedSize + (buf == null ? 0 : buf.position());
+    }
+
+    /**
+     * @return the most direct memory the sink held at once
+     */
+    long getPeakDirectBytes() {
+        return peakDirectBytes;
+    }
+
+    /**
+     * @return a view of what the sink has consumed, read from the given data source of the output file after writing
+     * out the buffer
+     */
+    DataSource asDataSource(@Nonnull DataSource outputFile) {
+        return new FlushingDataSource(outputFile, 0, -1);
+    }
+
+    /**
+     * Write out the buffer and return it to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            if (buf != null) {
+                Pool.release(buf);
+                buf = null;
+            }
+        }
+    }
+
+    private class FlushingDataSource implements DataSource {
+        private final DataSource outputFile;
+        private final long offset;
+        private final long size;
+
+        /**
+         * @param size the size of the view, or -1 for all the sink has consumed
+         */
+        FlushingDataSource(DataSource outputFile, long offset, long size) {
+            this.outputFile = outputFile;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size >= 0 ? size : PooledBufferDataSink.this.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            checkRange(offset, size);
+            flush();
+            outputFile.feed(this.offset + offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            checkRange(offset, size);
+            flush();
+            return outputFile.getByteBuffer(this.offset + offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            checkRange(offset, size);
+            flush();
+            outputFile.copyTo(this.offset + offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            checkRange(offset, size);
+            return new FlushingDataSource(outputFile, this.offset + offset, size);
+        }
+
+        private void checkRange(long offset, long size) {
+            if (offset < 0 || size < 0 || offset + size > size()) {
+                throw new IndexOutOfBoundsException("offset " + offset + ", size " + size + ", source size " + size());
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.DelegatingCallable;
+
+
+/**
+ * Counts the remote calls a {@link SignApksBuilder} step makes, with estimates of the bytes each call sends
+ * and receives, by {@link SigningMetrics.Stage}.  The step attaches the accounting to its thread; while it is
+ * attached, {@link CountingWrapperFactory} counts every remote {@link FilePath} operation the thread makes, and
+ * {@link SigningMetrics.Timing} attributes the operations to the stage it is timing.  Calls outside any stage,
+ * e.g., checking that an output directory exists, count as {@value #OTHER_PHASE}.
+ * <p>
+ * Sizes are estimates, because remoting does not report the bytes of a call.  The bytes a call sends are estimated
+ * without serializing its payload: the plugin's callables estimate the fields they carry as an {@link EstimatedPayload},
+ * which keeps key material out of the estimate, and other callables count as {@value #CALL_OVERHEAD_BYTES} bytes.
+ * Return values are only counted for the plugin's own callables, through {@link #recordReceived(FilePath, Object)},
+ * by serializing them again with listeners and file paths replaced by placeholders.
+ */
+class RemoteCallAccounting {
+
+    static final String OTHER_PHASE = "other";
+
+    /** the class descriptors and remoting headers of a call, for callables that do not estimate their payload */
+    static final long CALL_OVERHEAD_BYTES = 256;
+
+    /**
+     * A remote call payload that estimates the bytes of its own fields, so the accounting never serializes it.
+     */
+    interface EstimatedPayload {
+        /**
+         * @return the estimated serialized bytes of the fields this payload carries, without the
+         * {@link #CALL_OVERHEAD_BYTES} of the call itself
+         */
+        long estimatePayloadBytes();
+    }
+
+    /**
+     * The field of core's {@link FilePath} callable wrapper that carries the plugin's callable, by wrapper class, or
+     * null for other callables.  Core does not expose it.
+     */
+    private static final ClassValue<Field> WRAPPED_CALLABLE = new ClassValue<Field>() {
+        @Override
+        protected Field computeValue(Class<?> type) {
+            try {
+                Field callable = type.getDeclaredField("callable");
+                callable.setAccessible(true);
+                return callable;
+            }
+            catch (NoSuchFieldException | RuntimeException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final ThreadLocal<Scope> scope = new ThreadLocal<>();
+
+    private static final class Scope {
+        final RemoteCallAccounting accounting;
+        final SigningMetrics.Stage stage;
+        final Scope outer;
+
+        Scope(RemoteCallAccounting accounting, @CheckForNull SigningMetrics.Stage stage, @CheckForNull Scope outer) {
+            this.accounting = accounting;
+            this.stage = stage;
+            this.outer = outer;
+        }
+    }
+
+    static final class PhaseCounts {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+    }
+
+    private final Map<String, PhaseCounts> phases = new LinkedHashMap<>();
+
+    RemoteCallAccounting() {
+        for (SigningMetrics.Stage stage : SigningMetrics.Stage.values()) {
+            phases.put(stage.metricName, new PhaseCounts());
+        }
+        phases.put(OTHER_PHASE, new PhaseCounts());
+    }
+
+    /**
+     * Count the remote calls of the current thread in this accounting, until {@link #detach()}.
+     */
+    void attach() {
+        scope.set(new Scope(this, null, null));
+    }
+
+    static void detach() {
+        scope.remove();
+    }
+
+    @CheckForNull
+    static RemoteCallAccounting current() {
+        Scope current = scope.get();
+        return current == null ? null : current.accounting;
+    }
+
+    static void enterStage(SigningMetrics.Stage stage) {
+        Scope current = scope.get();
+        if (current != null) {
+            scope.set(new Scope(current.accounting, stage, current));
+        }
+    }
+
+    static void exitStage(SigningMetrics.Stage stage) {
+        Scope current = scope.get();
+        if (current != null && current.stage == stage && current.outer != null) {
+            scope.set(current.outer);
+        }
+    }
+
+    private static PhaseCounts currentPhase() {
+        Scope current = scope.get();
+        if (current == null) {
+            return null;
+        }
+        return current.accounting.phases.get(current.stage == null ? OTHER_PHASE : current.stage.metricName);
+    }
+
+    private static void recordCall(@CheckForNull Object payload) {
+        PhaseCounts phase = currentPhase();
+        if (phase != null) {
+            phase.calls.incrementAndGet();
+            phase.bytesSent.addAndGet(estimatePayloadBytes(payload));
+        }
+    }
+
+    /**
+     * Count a remote call of the current thread that does not go through {@link FilePath#act(FilePath.FileCallable)},
+     * e.g., launching a process, if the given workspace path is remote.
+     */
+    static void recordCall(FilePath target, @CheckForNull Object payload) {
+        if (target.isRemote()) {
+            recordCall(payload);
+        }
+    }
+
+    /**
+     * Count the return value of a remote call of the current thread, if the given workspace path is remote.
+     */
+    static void recordReceived(FilePath target, @CheckForNull Object result) {
+        PhaseCounts phase = currentPhase();
+        if (phase != null && target.isRemote()) {
+            phase.bytesReceived.addAndGet(estimateSerializedSize(result));
+        }
+    }
+
+    Map<String, PhaseCounts> getPhases() {
+        return phases;
+    }
+
+    long getTotalCalls() {
+        long total = 0;
+        for (PhaseCounts phase : phases.values()) {
+            total += phase.calls.get();
+        }
+        return total;
+    }
+
+    void report(SigningMetrics metrics) {
+        for (Map.Entry<String, PhaseCounts> phase : phases.entrySet()) {
+            PhaseCounts counts = phase.getValue();
+            if (counts.calls.get() > 0 || counts.bytesReceived.get() > 0) {
+                metrics.recordRemoteCalls(phase.getKey(), counts.calls.get(), counts.bytesSent.get(), counts.bytesReceived.get());
+            }
+        }
+    }
+
+    /**
+     * @return a one-line summary of the phases that made remote calls
+     */
+    String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, PhaseCounts> phase : phases.entrySet()) {
+            PhaseCounts counts = phase.getValue();
+            if (counts.calls.get() == 0) {
+                continue;
+            }
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append(String.format("%s %d calls, %,d bytes sent, %,d bytes received",
+                phase.getKey(), counts.calls.get(), counts.bytesSent.get(), counts.bytesReceived.get()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Estimate the bytes a remote call sends from what it carries, without serializing it.
+     */
+    static long estimatePayloadBytes(@CheckForNull Object payload) {
+        if (payload == null) {
+            return 0;
+        }
+        if (payload instanceof EstimatedPayload) {
+            return CALL_OVERHEAD_BYTES + ((EstimatedPayload) payload).estimatePayloadBytes();
+        }
+        if (payload instanceof CharSequence) {
+            return ((CharSequence) payload).length();
+        }
+        if (payload instanceof Collection) {
+            long bytes = 0;
+            for (Object element : (Collection<?>) payload) {
+                bytes += estimatePayloadBytes(element);
+            }
+            return bytes;
+        }
+        if (payload instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) payload;
+            return estimatePayloadBytes(map.keySet()) + estimatePayloadBytes(map.values());
+        }
+        Object wrapped = unwrap(payload);
+        return wrapped == payload ? CALL_OVERHEAD_BYTES : estimatePayloadBytes(wrapped);
+    }
+
+    private static Object unwrap(Object callable) {
+        Field field = WRAPPED_CALLABLE.get(callable.getClass());
+        if (field == null) {
+            return callable;
+        }
+        try {
+            Object wrapped = field.get(callable);
+            return wrapped == null ? callable : wrapped;
+        }
+        catch (IllegalAccessException e) {
+            return callable;
+        }
+    }
+
+    static long estimateSerializedSize(@CheckForNull Object payload) {
+        if (payload == null) {
+            return 0;
+        }
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new PlaceholderObjectOutputStream(counter)) {
+            out.writeObject(payload);
+        }
+        catch (IOException | RuntimeException e) {
+            // not serializable outside a channel; count what was written before the failure
+        }
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Replaces the objects that only serialize within a remoting call with small stand-ins of similar size.
+     */
+    private static final class PlaceholderObjectOutputStream extends ObjectOutputStream {
+        PlaceholderObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj instanceof TaskListener || obj instanceof OutputStream) {
+                // remoting sends an export table reference
+                return 0L;
+            }
+            if (obj instanceof FilePath) {
+                return ((FilePath) obj).getRemote();
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Counts the remote {@link FilePath} operations of threads with an attached accounting.
+     */
+    @Extension
+    @SuppressWarnings("deprecation")
+    public static class CountingWrapperFactory extends FilePath.FileCallableWrapperFactory {
+        @Override
+        public <T> DelegatingCallable<T, IOException> wrap(DelegatingCallable<T, IOException> callable) {
+            recordCall(callable);
+            return callable;
+        }
+    }
+}
@@ -13,6 +13,9 @@
 package org.jenkinsci.plugins.androidsigning;
 
 import com.android.apksig.ApkSigner;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
@@ -27,11 +30,17 @@ import org.kohsuke.stapler.QueryParameter;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -42,7 +51,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import hudson.AbortException;
@@ -61,6 +73,7 @@ import hudson.remoting.VirtualChannel;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.tasks.Fingerprinter;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -73,6 +86,9 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
 
     static final List<DomainRequirement> NO_REQUIREMENTS = Collections.emptyList();
     static final String BUILDER_DIR = SignApksBuilder.class.getSimpleName() + "-out";
+    static final String VARIANTS_DIR_NAME = "variants";
+    static final int STAGE_QUEUE_CAPACITY = 2;
+    static final String ZIPALIGN_DIR_NAME = "zipalign";
 
     static List<SignApksBuilder> singleEntryBuildersFromEntriesOfBuilder(SignApksBuilder oldBuilder) {
         List<SignApksBuilder> signers = new ArrayList<>(oldBuilder.getEntries().size());
@@ -100,6 +116,8 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
 
     private String androidHome;
     private String zipalignPath;
+    private String distributeToLabel;
+    private String variantOverlays;
     private String keyStoreId;
     private String keyAlias;
     private String apksToSign;
@@ -107,8 +125,20 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
     private boolean archiveSignedApks = true;
     private boolean archiveUnsignedApks = false;
     private boolean skipZipalign = false;
+    private boolean archiveImmediately = false;
+    private boolean archiveOnly = false;
+    private boolean deduplicateArchives = false;
+    private boolean generateDeltaPatches = false;
+    private boolean recordChecksums = false;
+    private boolean flightRecording = false;
+    private boolean overlapStages = false;
+    private boolean stageApks = false;
+    private String signingMemoryLimit;
+    private boolean zipalignOnlyUnaligned = false;
+    private String nativeLibraryPageSize;
 
     transient private List<Apk> entries;
+    transient private boolean journaled;
 
     @Deprecated
     public SignApksBuilder(List<Apk> entries) {
@@ -157,6 +187,15 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
         return entries;
     }
 
+    /**
+     * Keep a {@link SigningJournal} of the APKs this step signs, and skip the APKs it shows were signed earlier in the
+     * build.  Only the Pipeline step sets this, as only a Pipeline runs a step again in the same build, when it retries
+     * the step or resumes it after a restart; the journal forces a line to disk for each APK.
+     */
+    void setJournaled(boolean x) {
+        journaled = x;
+    }
+
     @DataBoundSetter
     public void setAndroidHome(String x) {
         androidHome = StringUtils.stripToNull(x);
@@ -175,6 +214,24 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
         return zipalignPath;
     }
 
+    @DataBoundSetter
+    public void setDistributeToLabel(String x) {
+        distributeToLabel = StringUtils.stripToNull(x);
+    }
+
+    public String getDistributeToLabel() {
+        return distributeToLabel;
+    }
+
+    @DataBoundSetter
+    public void setVariantOverlays(String x) {
+        variantOverlays = StringUtils.stripToNull(x);
+    }
+
+    public String getVariantOverlays() {
+        return variantOverlays;
+    }
+
     @DataBoundSetter
     public void setKeyStoreId(String x) {
         keyStoreId = x;
@@ -238,6 +295,105 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
         return archiveUnsignedApks;
     }
 
+    @DataBoundSetter
+    public void setArchiveImmediately(boolean x) {
+        archiveImmediately = x;
+    }
+
+    public boolean getArchiveImmediately() {
+        return archiveImmediately;
+    }
+
+    @DataBoundSetter
+    public void setArchiveOnly(boolean x) {
+        archiveOnly = x;
+    }
+
+    public boolean getArchiveOnly() {
+        return archiveOnly;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateArchives(boolean x) {
+        deduplicateArchives = x;
+    }
+
+    public boolean getDeduplicateArchives() {
+        return deduplicateArchives;
+    }
+
+    @DataBoundSetter
+    public void setGenerateDeltaPatches(boolean x) {
+        generateDeltaPatches = x;
+    }
+
+    public boolean getGenerateDeltaPatches() {
+        return generateDeltaPatches;
+    }
+
+    @DataBoundSetter
+    public void setRecordChecksums(boolean x) {
+        recordChecksums = x;
+    }
+
+    public boolean getRecordChecksums() {
+        return recordChecksums;
+    }
+
+    @DataBoundSetter
+    public void setFlightRecording(boolean x) {
+        flightRecording = x;
+    }
+
+    public boolean getFlightRecording() {
+        return flightRecording;
+    }
+
+    @DataBoundSetter
+    public void setOverlapStages(boolean x) {
+        overlapStages = x;
+    }
+
+    public boolean getOverlapStages() {
+        return overlapStages;
+    }
+
+    @DataBoundSetter
+    public void setStageApks(boolean x) {
+        stageApks = x;
+    }
+
+    public boolean getStageApks() {
+        return stageApks;
+    }
+
+    @DataBoundSetter
+    public void setSigningMemoryLimit(String x) {
+        signingMemoryLimit = StringUtils.stripToNull(x);
+    }
+
+    public String getSigningMemoryLimit() {
+        return signingMemoryLimit;
+    }
+
+    @DataBoundSetter
+    public void setZipalignOnlyUnaligned(boolean x) {
+        zipalignOnlyUnaligned = x;
+    }
+
+    public boolean getZipalignOnlyUnaligned() {
+        return zipalignOnlyUnaligned;
+    }
+
+    @DataBoundSetter
+    public void setNativeLibraryPageSize(String x) {
+        nativeLibraryPageSize = StringUtils.stripToNull(x);
+    }
+
+    public String getNativeLibraryPageSize() {
+        return nativeLibraryPageSize;
+    }
+
     @Override
     public void perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace, @Nonnull Launcher launcher, @Nonnull TaskListener listener) throws InterruptedException, IOException {
         if (isIntermediateFailure(run)) {
@@ -253,6 +409,96 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             return;
         }
 
+        SigningTrace trace = new SigningTrace(run.getFullDisplayName());
+        SigningTrace.Span performSpan = trace.start("SignApksBuilder.perform", null)
+            .attribute("keyStoreId", getKeyStoreId())
+            .attribute("apksToSign", getApksToSign());
+        RemoteCallAccounting remoteCalls = new RemoteCallAccounting();
+        remoteCalls.attach();
+        Long flightRecordingId = getFlightRecording() ? startFlightRecording(workspace, listener) : null;
+        try (SigningScratch scratch = SigningScratch.forWorkspace(workspace, workspace.child(BUILDER_DIR).child(ZIPALIGN_DIR_NAME), listener)) {
+            signApks(run, workspace, launcher, listener, scratch, trace, performSpan);
+        }
+        finally {
+            if (flightRecordingId != null) {
+                archiveFlightRecording(flightRecordingId, run, workspace, launcher, listener);
+            }
+            RemoteCallAccounting.detach();
+            reportRemoteCalls(remoteCalls, listener);
+            performSpan.end();
+            try {
+                trace.writeOtlpJson(new File(run.getRootDir(), SigningTrace.TRACE_FILE_NAME));
+            }
+            catch (IOException e) {
+                listener.getLogger().println("[SignApksBuilder] error writing signing trace, but this does not fail your build:");
+                e.printStackTrace(listener.getLogger());
+            }
+        }
+    }
+
+    private void reportRemoteCalls(RemoteCallAccounting remoteCalls, TaskListener listener) {
+        if (remoteCalls.getTotalCalls() == 0) {
+            return;
+        }
+        listener.getLogger().printf("[SignApksBuilder] remote calls: %s%n", remoteCalls.summary());
+        remoteCalls.report(SigningMetrics.get());
+    }
+
+    /**
+     * Start a flight recording in the JVM of the given workspace, unless that is the controller, whose recording
+     * would show the signing of every other build there.
+     */
+    private Long startFlightRecording(FilePath workspace, TaskListener listener) throws InterruptedException {
+        if (!workspace.isRemote()) {
+            listener.getLogger().println("[SignApksBuilder] not recording the controller; flight recording only runs when signing on an agent");
+            return null;
+        }
+        try {
+            SigningFlightRecorder.StartRecording startRecording = new SigningFlightRecorder.StartRecording();
+            RemoteCallAccounting.recordCall(workspace, startRecording);
+            long recordingId = workspace.act(startRecording);
+            RemoteCallAccounting.recordReceived(workspace, recordingId);
+            listener.getLogger().printf("[SignApksBuilder] started flight recording %d on %s%n", recordingId, workspace.getRemote());
+            return recordingId;
+        }
+        catch (IOException e) {
+            listener.getLogger().println("[SignApksBuilder] error starting flight recording, but this does not fail your build:");
+            e.printStackTrace(listener.getLogger());
+            return null;
+        }
+    }
+
+    /**
+     * Stop the flight recording in the JVM of the given workspace, dump it in the workspace, and archive it.
+     */
+    private void archiveFlightRecording(long recordingId, Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener)
+        throws InterruptedException {
+        String archivePath = BUILDER_DIR + "/" + getKeyStoreId() + "/" + getKeyAlias() + "/" + SigningFlightRecorder.RECORDING_FILE_NAME;
+        FilePath recording = workspace.child(archivePath);
+        try {
+            SigningFlightRecorder.StopRecording stopRecording = new SigningFlightRecorder.StopRecording(recordingId, recording.getRemote());
+            RemoteCallAccounting.recordCall(workspace, stopRecording);
+            boolean stopped = workspace.act(stopRecording);
+            RemoteCallAccounting.recordReceived(workspace, stopped);
+            if (!stopped) {
+                listener.getLogger().printf("[SignApksBuilder] flight recording %d is gone; nothing to archive%n", recordingId);
+                return;
+            }
+            listener.getLogger().printf("[SignApksBuilder] archiving flight recording %s%n", archivePath);
+            run.pickArtifactManager().archive(workspace, launcher, BuildListenerAdapter.wrap(listener), Collections.singletonMap(archivePath, archivePath));
+            recording.delete();
+        }
+        catch (IOException e) {
+            listener.getLogger().println("[SignApksBuilder] error archiving flight recording, but this does not fail your build:");
+            e.printStackTrace(listener.getLogger());
+        }
+    }
+
+    private void signApks(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, SigningScratch scratch, SigningTrace trace,
+        SigningTrace.Span performSpan) throws InterruptedException, IOException {
+        long performStart = System.nanoTime();
+        SigningMetrics metrics = SigningMetrics.get();
+        SigningMetrics.Timing environmentTiming = metrics.start(SigningMetrics.Stage.ENVIRONMENT, trace, performSpan);
         ArgumentListBuilder command = new ArgumentListBuilder().add("echo").addQuoted("resolving effective environment");
         command.toWindowsCommand();
         if (!launcher.isUnix()) {
@@ -260,6 +506,7 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
         }
         // force the Custom Tools plugin to inject the custom tools env vars via its DecoratedLauncher
         Launcher.ProcStarter getEffectiveEnv = launcher.launch().pwd(workspace).cmds(command);
+        RemoteCallAccounting.recordCall(workspace, command.toList());
         try {
             getEffectiveEnv.join();
         }
@@ -280,14 +527,16 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             env.overrideExpandingAll(((AbstractBuild<?,?>) run).getBuildVariables());
         }
         env.overrideAll(shellEnv);
+        environmentTiming.stop();
 
         FilePath builderDir = workspace.child(BUILDER_DIR);
-        FilePath zipalignDir = builderDir.child("zipalign");
-        zipalignDir.mkdirs();
 
-        ZipalignTool zipalign = new ZipalignTool(env, workspace, listener.getLogger(), androidHome, zipalignPath);
-        Map<String,String> apksToArchive = new LinkedHashMap<>();
+        int pageSizeKb = ZipalignTool.parsePageSizeKb(getNativeLibraryPageSize());
+        int pageSize = pageSizeKb * 1024;
+        boolean checkNativeLibraries = getNativeLibraryPageSize() != null;
+        ZipalignTool zipalign = new ZipalignTool(env, workspace, listener.getLogger(), androidHome, zipalignPath, pageSizeKb);
 
+        SigningMetrics.Timing keyStoreTiming = metrics.start(SigningMetrics.Stage.KEY_STORE_DECODE, trace, performSpan);
         StandardCertificateCredentials keyStoreCredential = getKeystore(getKeyStoreId(), run.getParent());
         SigningComponents signingParams;
         try {
@@ -299,7 +548,16 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             e.printStackTrace(listener.getLogger());
             throw new AbortException(message);
         }
+        keyStoreTiming.stop();
+        String signerCertSha256;
+        try {
+            signerCertSha256 = signingParams.signerCertSha256();
+        }
+        catch (GeneralSecurityException e) {
+            throw new AbortException("error reading signer certificate from key store credential " + keyStoreCredential.getId() + ": " + e.getMessage());
+        }
 
+        SigningMetrics.Timing scanTiming = metrics.start(SigningMetrics.Stage.WORKSPACE_SCAN, trace, performSpan);
         Set<FilePath> matchedApks = new TreeSet<>(Comparator.comparing(FilePath::getRemote));
         String[] globs = getSelectionGlobs(getApksToSign());
         for (String glob : globs) {
@@ -309,6 +567,41 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             }
             matchedApks.addAll(Arrays.asList(globMatch));
         }
+        scanTiming.stop();
+
+        if (!skipZipalign) {
+            SigningMetrics.Timing discoveryTiming = metrics.start(SigningMetrics.Stage.ZIPALIGN_DISCOVERY, trace, performSpan);
+            zipalign.findZipalign();
+            discoveryTiming.stop();
+        }
+
+        // variants come out of the splicer aligned, so only their base APKs need zipalign
+        boolean alignApks = !skipZipalign;
+        SplicedVariants variants = null;
+        if (getVariantOverlays() != null) {
+            variants = new SplicedVariants(matchedApks, workspace, workspace.child(getVariantOverlays()), builderDir.child(VARIANTS_DIR_NAME), pageSize,
+                baseApk -> {
+                    if (skipZipalign) {
+                        return new ZipalignStage.Aligned(baseApk, baseApk, -1);
+                    }
+                    FilePath alignedBase = scratch.createTempFile("aligned-" + baseApk.getBaseName() + "-", ".apk", baseApk.length());
+                    try {
+                        // the base is aligned once for all its variants, so its span belongs to the step rather than an APK
+                        return new ZipalignStage.Aligned(baseApk, alignedBase, zipalign(zipalign, baseApk, alignedBase, workspace, launcher, listener, trace, performSpan));
+                    }
+                    catch (IOException | InterruptedException | RuntimeException e) {
+                        deleteQuietly(alignedBase, listener);
+                        throw e;
+                    }
+                }, listener);
+            matchedApks = variants.getVariants();
+            alignApks = false;
+        }
+        // with the alignment check, zipalign runs on the APKs that need it even when it is otherwise skipped
+        boolean checkAlignment = getZipalignOnlyUnaligned() && getVariantOverlays() == null;
+        if (checkAlignment) {
+            alignApks = true;
+        }
 
         final String archivePrefix = BUILDER_DIR + "/" + getKeyStoreId() + "/" + getKeyAlias() + "/";
 
@@ -316,64 +609,527 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             signedApkMapping = new SignedApkMappingStrategy.UnsignedApkSiblingMapping();
         }
 
-        for (FilePath unsignedApk : matchedApks) {
-            unsignedApk = unsignedApk.absolutize();
+        if (getArchiveOnly() && !getArchiveSignedApks()) {
+            listener.getLogger().println("[SignApksBuilder] ignoring archive-only output because archiving signed APKs is disabled");
+        }
+        boolean removeSignedApks = getArchiveOnly() && getArchiveSignedApks();
+        long memoryLimitBytes = getSigningMemoryLimit() == null ? 0 : SigningMemoryLimit.parseLimit(getSigningMemoryLimit());
+
+        ApkBlobStore blobStore = getDeduplicateArchives() ? ApkBlobStore.forJenkins() : null;
+        ApkArchiver archiver = new ApkArchiver(run, workspace, launcher, listener, getArchiveImmediately() || getOverlapStages(), blobStore, trace,
+            getOverlapStages() ? STAGE_QUEUE_CAPACITY : 0);
+        Map<String, String> fingerprints = new LinkedHashMap<>();
+        SigningReportAction report = SigningReportAction.forRun(run);
+        SigningJournal journal = journaled ? SigningJournal.forRun(run) : null;
+        // the zipalign stage aligns APKs before the signing loop reaches them, so it starts their spans
+        Map<String, SigningTrace.Span> apkSpans = new ConcurrentHashMap<>();
+        ZipalignStage zipalignStage = null;
+        ApkStager stager = null;
+        try {
+            Map<String, DigestingDataSink.Digests> resumed = journal == null ? Collections.emptyMap() :
+                resumeFromJournal(journal, matchedApks, workspace, listener);
+            Map<String, DistributedSigning.SignedApk> distributed = Collections.emptyMap();
+            if (getDistributeToLabel() != null) {
+                Map<FilePath, FilePath> destinations = new LinkedHashMap<>();
+                for (FilePath unsignedApk : matchedApks) {
+                    unsignedApk = unsignedApk.absolutize();
+                    if (!resumed.containsKey(unsignedApk.getRemote())) {
+                        destinations.put(unsignedApk, signedApkMapping.destinationForUnsignedApk(unsignedApk, workspace));
+                    }
+                }
+                if (variants != null) {
+                    // the agents copy their APKs from the workspace
+                    variants.spliceAll(destinations.keySet());
+                }
+                distributed = new DistributedSigning(getDistributeToLabel(), signingParams, !alignApks, checkAlignment, pageSizeKb, checkNativeLibraries, androidHome, zipalignPath,
+                    getRecordChecksums(), memoryLimitBytes, run.getFullDisplayName(), listener, trace,
+                    apk -> startApkSpan(apkSpans, apk, workspace, trace, performSpan)).signAll(destinations,
+                    estimateSigningTimes(run, destinations.keySet(), workspace, listener));
+            }
+            List<FilePath> apksToSignHere = new ArrayList<>();
+            for (FilePath unsignedApk : matchedApks) {
+                unsignedApk = unsignedApk.absolutize();
+                if (!distributed.containsKey(unsignedApk.getRemote()) && !resumed.containsKey(unsignedApk.getRemote())) {
+                    apksToSignHere.add(unsignedApk);
+                }
+            }
+            if (getStageApks() && !scratch.hasScratchDir()) {
+                listener.getLogger().println("[SignApksBuilder] not staging APKs because the node has no scratch directory for APK signing");
+            }
+            else if (getStageApks() && !apksToSignHere.isEmpty()) {
+                if (variants != null) {
+                    // the stager copies the next APK while the current one signs
+                    variants.spliceAll(apksToSignHere);
+                }
+                stager = new ApkStager(apksToSignHere, scratch, "SignApksBuilder stager for " + run.getFullDisplayName(), listener);
+            }
+            long stagesStart = System.nanoTime();
+            if (getOverlapStages() && alignApks) {
+                ApkStager alignStager = stager;
+                zipalignStage = new ZipalignStage(apksToSignHere, STAGE_QUEUE_CAPACITY, unsignedApk -> {
+                    SigningTrace.Span apkSpan = startApkSpan(apkSpans, unsignedApk, workspace, trace, performSpan);
+                    FilePath inputApk = alignStager == null ? unsignedApk : alignStager.take(unsignedApk);
+                    boolean handedOver = false;
+                    try {
+                        if (checkAlignment && !ZipAlignmentCheck.needsZipalign(inputApk, relativeToWorkspace(workspace, unsignedApk), pageSize, listener)) {
+                            handedOver = true;
+                            return new ZipalignStage.Aligned(unsignedApk, inputApk, -1);
+                        }
+                        FilePath alignedApk = scratch.createTempFile("aligned-" + unsignedApk.getBaseName() + "-", ".apk", unsignedApk.length());
+                        try (SigningConcurrencyLimiter.Permit permit = SigningConcurrencyLimiter.acquire(workspace, listener)) {
+                            return new ZipalignStage.Aligned(unsignedApk, alignedApk, zipalign(zipalign, inputApk, alignedApk, workspace, launcher, listener, trace, apkSpan));
+                        }
+                        catch (IOException | InterruptedException | RuntimeException e) {
+                            deleteQuietly(alignedApk, listener);
+                            throw e;
+                        }
+                    }
+                    finally {
+                        if (inputApk != unsignedApk && !handedOver) {
+                            deleteQuietly(inputApk, listener);
+                        }
+                    }
+                }, "SignApksBuilder zipalign stage for " + run.getFullDisplayName(), listener);
+            }
+            SigningLoop loop = new SigningLoop(workspace, launcher, listener, scratch, trace, metrics, zipalign, signingParams, signerCertSha256,
+                alignApks, checkAlignment, pageSize, checkNativeLibraries, memoryLimitBytes, variants, stager, zipalignStage, journal, report, archiver,
+                archivePrefix, removeSignedApks, fingerprints);
+            for (FilePath unsignedApk : matchedApks) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                unsignedApk = unsignedApk.absolutize();
+                SigningTrace.Span apkSpan = startApkSpan(apkSpans, unsignedApk, workspace, trace, performSpan);
+                loop.signAndArchive(unsignedApk, apkSpan, distributed.get(unsignedApk.getRemote()), resumed.get(unsignedApk.getRemote()));
+                apkSpan.end();
+            }
 
-            FilePath alignedApk = zipalignDir.createTempFile("aligned-" + unsignedApk.getBaseName() + "-", ".apk");
-            FilePath signedApk = signedApkMapping.destinationForUnsignedApk(unsignedApk, workspace);
+            listener.getLogger().println("[SignApksBuilder] finished signing APKs");
 
-            if (skipZipalign) {
-                listener.getLogger().printf("[SignApksBuilder] skipping zipalign for unsigned apk %s", unsignedApk);
-                alignedApk = unsignedApk;
+            archiver.finish(performSpan);
+            if (zipalignStage != null) {
+                reportStageUtilization(System.nanoTime() - stagesStart, zipalignStage, loop.getSignBusyNanos(), archiver, listener);
             }
-            else {
-                ArgumentListBuilder zipalignCommand = zipalign.commandFor(unsignedApk.getRemote(), alignedApk.getRemote());
-                listener.getLogger().printf("[SignApksBuilder] %s%n", zipalignCommand);
-                int zipalignResult = launcher.launch()
-                    .cmds(zipalignCommand)
-                    .pwd(workspace)
-                    .stdout(listener)
-                    .stderr(listener.getLogger())
-                    .join();
-
-                if (zipalignResult != 0) {
-                    listener.fatalError("[SignApksBuilder] zipalign failed: exit code %d", zipalignResult);
-                    throw new AbortException(String.format("zipalign failed on APK %s: exit code %d", unsignedApk, zipalignResult));
-                }
+            if (stager != null) {
+                stager.report();
             }
+        }
+        finally {
+            if (variants != null) {
+                variants.close();
+            }
+            if (zipalignStage != null) {
+                zipalignStage.close();
+            }
+            if (stager != null) {
+                stager.close();
+            }
+            archiver.close();
+        }
 
-            String alignedRelName = relativeToWorkspace(workspace, alignedApk);
-            String signedRelName = relativeToWorkspace(workspace, signedApk);
+        if (!fingerprints.isEmpty()) {
+            recordFingerprints(run, fingerprints, listener);
+        }
+        report.addDuration(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - performStart));
+    }
 
-            if (!alignedApk.exists()) {
-                throw new AbortException(String.format("aligned APK does not exist: %s", alignedRelName));
+    /**
+     * @return the estimated time to align and sign each of the given APKs, from the job's earlier builds, or empty
+     * when no earlier build signed any APKs
+     */
+    private Map<FilePath, Long> estimateSigningTimes(Run<?, ?> run, Set<FilePath> unsignedApks, FilePath workspace, TaskListener listener)
+        throws IOException, InterruptedException {
+        SigningCostModel costs = SigningCostModel.fromHistory(run);
+        if (costs.isEmpty()) {
+            listener.getLogger().println("[SignApksBuilder] no signing times from earlier builds; balancing agents by APK size");
+            return Collections.emptyMap();
+        }
+        Map<FilePath, Long> estimates = new LinkedHashMap<>();
+        for (FilePath unsignedApk : unsignedApks) {
+            estimates.put(unsignedApk, costs.estimateMillis(relativeToWorkspace(workspace, unsignedApk), unsignedApk.length()));
+        }
+        listener.getLogger().printf("[SignApksBuilder] estimated signing times of %d APKs from %d earlier builds%n", estimates.size(), costs.getBuilds());
+        return estimates;
+    }
+
+    /**
+     * @return the span of the given APK, started the first time it is asked for, by the zipalign stage or the
+     * signing loop
+     */
+    private SigningTrace.Span startApkSpan(Map<String, SigningTrace.Span> apkSpans, FilePath unsignedApk, FilePath workspace, SigningTrace trace,
+        SigningTrace.Span performSpan) throws IOException, InterruptedException {
+        SigningTrace.Span apkSpan = apkSpans.get(unsignedApk.getRemote());
+        if (apkSpan == null) {
+            SigningTrace.Span started = trace.start("apk", performSpan).attribute("apk", relativeToWorkspace(workspace, unsignedApk));
+            apkSpan = apkSpans.putIfAbsent(unsignedApk.getRemote(), started);
+            if (apkSpan == null) {
+                apkSpan = started;
             }
+        }
+        return apkSpan;
+    }
 
-            listener.getLogger().printf("[SignApksBuilder] signing APK %s%n", alignedRelName);
+    /**
+     * Align the unsigned APK to the aligned APK with zipalign.
+     *
+     * @return how long zipalign took
+     */
+    private long zipalign(ZipalignTool zipalign, FilePath unsignedApk, FilePath alignedApk, FilePath workspace, Launcher launcher,
+        TaskListener listener, SigningTrace trace, SigningTrace.Span traceParent) throws IOException, InterruptedException {
+        ArgumentListBuilder zipalignCommand = zipalign.commandFor(unsignedApk.getRemote(), alignedApk.getRemote());
+        listener.getLogger().printf("[SignApksBuilder] %s%n", zipalignCommand);
+        SigningMetrics.Timing zipalignTiming = SigningMetrics.get().start(SigningMetrics.Stage.ZIPALIGN, trace, traceParent);
+        RemoteCallAccounting.recordCall(workspace, zipalignCommand.toList());
+        SigningFlightRecorder.Event zipalignEvent = SigningFlightRecorder.begin(SigningFlightRecorder.EventType.ZIPALIGN_WAIT, unsignedApk.getRemote(), unsignedApk.length());
+        int zipalignResult = launcher.launch().cmds(zipalignCommand).pwd(workspace).stdout(listener).stderr(listener.getLogger()).join();
+        zipalignEvent.commit();
+
+        if (zipalignResult != 0) {
+            listener.fatalError("[SignApksBuilder] zipalign failed: exit code %d", zipalignResult);
+            throw new AbortException(String.format("zipalign failed on APK %s: exit code %d", unsignedApk, zipalignResult));
+        }
+        return zipalignTiming.stop();
+    }
 
-            FilePath signedParent = signedApk.getParent();
-            if (!signedParent.exists()) {
-                signedParent.mkdirs();
+    /**
+     * Signs and archives the APKs of one {@link #signApks} call, one at a time, with what the call set up for them.
+     */
+    private final class SigningLoop {
+
+        private final FilePath workspace;
+        private final Launcher launcher;
+        private final TaskListener listener;
+        private final SigningScratch scratch;
+        private final SigningTrace trace;
+        private final SigningMetrics metrics;
+        private final ZipalignTool zipalign;
+        private final SigningComponents signingParams;
+        private final String signerCertSha256;
+        private final boolean alignApks;
+        private final boolean checkAlignment;
+        private final int pageSize;
+        private final boolean checkNativeLibraries;
+        private final long memoryLimitBytes;
+        private final SplicedVariants variants;
+        private final ApkStager stager;
+        private final ZipalignStage zipalignStage;
+        private final SigningJournal journal;
+        private final SigningReportAction report;
+        private final ApkArchiver archiver;
+        private final String archivePrefix;
+        private final boolean removeSignedApks;
+        private final Map<String, String> fingerprints;
+        private long signBusyNanos;
+
+        SigningLoop(FilePath workspace, Launcher launcher, TaskListener listener, SigningScratch scratch, SigningTrace trace,
+            SigningMetrics metrics, ZipalignTool zipalign, SigningComponents signingParams, String signerCertSha256, boolean alignApks,
+            boolean checkAlignment, int pageSize, boolean checkNativeLibraries, long memoryLimitBytes, @CheckForNull SplicedVariants variants,
+            @CheckForNull ApkStager stager, @CheckForNull ZipalignStage zipalignStage, @CheckForNull SigningJournal journal,
+            SigningReportAction report, ApkArchiver archiver, String archivePrefix, boolean removeSignedApks, Map<String, String> fingerprints) {
+            this.workspace = workspace;
+            this.launcher = launcher;
+            this.listener = listener;
+            this.scratch = scratch;
+            this.trace = trace;
+            this.metrics = metrics;
+            this.zipalign = zipalign;
+            this.signingParams = signingParams;
+            this.signerCertSha256 = signerCertSha256;
+            this.alignApks = alignApks;
+            this.checkAlignment = checkAlignment;
+            this.pageSize = pageSize;
+            this.checkNativeLibraries = checkNativeLibraries;
+            this.memoryLimitBytes = memoryLimitBytes;
+            this.variants = variants;
+            this.stager = stager;
+            this.zipalignStage = zipalignStage;
+            this.journal = journal;
+            this.report = report;
+            this.archiver = archiver;
+            this.archivePrefix = archivePrefix;
+            this.removeSignedApks = removeSignedApks;
+            this.fingerprints = fingerprints;
+        }
+
+        /**
+         * @return how long the loop spent signing APKs itself, rather than on agents or resuming
+         */
+        long getSignBusyNanos() {
+            return signBusyNanos;
+        }
+
+        /**
+         * Sign the APK here unless an agent signed it or the journal resumed it, then record and archive it.
+         */
+        void signAndArchive(FilePath unsignedApk, SigningTrace.Span apkSpan, @CheckForNull DistributedSigning.SignedApk distributedApk,
+            @CheckForNull DigestingDataSink.Digests resumedDigests) throws IOException, InterruptedException {
+            FilePath signedApk = signedApkMapping.destinationForUnsignedApk(unsignedApk, workspace);
+            String signedRelName = relativeToWorkspace(workspace, signedApk);
+            Signed signed;
+            if (resumedDigests != null) {
+                signed = new Signed(resumedDigests, null, !alignApks, 0, 0);
+            }
+            else if (distributedApk != null) {
+                signed = new Signed(distributedApk.digests, distributedApk.memory, distributedApk.zipalignSkipped, distributedApk.zipalignNanos,
+                    distributedApk.signNanos);
+            }
+            else {
+                signed = signHere(unsignedApk, signedApk, apkSpan);
             }
-            SignApkCallable signApk = new SignApkCallable(signingParams.key, signingParams.certChain, signingParams.v1SigName, signedApk.getRemote(), listener);
-            alignedApk.act(signApk);
+            if (journal != null && resumedDigests == null) {
+                journal.record(new SigningJournal.Entry(getKeyStoreId(), getKeyAlias(), relativeToWorkspace(workspace, unsignedApk),
+                    unsignedApk.length(), unsignedApk.lastModified(), signedRelName, signed.digests));
+            }
+            metrics.recordSignedApk(signed.digests.size);
+            report.addSignedApk(new SigningReportAction.SignedApk(relativeToWorkspace(workspace, unsignedApk), signedRelName,
+                unsignedApk.length(), signed.digests.size, signed.zipalignSkipped, TimeUnit.NANOSECONDS.toMillis(signed.zipalignNanos),
+                TimeUnit.NANOSECONDS.toMillis(signed.signNanos), SignApkCallable.SIGNATURE_SCHEMES, getKeyStoreId(), signingParams.alias,
+                signerCertSha256, signed.memory == null ? 0 : signed.memory.getEstimatedBytes()));
+            archiver.knownSha256(signedRelName, signed.digests.sha256);
 
             listener.getLogger().printf("[SignApksBuilder] signed APK %s%n", signedRelName);
+            if (signed.memory != null) {
+                reportMemory(signedRelName, signed.memory, memoryLimitBytes, listener);
+            }
+            if (getRecordChecksums()) {
+                listener.getLogger().printf("[SignApksBuilder] signed APK %s is %,d bytes, SHA-256 %s%n", signedRelName, signed.digests.size, signed.digests.sha256);
+            }
+            archive(unsignedApk, signedApk, signedRelName, signed.digests, apkSpan);
+        }
+
+        /**
+         * Align and sign the APK on the workspace's node, from the stager's or zipalign stage's copy when there is one.
+         */
+        private Signed signHere(FilePath unsignedApk, FilePath signedApk, SigningTrace.Span apkSpan) throws IOException, InterruptedException {
+            // with overlapped stages, wait for the zipalign stage before taking a permit, as it needs one to align
+            SigningConcurrencyLimiter.Permit permit = zipalignStage == null ?
+                SigningConcurrencyLimiter.acquire(workspace, listener) : SigningConcurrencyLimiter.Permit.UNLIMITED;
+            FilePath inputApk = unsignedApk;
+            FilePath alignedApk = unsignedApk;
+            FilePath outputApk = signedApk;
+            try {
+                if (variants != null) {
+                    variants.splice(unsignedApk);
+                }
+                boolean zipalignSkipped = !alignApks;
+                long zipalignNanos = 0;
+                if (!alignApks) {
+                    listener.getLogger().printf("[SignApksBuilder] skipping zipalign for unsigned apk %s", unsignedApk);
+                    if (stager != null) {
+                        inputApk = stager.take(unsignedApk);
+                        alignedApk = inputApk;
+                    }
+                }
+                else if (zipalignStage != null) {
+                    ZipalignStage.Aligned aligned = zipalignStage.take(unsignedApk);
+                    alignedApk = aligned.alignedApk;
+                    zipalignSkipped = aligned.zipalignNanos < 0;
+                    zipalignNanos = Math.max(0, aligned.zipalignNanos);
+                    permit = SigningConcurrencyLimiter.acquire(workspace, listener);
+                }
+                else {
+                    if (stager != null) {
+                        inputApk = stager.take(unsignedApk);
+                    }
+                    if (checkAlignment && !ZipAlignmentCheck.needsZipalign(inputApk, relativeToWorkspace(workspace, unsignedApk), pageSize, listener)) {
+                        alignedApk = inputApk;
+                        zipalignSkipped = true;
+                    }
+                    else {
+                        alignedApk = scratch.createTempFile("aligned-" + unsignedApk.getBaseName() + "-", ".apk", unsignedApk.length());
+                        zipalignNanos = zipalign(zipalign, inputApk, alignedApk, workspace, launcher, listener, trace, apkSpan);
+                    }
+                }
+                if (stager != null) {
+                    // a directory of its own, so the signed APK and its digest file keep their names
+                    outputApk = scratch.createTempDir("signed-", "", unsignedApk.length()).child(signedApk.getName());
+                }
+
+                String alignedRelName = relativeToWorkspace(workspace, alignedApk);
+
+                if (!alignedApk.exists()) {
+                    throw new AbortException(String.format("aligned APK does not exist: %s", alignedRelName));
+                }
+
+                if (checkNativeLibraries) {
+                    NativeLibraryAlignmentCheck.report(alignedApk, relativeToWorkspace(workspace, unsignedApk), pageSize, listener);
+                }
+                listener.getLogger().printf("[SignApksBuilder] signing APK %s%n", alignedRelName);
+
+                FilePath signedParent = signedApk.getParent();
+                if (!signedParent.exists()) {
+                    signedParent.mkdirs();
+                }
+                SigningMetrics.Timing signTiming = metrics.start(SigningMetrics.Stage.SIGN, trace, apkSpan);
+                SignApkCallable signApk = new SignApkCallable(signingParams.key, signingParams.certChain, signingParams.v1SigName, outputApk.getRemote(),
+                    getRecordChecksums(), memoryLimitBytes, signTiming.span().context(), listener);
+                SignApkCallable.Result signResult = alignedApk.act(signApk);
+                RemoteCallAccounting.recordReceived(alignedApk, signResult);
+                trace.addAll(signResult.spans);
+                signTiming.span().attribute("bytes", signResult.digests.size);
+                long signNanos = signTiming.stop();
+                signBusyNanos += signNanos;
+                if (outputApk != signedApk) {
+                    ApkStager.writeBack(outputApk, signedApk);
+                    if (getRecordChecksums()) {
+                        String sha256FileName = signedApk.getName() + SignApkCallable.SHA_256_FILE_EXTENSION;
+                        ApkStager.writeBack(outputApk.sibling(sha256FileName), signedApk.sibling(sha256FileName));
+                    }
+                }
+                return new Signed(signResult.digests, signResult.memory, zipalignSkipped, zipalignNanos, signNanos);
+            }
+            finally {
+                if (inputApk != unsignedApk && inputApk != alignedApk) {
+                    deleteQuietly(inputApk, listener);
+                }
+                if (!alignedApk.getRemote().equals(unsignedApk.getRemote())) {
+                    deleteQuietly(alignedApk, listener);
+                }
+                if (outputApk != signedApk) {
+                    deleteQuietly(outputApk.getParent(), listener);
+                }
+                permit.close();
+            }
+        }
 
+        /**
+         * Hand the APK's artifacts to the archiver, and delete a spliced variant that is not archived.
+         */
+        private void archive(FilePath unsignedApk, FilePath signedApk, String signedRelName, DigestingDataSink.Digests signedDigests,
+            SigningTrace.Span apkSpan) throws IOException, InterruptedException {
+            Map<String,String> apksToArchive = new LinkedHashMap<>();
+            List<FilePath> removeAfterArchive = new ArrayList<>(1);
+            List<String> deltaPatches = new ArrayList<>(1);
             if (getArchiveUnsignedApks()) {
                 listener.getLogger().printf("[SignApksBuilder] archiving unsigned APK %s%n", unsignedApk);
                 apksToArchive.put(archivePrefix + unsignedApk.getName() + "/" + unsignedApk.getName(), relativeToWorkspace(workspace, unsignedApk));
+                if (variants != null && variants.isVariant(unsignedApk)) {
+                    removeAfterArchive.add(unsignedApk);
+                }
+            }
+            else if (variants != null && variants.isVariant(unsignedApk)) {
+                deleteQuietly(unsignedApk, listener);
             }
             if (getArchiveSignedApks()) {
                 listener.getLogger().printf("[SignApksBuilder] archiving signed APK %s%n", signedRelName);
-                apksToArchive.put(archivePrefix + unsignedApk.getName() + "/" + signedApk.getName(), signedRelName);
+                String signedArchivePath = archivePrefix + unsignedApk.getName() + "/" + signedApk.getName();
+                apksToArchive.put(signedArchivePath, signedRelName);
+                if (removeSignedApks) {
+                    removeAfterArchive.add(signedApk);
+                }
+                if (getRecordChecksums()) {
+                    FilePath sha256File = signedApk.sibling(signedApk.getName() + SignApkCallable.SHA_256_FILE_EXTENSION);
+                    apksToArchive.put(signedArchivePath + SignApkCallable.SHA_256_FILE_EXTENSION, relativeToWorkspace(workspace, sha256File));
+                    if (removeSignedApks) {
+                        removeAfterArchive.add(sha256File);
+                    }
+                    fingerprints.put(signedRelName, signedDigests.md5);
+                }
+                if (getGenerateDeltaPatches()) {
+                    deltaPatches.add(signedArchivePath);
+                }
             }
+            archiver.archive(apksToArchive, removeAfterArchive, deltaPatches, apkSpan);
         }
+    }
 
-        listener.getLogger().println("[SignApksBuilder] finished signing APKs");
+    /**
+     * How an APK was signed, here, on an agent, or by an earlier run of the step.
+     */
+    private static final class Signed {
+
+        final DigestingDataSink.Digests digests;
+        final SigningMemoryLimit.Usage memory;
+        final boolean zipalignSkipped;
+        final long zipalignNanos;
+        final long signNanos;
+
+        Signed(DigestingDataSink.Digests digests, @CheckForNull SigningMemoryLimit.Usage memory, boolean zipalignSkipped, long zipalignNanos,
+            long signNanos) {
+            this.digests = digests;
+            this.memory = memory;
+            this.zipalignSkipped = zipalignSkipped;
+            this.zipalignNanos = zipalignNanos;
+            this.signNanos = signNanos;
+        }
+    }
 
-        if (apksToArchive.size() > 0) {
-            run.pickArtifactManager().archive(workspace, launcher, BuildListenerAdapter.wrap(listener), apksToArchive);
+    /**
+     * Log how busy each of the overlapped stages was over the given time, and how long each waited on its neighbours.
+     */
+    private static void reportStageUtilization(long stagesNanos, ZipalignStage zipalignStage, long signBusyNanos, ApkArchiver archiver,
+        TaskListener listener) {
+        listener.getLogger().printf("[SignApksBuilder] stage utilization over %,d ms: zipalign %d%% busy, sign %d%% busy, archive %d%% busy%n",
+            TimeUnit.NANOSECONDS.toMillis(stagesNanos), percentOf(zipalignStage.getBusyNanos(), stagesNanos),
+            percentOf(signBusyNanos, stagesNanos), percentOf(archiver.getBusyNanos(), stagesNanos));
+        listener.getLogger().printf("[SignApksBuilder] signing waited %,d ms for zipalign; zipalign waited %,d ms and signing %,d ms for a full queue%n",
+            TimeUnit.NANOSECONDS.toMillis(zipalignStage.getTakeWaitNanos()), TimeUnit.NANOSECONDS.toMillis(zipalignStage.getBlockedNanos()),
+            TimeUnit.NANOSECONDS.toMillis(archiver.getBlockedNanos()));
+    }
+
+    private static long percentOf(long part, long whole) {
+        return whole == 0 ? 0 : Math.round(100.0 * part / whole);
+    }
+
+    /**
+     * @return the digests of the signed APKs the journal shows an earlier run of this step in the same build
+     * already signed, by the remote path of the unsigned APK
+     */
+    private Map<String, DigestingDataSink.Digests> resumeFromJournal(SigningJournal journal, Set<FilePath> unsignedApks, FilePath workspace,
+        TaskListener listener) throws IOException, InterruptedException {
+        if (journal.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, DigestingDataSink.Digests> resumed = new LinkedHashMap<>();
+        for (FilePath unsignedApk : unsignedApks) {
+            unsignedApk = unsignedApk.absolutize();
+            FilePath signedApk = signedApkMapping.destinationForUnsignedApk(unsignedApk, workspace);
+            String signedRelName = relativeToWorkspace(workspace, signedApk);
+            DigestingDataSink.Digests digests = journal.verifiedOutput(getKeyStoreId(), getKeyAlias(), relativeToWorkspace(workspace, unsignedApk),
+                unsignedApk, signedRelName, signedApk);
+            if (digests != null) {
+                listener.getLogger().printf("[SignApksBuilder] resuming: signed APK %s matches the signing journal%n", signedRelName);
+                resumed.put(unsignedApk.getRemote(), digests);
+            }
+        }
+        if (!resumed.isEmpty()) {
+            listener.getLogger().printf("[SignApksBuilder] resuming with %d of %d APKs already signed%n", resumed.size(), unsignedApks.size());
+        }
+        return resumed;
+    }
+
+    private void recordFingerprints(Run<?, ?> run, Map<String, String> md5sByFileName, TaskListener listener) throws IOException {
+        // the same records the Fingerprinter makes, but from the digests computed while signing
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        for (Map.Entry<String, String> file : md5sByFileName.entrySet()) {
+            listener.getLogger().printf("[SignApksBuilder] recording fingerprint %s of signed APK %s%n", file.getValue(), file.getKey());
+            jenkins.getFingerprintMap().getOrCreate(run, file.getKey(), file.getValue()).addFor(run);
+        }
+        Fingerprinter.FingerprintAction fingerprintAction = run.getAction(Fingerprinter.FingerprintAction.class);
+        if (fingerprintAction == null) {
+            run.addAction(new Fingerprinter.FingerprintAction(run, md5sByFileName));
+        }
+        else {
+            fingerprintAction.add(md5sByFileName);
+        }
+    }
+
+    /**
+     * Delete an intermediate file or directory even when the thread is interrupted, as when the build is aborted,
+     * and interrupt the thread again after.
+     */
+    static void deleteQuietly(FilePath file, TaskListener listener) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            file.deleteRecursive();
+        }
+        catch (IOException | InterruptedException e) {
+            listener.getLogger().printf("[SignApksBuilder] error deleting %s: %s%n", file.getRemote(), e);
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -433,6 +1189,25 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             return FormValidation.validateRequired(value);
         }
 
+        @SuppressWarnings("unused")
+        public FormValidation doCheckSigningMemoryLimit(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value.trim());
+        }
+
+        @SuppressWarnings("unused")
+        public FormValidation doCheckNativeLibraryPageSize(@QueryParameter String value) {
+            try {
+                ZipalignTool.parsePageSizeKb(value);
+                return FormValidation.ok();
+            }
+            catch (AbortException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         @SuppressWarnings("unused")
         public FormValidation doCheckApksToSign(@AncestorInPath AbstractProject project, @QueryParameter String value) throws IOException {
             if (project == null) {
@@ -461,26 +1236,83 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
 
     }
 
-    static class SignApkCallable extends MasterToSlaveFileCallable<Void> {
+    private static void reportMemory(String signedRelName, SigningMemoryLimit.Usage memory, long memoryLimitBytes, TaskListener listener) {
+        String allocated = memory.allocatedHeapBytes < 0 ? "" : String.format("; the signer allocated %,d bytes of heap in all", memory.allocatedHeapBytes);
+        listener.getLogger().printf("[SignApksBuilder] signing APK %s was estimated to need %,d bytes of the %,d byte memory limit: %,d bytes of heap estimated before signing and %,d bytes of direct buffers%s%n",
+            signedRelName, memory.getEstimatedBytes(), memoryLimitBytes, memory.estimatedHeapBytes, memory.directBytes, allocated);
+    }
+
+    static class SignApkCallable extends MasterToSlaveFileCallable<SignApkCallable.Result> implements RemoteCallAccounting.EstimatedPayload {
+
+        static class Result implements Serializable {
+            private static final long serialVersionUID = 1;
+
+            final DigestingDataSink.Digests digests;
+            final List<SigningTrace.Span> spans;
+            /** null without a signing memory limit */
+            final SigningMemoryLimit.Usage memory;
+
+            Result(DigestingDataSink.Digests digests, List<SigningTrace.Span> spans, SigningMemoryLimit.Usage memory) {
+                this.digests = digests;
+                this.spans = spans;
+                this.memory = memory;
+            }
+        }
+
+        static final String SHA_256_FILE_EXTENSION = ".sha256";
+        static final String SIGNATURE_SCHEMES = "v1, v2";
 
         private static final long serialVersionUID = 1;
+        /** a serialized RSA or EC private key of up to 4096 bits, so estimating the call never encodes the key */
+        private static final long ESTIMATED_KEY_BYTES = 2560;
 
         private final PrivateKey key;
         private final Certificate[] certChain;
         private final String v1SigName;
         private final String outputApk;
+        private final boolean writeSha256File;
+        private final long memoryLimitBytes;
+        private final SigningTrace.Context traceParent;
         private final TaskListener listener;
 
-        SignApkCallable(PrivateKey key, Certificate[] certChain, String v1SigName, String outputApk, TaskListener listener) {
+        /**
+         * @param memoryLimitBytes the memory signing the APK may use, or 0 for no limit
+         */
+        SignApkCallable(PrivateKey key, Certificate[] certChain, String v1SigName, String outputApk, boolean writeSha256File,
+            long memoryLimitBytes, SigningTrace.Context traceParent, TaskListener listener) {
             this.key = key;
             this.certChain = certChain;
             this.v1SigName = v1SigName;
             this.outputApk = outputApk;
+            this.writeSha256File = writeSha256File;
+            this.memoryLimitBytes = memoryLimitBytes;
+            this.traceParent = traceParent;
             this.listener = listener;
         }
 
         @Override
-        public Void invoke(File inputApkFile, VirtualChannel channel) throws IOException, InterruptedException {
+        public long estimatePayloadBytes() {
+            long bytes = ESTIMATED_KEY_BYTES + RemoteCallAccounting.estimatePayloadBytes(v1SigName) + RemoteCallAccounting.estimatePayloadBytes(outputApk);
+            for (Certificate cert : certChain) {
+                try {
+                    bytes += cert.getEncoded().length;
+                }
+                catch (CertificateEncodingException e) {
+                    bytes += RemoteCallAccounting.CALL_OVERHEAD_BYTES;
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        public Result invoke(File inputApkFile, VirtualChannel channel) throws IOException, InterruptedException {
+            List<SigningTrace.Span> spans = new ArrayList<>(2);
+            SigningTrace.Span agentSpan = SigningTrace.Span.start("agent.sign", traceParent);
+
+            long estimatedHeapBytes = 0;
+            if (memoryLimitBytes > 0) {
+                estimatedHeapBytes = SigningMemoryLimit.admit(inputApkFile, ApkZipLayout.read(inputApkFile), memoryLimitBytes);
+            }
 
             File outputApkFile = new File(outputApk);
             if (outputApkFile.isFile()) {
@@ -497,25 +1329,89 @@ public class SignApksBuilder extends Builder implements SimpleBuildStep {
             ApkSigner.SignerConfig signerConfig = new ApkSigner.SignerConfig.Builder(v1SigName, key, certs).build();
             List<ApkSigner.SignerConfig> signerConfigs = Collections.singletonList(signerConfig);
 
-            ApkSigner.Builder signerBuilder = new ApkSigner.Builder(signerConfigs)
-                .setInputApk(inputApkFile)
-                .setOutputApk(outputApkFile)
-                .setOtherSignersSignaturesPreserved(false)
-                // TODO: add to jenkins descriptor
-                .setV1SigningEnabled(true)
-                .setV2SigningEnabled(true);
-
-            ApkSigner signer = signerBuilder.build();
+            DigestingDataSink.Digests digests;
+            SigningMemoryLimit.Usage memory = null;
+            boolean complete = false;
             try {
-                signer.sign();
+                try (RandomAccessFile outputApkRaf = new RandomAccessFile(outputApkFile, "rw");
+                     PooledBufferDataSink pooledSink = memoryLimitBytes > 0 ? new PooledBufferDataSink(outputApkRaf.getChannel()) : null) {
+                    outputApkRaf.setLength(0);
+                    DigestingDataSink outputApkSink = new DigestingDataSink(pooledSink != null ? pooledSink : DataSinks.asDataSink(outputApkRaf));
+                    DataSource outputApkSource = pooledSink != null ?
+                        pooledSink.asDataSource(DataSources.asDataSource(outputApkRaf)) : DataSources.asDataSource(outputApkRaf);
+                    ApkSigner.Builder signerBuilder = new ApkSigner.Builder(signerConfigs)
+                        .setInputApk(inputApkFile)
+                        .setOutputApk(outputApkSink, outputApkSource)
+                        .setOtherSignersSignaturesPreserved(false)
+                        // TODO: add to jenkins descriptor
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true);
+
+                    ApkSigner signer = signerBuilder.build();
+                    SigningTrace.Span apksigSpan = SigningTrace.Span.start("apksig.sign", agentSpan.context());
+                    SigningFlightRecorder.Event signEvent = SigningFlightRecorder.begin(SigningFlightRecorder.EventType.APK_SIGN, inputApkFile.getAbsolutePath(), inputApkFile.length());
+                    long allocatedBefore = SigningMemoryLimit.currentThreadAllocatedBytes();
+                    try {
+                        signer.sign();
+                        if (pooledSink != null) {
+                            pooledSink.flush();
+                        }
+                    }
+                    catch (Exception e) {
+                        if (e instanceof InterruptedIOException || Thread.interrupted()) {
+                            throw new InterruptedException("interrupted signing APK " + inputApkFile.getAbsolutePath());
+                        }
+                        PrintWriter details = listener.fatalError("[SignApksBuilder] error signing APK %s", inputApkFile.getAbsolutePath());
+                        e.printStackTrace(details);
+                        throw new AbortException("failed to sign APK " + inputApkFile.getAbsolutePath() + ": " + e.getLocalizedMessage());
+                    }
+                    signEvent.commit();
+                    apksigSpan.recordCpuTime().end();
+                    spans.add(apksigSpan);
+                    if (pooledSink != null) {
+                        long allocatedAfter = SigningMemoryLimit.currentThreadAllocatedBytes();
+                        memory = new SigningMemoryLimit.Usage(estimatedHeapBytes, pooledSink.getPeakDirectBytes(),
+                            allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore);
+                    }
+                    digests = outputApkSink.getDigests();
+                    if (digests.size != outputApkRaf.length()) {
+                        throw new IOException(String.format("signed APK %s is %d bytes, but the signer wrote %d bytes", outputApk, outputApkRaf.length(), digests.size));
+                    }
+                }
+
+                if (writeSha256File) {
+                    // the format sha256sum -c reads
+                    String sha256Line = digests.sha256 + "  " + outputApkFile.getName() + "\n";
+                    Files.write(new File(outputApk + SHA_256_FILE_EXTENSION).toPath(), sha256Line.getBytes(StandardCharsets.UTF_8));
+                }
+                complete = true;
             }
-            catch (Exception e) {
-                PrintWriter details = listener.fatalError("[SignApksBuilder] error signing APK %s", inputApkFile.getAbsolutePath());
-                e.printStackTrace(details);
-                throw new AbortException("failed to sign APK " + inputApkFile.getAbsolutePath() + ": " + e.getLocalizedMessage());
+            finally {
+                if (!complete) {
+                    deletePartialOutput(outputApkFile);
+                }
             }
 
-            return null;
+            agentSpan.recordCpuTime().recordAllocatedBytes().end();
+            spans.add(agentSpan);
+            return new Result(digests, spans, memory);
+        }
+
+        /**
+         * Delete what signing wrote of the signed APK and its digest file before it failed or was interrupted, so
+         * no half-written APK is left to archive.
+         */
+        private void deletePartialOutput(File outputApkFile) {
+            for (File partial : new File[] { outputApkFile, new File(outputApk + SHA_256_FILE_EXTENSION) }) {
+                if (partial.isFile()) {
+                    if (partial.delete()) {
+                        listener.getLogger().printf("[SignApksBuilder] deleted partial output %s%n", partial.getAbsolutePath());
+                    }
+                    else {
+                        listener.getLogger().printf("[SignApksBuilder] failed to delete partial output %s%n", partial.getAbsolutePath());
+                    }
+                }
+            }
         }
     }
 
@@ -47,6 +47,50 @@ public class SignApksDslContext extends ContextExtensionPoint {
             builder.setArchiveUnsignedApks(x);
         }
 
+        public void archiveImmediately(boolean x) {
+            builder.setArchiveImmediately(x);
+        }
+
+        public void archiveOnly(boolean x) {
+            builder.setArchiveOnly(x);
+        }
+
+        public void deduplicateArchives(boolean x) {
+            builder.setDeduplicateArchives(x);
+        }
+
+        public void generateDeltaPatches(boolean x) {
+            builder.setGenerateDeltaPatches(x);
+        }
+
+        public void recordChecksums(boolean x) {
+            builder.setRecordChecksums(x);
+        }
+
+        public void flightRecording(boolean x) {
+            builder.setFlightRecording(x);
+        }
+
+        public void overlapStages(boolean x) {
+            builder.setOverlapStages(x);
+        }
+
+        public void stageApks(boolean x) {
+            builder.setStageApks(x);
+        }
+
+        public void signingMemoryLimit(String x) {
+            builder.setSigningMemoryLimit(x);
+        }
+
+        public void zipalignOnlyUnaligned(boolean x) {
+            builder.setZipalignOnlyUnaligned(x);
+        }
+
+        public void nativeLibraryPageSize(String x) {
+            builder.setNativeLibraryPageSize(x);
+        }
+
         public void androidHome(String x) {
             builder.setAndroidHome(x);
         }
@@ -55,6 +99,14 @@ public class SignApksDslContext extends ContextExtensionPoint {
             builder.setZipalignPath(x);
         }
 
+        public void distributeToLabel(String x) {
+            builder.setDistributeToLabel(x);
+        }
+
+        public void variantOverlays(String x) {
+            builder.setVariantOverlays(x);
+        }
+
         public SignedApkMappingStrategy.UnsignedApkSiblingMapping unsignedApkSibling() {
             return new SignedApkMappingStrategy.UnsignedApkSiblingMapping();
         }
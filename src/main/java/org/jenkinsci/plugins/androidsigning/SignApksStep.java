@@ -2,24 +2,39 @@ package org.jenkinsci.plugins.androidsigning;
 
 import com.google.inject.Inject;
 
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
-import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.jenkinsci.plugins.workflow.structs.DescribableHelper;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
 
 
 public class SignApksStep extends AbstractStepImpl {
@@ -33,9 +48,22 @@ public class SignApksStep extends AbstractStepImpl {
     private SignedApkMappingStrategy signedApkMapping;
     private String androidHome;
     private String zipalignPath;
+    private String distributeToLabel;
+    private String variantOverlays;
     private boolean skipZipalign = false;
     private boolean archiveSignedApks = true;
     private boolean archiveUnsignedApks = false;
+    private boolean archiveImmediately = false;
+    private boolean archiveOnly = false;
+    private boolean deduplicateArchives = false;
+    private boolean generateDeltaPatches = false;
+    private boolean recordChecksums = false;
+    private boolean flightRecording = false;
+    private boolean overlapStages = false;
+    private boolean stageApks = false;
+    private String signingMemoryLimit;
+    private boolean zipalignOnlyUnaligned = false;
+    private String nativeLibraryPageSize;
 
     @DataBoundConstructor
     public SignApksStep() {
@@ -76,6 +104,61 @@ public class SignApksStep extends AbstractStepImpl {
         archiveUnsignedApks = x;
     }
 
+    @DataBoundSetter
+    public void setArchiveImmediately(boolean x) {
+        archiveImmediately = x;
+    }
+
+    @DataBoundSetter
+    public void setArchiveOnly(boolean x) {
+        archiveOnly = x;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateArchives(boolean x) {
+        deduplicateArchives = x;
+    }
+
+    @DataBoundSetter
+    public void setGenerateDeltaPatches(boolean x) {
+        generateDeltaPatches = x;
+    }
+
+    @DataBoundSetter
+    public void setRecordChecksums(boolean x) {
+        recordChecksums = x;
+    }
+
+    @DataBoundSetter
+    public void setFlightRecording(boolean x) {
+        flightRecording = x;
+    }
+
+    @DataBoundSetter
+    public void setOverlapStages(boolean x) {
+        overlapStages = x;
+    }
+
+    @DataBoundSetter
+    public void setStageApks(boolean x) {
+        stageApks = x;
+    }
+
+    @DataBoundSetter
+    public void setSigningMemoryLimit(String x) {
+        signingMemoryLimit = x;
+    }
+
+    @DataBoundSetter
+    public void setZipalignOnlyUnaligned(boolean x) {
+        zipalignOnlyUnaligned = x;
+    }
+
+    @DataBoundSetter
+    public void setNativeLibraryPageSize(String x) {
+        nativeLibraryPageSize = x;
+    }
+
     @DataBoundSetter
     public void setAndroidHome(String x) {
         androidHome = x;
@@ -86,6 +169,16 @@ public class SignApksStep extends AbstractStepImpl {
         zipalignPath = x;
     }
 
+    @DataBoundSetter
+    public void setDistributeToLabel(String x) {
+        distributeToLabel = x;
+    }
+
+    @DataBoundSetter
+    public void setVariantOverlays(String x) {
+        variantOverlays = x;
+    }
+
     public String getKeyStoreId() {
         return keyStoreId;
     }
@@ -114,6 +207,50 @@ public class SignApksStep extends AbstractStepImpl {
         return archiveUnsignedApks;
     }
 
+    public boolean getArchiveImmediately() {
+        return archiveImmediately;
+    }
+
+    public boolean getArchiveOnly() {
+        return archiveOnly;
+    }
+
+    public boolean getDeduplicateArchives() {
+        return deduplicateArchives;
+    }
+
+    public boolean getGenerateDeltaPatches() {
+        return generateDeltaPatches;
+    }
+
+    public boolean getRecordChecksums() {
+        return recordChecksums;
+    }
+
+    public boolean getFlightRecording() {
+        return flightRecording;
+    }
+
+    public boolean getOverlapStages() {
+        return overlapStages;
+    }
+
+    public boolean getStageApks() {
+        return stageApks;
+    }
+
+    public String getSigningMemoryLimit() {
+        return signingMemoryLimit;
+    }
+
+    public boolean getZipalignOnlyUnaligned() {
+        return zipalignOnlyUnaligned;
+    }
+
+    public String getNativeLibraryPageSize() {
+        return nativeLibraryPageSize;
+    }
+
     public String getAndroidHome() {
         return androidHome;
     }
@@ -122,35 +259,128 @@ public class SignApksStep extends AbstractStepImpl {
         return zipalignPath;
     }
 
+    public String getDistributeToLabel() {
+        return distributeToLabel;
+    }
+
+    public String getVariantOverlays() {
+        return variantOverlays;
+    }
+
 
-    private static class SignApksStepExecution extends AbstractSynchronousNonBlockingStepExecution<Void> {
+    /**
+     * Signs in a thread of its own, like a non-blocking synchronous step, but keeps the step's arguments so that
+     * after a restart it signs again, and the {@link SigningJournal} of the build lets it skip the APKs it already
+     * signed.  When Jenkins shuts down, the signing threads stop without completing their steps, so the steps resume
+     * after the restart instead of failing.
+     */
+    private static class SignApksStepExecution extends AbstractStepExecutionImpl {
 
         private static final long serialVersionUID = 1L;
 
+        private static final ExecutorService executorService = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), SignApksStep.class.getSimpleName()));
+
         @Inject
         private transient SignApksStep step;
 
-        @StepContextParameter
-        @SuppressWarnings("unused")
-        private transient Run build;
+        private Map<String, Object> arguments;
+
+        private static final Set<SignApksStepExecution> running = ConcurrentHashMap.newKeySet();
 
-        @StepContextParameter
-        @SuppressWarnings("unused")
-        private transient FilePath workspace;
+        private transient volatile Future<?> task;
+        private transient boolean completed;
 
-        @StepContextParameter
-        @SuppressWarnings("unused")
-        private transient Launcher launcher;
+        /**
+         * Stop the signing of every running step without completing the steps, so they resume after the restart.
+         */
+        static void stopAllForShutdown() {
+            for (SignApksStepExecution execution : running) {
+                Future<?> task = execution.task;
+                if (execution.complete() && task != null) {
+                    task.cancel(true);
+                }
+            }
+        }
 
-        @StepContextParameter
-        @SuppressWarnings("unused")
-        private transient TaskListener listener;
+        @Override
+        public boolean start() throws Exception {
+            arguments = DescribableHelper.uninstantiate(step);
+            launch();
+            return false;
+        }
 
-        @StepContextParameter
-        private transient EnvVars env;
+        @Override
+        public void onResume() {
+            super.onResume();
+            try {
+                step = DescribableHelper.instantiate(SignApksStep.class, arguments);
+                getContext().get(TaskListener.class).getLogger().println("[SignApksBuilder] resuming signing after a restart");
+            }
+            catch (Exception e) {
+                if (complete()) {
+                    getContext().onFailure(e);
+                }
+                return;
+            }
+            launch();
+        }
 
         @Override
-        protected Void run() throws Exception {
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            if (!complete()) {
+                return;
+            }
+            Future<?> task = this.task;
+            if (task != null) {
+                task.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        /**
+         * @return whether the caller is the first to complete the step, and so the one to complete its context
+         */
+        private synchronized boolean complete() {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            return true;
+        }
+
+        private void launch() {
+            Authentication auth = Jenkins.getAuthentication();
+            running.add(this);
+            task = executorService.submit(() -> {
+                SecurityContext originalContext = ACL.impersonate(auth);
+                try {
+                    run();
+                    if (complete()) {
+                        getContext().onSuccess(null);
+                    }
+                }
+                catch (Throwable e) {
+                    if (complete()) {
+                        getContext().onFailure(e);
+                    }
+                }
+                finally {
+                    running.remove(this);
+                    SecurityContextHolder.setContext(originalContext);
+                }
+            });
+        }
+
+        private void run() throws Exception {
+            Run<?, ?> build = getContext().get(Run.class);
+            FilePath workspace = getContext().get(FilePath.class);
+            Launcher launcher = getContext().get(Launcher.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+            EnvVars env = getContext().get(EnvVars.class);
+            if (workspace == null) {
+                throw new AbortException("the workspace of the signing step is not available");
+            }
             String androidHome = step.getAndroidHome();
             String zipalignPath = step.getZipalignPath();
             if (StringUtils.isEmpty(androidHome) && StringUtils.isEmpty(zipalignPath)) {
@@ -169,10 +399,31 @@ public class SignApksStep extends AbstractStepImpl {
             builder.setSkipZipalign(step.getSkipZipalign());
             builder.setArchiveSignedApks(step.getArchiveSignedApks());
             builder.setArchiveUnsignedApks(step.getArchiveUnsignedApks());
+            builder.setArchiveImmediately(step.getArchiveImmediately());
+            builder.setArchiveOnly(step.getArchiveOnly());
+            builder.setDeduplicateArchives(step.getDeduplicateArchives());
+            builder.setGenerateDeltaPatches(step.getGenerateDeltaPatches());
+            builder.setRecordChecksums(step.getRecordChecksums());
+            builder.setFlightRecording(step.getFlightRecording());
+            builder.setOverlapStages(step.getOverlapStages());
+            builder.setStageApks(step.getStageApks());
+            builder.setSigningMemoryLimit(step.getSigningMemoryLimit());
+            builder.setZipalignOnlyUnaligned(step.getZipalignOnlyUnaligned());
+            builder.setNativeLibraryPageSize(step.getNativeLibraryPageSize());
             builder.setAndroidHome(androidHome);
             builder.setZipalignPath(zipalignPath);
+            builder.setDistributeToLabel(step.getDistributeToLabel());
+            builder.setVariantOverlays(step.getVariantOverlays());
+            builder.setJournaled(true);
             builder.perform(build, workspace, launcher, listener);
-            return null;
+        }
+    }
+
+    @Extension(optional = true)
+    public static class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            SignApksStepExecution.stopAllForShutdown();
         }
     }
 
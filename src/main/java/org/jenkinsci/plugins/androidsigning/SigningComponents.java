@@ -8,17 +8,30 @@ import org.apache.commons.lang.StringUtils;
 import java.io.Serializable;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.util.Enumeration;
 
+import hudson.Util;
+
 
 public class SigningComponents implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     public static SigningComponents fromCredentials(StandardCertificateCredentials creds, String keyAlias) throws GeneralSecurityException {
+        SigningFlightRecorder.Event decodeEvent = SigningFlightRecorder.begin(SigningFlightRecorder.EventType.KEY_STORE_DECODE);
+        try {
+            return decode(creds, keyAlias);
+        }
+        finally {
+            decodeEvent.commit();
+        }
+    }
+
+    private static SigningComponents decode(StandardCertificateCredentials creds, String keyAlias) throws GeneralSecurityException {
         KeyStore keyStore = creds.getKeyStore();
         if (StringUtils.isEmpty(keyAlias)) {
             keyAlias = null;
@@ -80,6 +93,13 @@ public class SigningComponents implements Serializable {
         this.v1SigName = v1SigName;
     }
 
+    /**
+     * @return the hex-encoded SHA-256 digest of the signer certificate, as {@code apksigner verify --print-certs} shows it
+     */
+    String signerCertSha256() throws GeneralSecurityException {
+        return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(certChain[0].getEncoded()));
+    }
+
     /**
      * Using either a null password or empty password does not work because
      * the Credentials Plugin's CertificateCredentialsImpl uses hudson.Util.fixeEmpty()
@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.labels.LabelAtomProperty;
+import hudson.model.labels.LabelAtomPropertyDescriptor;
+import hudson.util.FormValidation;
+
+
+/**
+ * Limits how many APKs the builds on each node with a label sign at once, for nodes without a
+ * {@link SigningConcurrencyNodeProperty}; see {@link SigningConcurrencyLimiter}.
+ */
+public class SigningConcurrencyLabelProperty extends LabelAtomProperty {
+
+    private final int maxConcurrentSignings;
+
+    @DataBoundConstructor
+    public SigningConcurrencyLabelProperty(int maxConcurrentSignings) {
+        this.maxConcurrentSignings = maxConcurrentSignings;
+    }
+
+    public int getMaxConcurrentSignings() {
+        return maxConcurrentSignings;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends LabelAtomPropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.signingConcurrency_displayName();
+        }
+
+        public FormValidation doCheckMaxConcurrentSignings(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+    }
+}
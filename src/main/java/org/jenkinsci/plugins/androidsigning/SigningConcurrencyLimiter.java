@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+
+
+/**
+ * Bounds how many APKs all the builds on a node sign at once.  Each node has a fair semaphore with the permits of
+ * its {@link SigningConcurrencyNodeProperty}, or else the fewest permits of the
+ * {@link SigningConcurrencyLabelProperty labels} it carries, and {@link SignApksBuilder} holds a permit while it
+ * aligns and signs each APK, so concurrent builds take turns APK by APK rather than step by step.
+ */
+class SigningConcurrencyLimiter {
+
+    /**
+     * A held permit, or no permit when the node is not limited; close it to release the permit.
+     */
+    static class Permit implements AutoCloseable {
+
+        static final Permit UNLIMITED = new Permit(null);
+
+        private final Semaphore semaphore;
+        private boolean released;
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (semaphore != null && !released) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+
+    private static class Limit {
+        final int permits;
+        final Semaphore semaphore;
+
+        Limit(int permits) {
+            this.permits = permits;
+            semaphore = new Semaphore(permits, true);
+        }
+    }
+
+    private static final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * Wait for a permit to sign on the node of the given workspace, and log how long the wait took.
+     */
+    static Permit acquire(FilePath workspace, TaskListener listener) throws InterruptedException {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        if (node == null) {
+            return Permit.UNLIMITED;
+        }
+        return acquire(node, listener);
+    }
+
+    /**
+     * Wait for a permit to sign on the given node, and log how long the wait took.
+     */
+    static Permit acquire(Node node, TaskListener listener) throws InterruptedException {
+        int permits = permitsFor(node);
+        if (permits < 1) {
+            return Permit.UNLIMITED;
+        }
+        long waitStart = System.nanoTime();
+        Permit permit = acquire(node.getNodeName(), permits);
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
+        String nodeName = node.getNodeName().isEmpty() ? "master" : node.getNodeName();
+        listener.getLogger().printf("[SignApksBuilder] waited %,d ms for one of %d signing permits on %s%n", waitMillis, permits, nodeName);
+        return permit;
+    }
+
+    /**
+     * Wait for one of the given number of permits of the named node.  When the number differs from the last
+     * acquisition, because the node's configuration changed, later acquisitions use a new semaphore with the new
+     * number, and permits held from the old one release to the old one.
+     */
+    static Permit acquire(String nodeName, int permits) throws InterruptedException {
+        Limit limit = limits.compute(nodeName, (name, current) -> current != null && current.permits == permits ? current : new Limit(permits));
+        limit.semaphore.acquire();
+        return new Permit(limit.semaphore);
+    }
+
+    /**
+     * @return the number of APKs the given node may sign at once, or 0 for no limit
+     */
+    static int permitsFor(Node node) {
+        SigningConcurrencyNodeProperty nodeProperty = node.getNodeProperties().get(SigningConcurrencyNodeProperty.class);
+        if (nodeProperty != null) {
+            return nodeProperty.getMaxConcurrentSignings();
+        }
+        int permits = 0;
+        for (LabelAtom label : node.getAssignedLabels()) {
+            SigningConcurrencyLabelProperty labelProperty = label.getProperties().get(SigningConcurrencyLabelProperty.class);
+            if (labelProperty != null && labelProperty.getMaxConcurrentSignings() > 0 &&
+                (permits == 0 || labelProperty.getMaxConcurrentSignings() < permits)) {
+                permits = labelProperty.getMaxConcurrentSignings();
+            }
+        }
+        return permits;
+    }
+
+    static int availablePermits(String nodeName) {
+        Limit limit = limits.get(nodeName);
+        return limit == null ? -1 : limit.semaphore.availablePermits();
+    }
+}
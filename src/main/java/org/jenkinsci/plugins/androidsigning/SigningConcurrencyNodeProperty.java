@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
+
+
+/**
+ * Limits how many APKs the builds on a node sign at once; see {@link SigningConcurrencyLimiter}.
+ */
+public class SigningConcurrencyNodeProperty extends NodeProperty<Node> {
+
+    private final int maxConcurrentSignings;
+
+    @DataBoundConstructor
+    public SigningConcurrencyNodeProperty(int maxConcurrentSignings) {
+        this.maxConcurrentSignings = maxConcurrentSignings;
+    }
+
+    public int getMaxConcurrentSignings() {
+        return maxConcurrentSignings;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.signingConcurrency_displayName();
+        }
+
+        public FormValidation doCheckMaxConcurrentSignings(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import hudson.model.Run;
+
+
+/**
+ * Estimates how long each APK takes to align and sign from the {@link SigningReportAction}s of a job's earlier
+ * builds, so {@link DistributedSigning} can balance its shards by time rather than by size.  An APK signed in an
+ * earlier build is estimated from its own last time, scaled by how much it has grown or shrunk since; any other
+ * APK is estimated from its size at the throughput of all the APKs in the history.
+ */
+class SigningCostModel {
+
+    static final int MAX_BUILDS = 10;
+
+    private static class Sample {
+        final long inputSize;
+        final long millis;
+
+        Sample(long inputSize, long millis) {
+            this.inputSize = inputSize;
+            this.millis = millis;
+        }
+    }
+
+    private final Map<String, Sample> samplesByApk = new HashMap<>();
+    private long totalBytes;
+    private long totalMillis;
+    private int builds;
+
+    /**
+     * @return the model of the last {@value #MAX_BUILDS} builds before the given build
+     */
+    static SigningCostModel fromHistory(@Nonnull Run<?, ?> run) {
+        SigningCostModel model = new SigningCostModel();
+        int count = 0;
+        for (Run<?, ?> previous = run.getPreviousBuild(); previous != null && count < MAX_BUILDS; previous = previous.getPreviousBuild(), count++) {
+            SigningReportAction report = previous.getAction(SigningReportAction.class);
+            if (report != null) {
+                model.addReport(report);
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Add the APKs of a report older than the reports added so far.
+     */
+    void addReport(@Nonnull SigningReportAction report) {
+        boolean added = false;
+        for (SigningReportAction.SignedApk apk : report.getSignedApks()) {
+            long millis = apk.getZipalignMillis() + apk.getSignMillis();
+            // APKs a resumed step found already signed report no time
+            if (millis == 0) {
+                continue;
+            }
+            samplesByApk.putIfAbsent(apk.getUnsignedApk(), new Sample(apk.getInputSize(), millis));
+            totalBytes += apk.getInputSize();
+            totalMillis += millis;
+            added = true;
+        }
+        if (added) {
+            builds++;
+        }
+    }
+
+    boolean isEmpty() {
+        return totalMillis == 0;
+    }
+
+    /**
+     * @return the number of builds with APKs in the model
+     */
+    int getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @param unsignedApk the path of the unsigned APK relative to the workspace, as the report records it
+     * @param inputSize the size of the unsigned APK now
+     * @return the estimated time to align and sign the APK, at least 1 ms
+     */
+    long estimateMillis(@Nonnull String unsignedApk, long inputSize) {
+        Sample sample = samplesByApk.get(unsignedApk);
+        double millis;
+        if (sample != null && sample.inputSize > 0) {
+            millis = (double) sample.millis * inputSize / sample.inputSize;
+        }
+        else if (sample != null) {
+            millis = sample.millis;
+        }
+        else if (totalBytes > 0) {
+            millis = (double) totalMillis * inputSize / totalBytes;
+        }
+        else {
+            millis = 0;
+        }
+        return Math.max(1, Math.round(millis));
+    }
+}
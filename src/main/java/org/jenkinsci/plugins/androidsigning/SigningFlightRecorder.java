@@ -0,0 +1,260 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.security.MasterToSlaveCallable;
+
+
+/**
+ * Java Flight Recorder events for the slow parts of signing, and control of JFR recordings on agents.
+ * <p>
+ * The plugin targets Java 8, which has no {@code jdk.jfr} API, so this class defines its event types at run time
+ * through {@code jdk.jfr.EventFactory} and calls JFR reflectively.  On a JVM without JFR, events are no-ops and
+ * recordings fail with an {@link IOException} the caller can report.  Every event carries the path and size of
+ * the APK it concerns, where there is one; JFR records the thread of each event itself.
+ * <p>
+ * Events fire in the JVM that does the work: {@code ApkSign} on the node that signs, and {@code ZipalignDiscovery},
+ * {@code ZipalignWait}, and {@code KeyStoreDecode} in the controller, which runs zipalign on the node and waits
+ * for it.  The recordings this class starts enable only these events, not the JDK's own events, which would
+ * record the environment, system properties, and threads of everything else running in the JVM.
+ */
+class SigningFlightRecorder {
+
+    private static final Logger LOGGER = Logger.getLogger(SigningFlightRecorder.class.getName());
+
+    static final String EVENT_NAME_PREFIX = "org.jenkinsci.plugins.androidsigning.";
+    static final String RECORDING_FILE_NAME = "signing.jfr";
+    static final long MAX_RECORDING_SIZE = 64L * 1024 * 1024;
+    private static final String RECORDING_NAME = "Android APK signing";
+
+    enum EventType {
+        ZIPALIGN_DISCOVERY("ZipalignDiscovery", "Zipalign Discovery"),
+        ZIPALIGN_WAIT("ZipalignWait", "Zipalign Wait"),
+        KEY_STORE_DECODE("KeyStoreDecode", "Key Store Decode"),
+        APK_SIGN("ApkSign", "APK Sign");
+
+        final String eventName;
+        final String label;
+
+        EventType(String eventName, String label) {
+            this.eventName = eventName;
+            this.label = label;
+        }
+    }
+
+    /**
+     * A running JFR event; {@link #commit()} ends and commits it.
+     */
+    static final class Event {
+        private final Object jfrEvent;
+
+        private Event(@CheckForNull Object jfrEvent) {
+            this.jfrEvent = jfrEvent;
+        }
+
+        void commit() {
+            if (jfrEvent == null) {
+                return;
+            }
+            try {
+                jfr.eventEnd.invoke(jfrEvent);
+                jfr.eventCommit.invoke(jfrEvent);
+            }
+            catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.FINE, "error committing JFR event", e);
+            }
+        }
+    }
+
+    /**
+     * The reflective handles on the JFR API, or null if this JVM has no JFR.
+     */
+    private static final Jfr jfr = Jfr.load();
+
+    private static final class Jfr {
+        final Map<EventType, Object> eventFactories = new EnumMap<>(EventType.class);
+        final Method newEvent;
+        final Method eventBegin;
+        final Method eventEnd;
+        final Method eventCommit;
+        final Method eventSet;
+
+        @SuppressWarnings("unchecked")
+        private Jfr() throws ReflectiveOperationException {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<? extends Annotation> name = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+            Class<? extends Annotation> label = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+            Class<? extends Annotation> category = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+            Class<? extends Annotation> dataAmount = (Class<? extends Annotation>) Class.forName("jdk.jfr.DataAmount");
+            Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+            Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+
+            List<Object> fields = Arrays.asList(
+                valueDescriptor.newInstance(String.class, "apkPath",
+                    Collections.singletonList(annotationElement.newInstance(label, "APK Path"))),
+                valueDescriptor.newInstance(long.class, "apkSize",
+                    Arrays.asList(annotationElement.newInstance(label, "APK Size"), annotationElement.newInstance(dataAmount, "BYTES"))));
+            for (EventType type : EventType.values()) {
+                List<Object> annotations = Arrays.asList(
+                    annotationElement.newInstance(name, EVENT_NAME_PREFIX + type.eventName),
+                    annotationElement.newInstance(label, type.label),
+                    annotationElement.newInstance(category, new String[] { "Jenkins", "Android Signing" }));
+                eventFactories.put(type, create.invoke(null, annotations, fields));
+            }
+
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            eventBegin = eventClass.getMethod("begin");
+            eventEnd = eventClass.getMethod("end");
+            eventCommit = eventClass.getMethod("commit");
+            eventSet = eventClass.getMethod("set", int.class, Object.class);
+        }
+
+        @CheckForNull
+        static Jfr load() {
+            try {
+                return new Jfr();
+            }
+            catch (ClassNotFoundException e) {
+                LOGGER.fine("JFR is not available in this JVM");
+            }
+            catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                LOGGER.log(Level.FINE, "error defining JFR event types", e);
+            }
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return jfr != null;
+    }
+
+    /**
+     * Begin an event that does not concern one APK.
+     */
+    static Event begin(EventType type) {
+        return begin(type, null, 0);
+    }
+
+    static Event begin(EventType type, @CheckForNull String apkPath, long apkSize) {
+        if (jfr == null) {
+            return new Event(null);
+        }
+        try {
+            Object event = jfr.newEvent.invoke(jfr.eventFactories.get(type));
+            jfr.eventSet.invoke(event, 0, apkPath);
+            jfr.eventSet.invoke(event, 1, apkSize);
+            jfr.eventBegin.invoke(event);
+            return new Event(event);
+        }
+        catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.FINE, "error beginning JFR event " + type.eventName, e);
+            return new Event(null);
+        }
+    }
+
+    private static Object invokeRecorder(String className, String methodName, Object target, Class<?>[] parameterTypes, Object... args) throws IOException {
+        try {
+            return Class.forName(className).getMethod(methodName, parameterTypes).invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException("JFR " + methodName + " failed: " + e.getCause(), e.getCause());
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            throw new IOException("JFR is not available in this JVM: " + e, e);
+        }
+    }
+
+    /**
+     * Start a size-bounded JFR recording of the plugin's events in the JVM this runs in, and return its ID.
+     */
+    static class StartRecording extends MasterToSlaveCallable<Long, IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        @Override
+        public Long call() throws IOException {
+            Object recording;
+            try {
+                recording = Class.forName("jdk.jfr.Recording").getConstructor().newInstance();
+            }
+            catch (InvocationTargetException e) {
+                throw new IOException("failed to create JFR recording: " + e.getCause(), e.getCause());
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                throw new IOException("JFR is not available in this JVM: " + e, e);
+            }
+            invokeRecorder("jdk.jfr.Recording", "setName", recording, new Class<?>[] { String.class }, RECORDING_NAME);
+            // a recording without settings records no events but the ones enabled here
+            for (EventType type : EventType.values()) {
+                invokeRecorder("jdk.jfr.Recording", "enable", recording, new Class<?>[] { String.class }, EVENT_NAME_PREFIX + type.eventName);
+            }
+            invokeRecorder("jdk.jfr.Recording", "setToDisk", recording, new Class<?>[] { boolean.class }, true);
+            invokeRecorder("jdk.jfr.Recording", "setMaxSize", recording, new Class<?>[] { long.class }, MAX_RECORDING_SIZE);
+            invokeRecorder("jdk.jfr.Recording", "start", recording, new Class<?>[0]);
+            return (Long) invokeRecorder("jdk.jfr.Recording", "getId", recording, new Class<?>[0]);
+        }
+    }
+
+    /**
+     * Stop the JFR recording with the given ID and dump it to the given file.
+     */
+    static class StopRecording extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1;
+
+        private final long recordingId;
+        private final String dumpFile;
+
+        StopRecording(long recordingId, String dumpFile) {
+            this.recordingId = recordingId;
+            this.dumpFile = dumpFile;
+        }
+
+        /**
+         * @return false if there was no recording with the ID
+         */
+        @Override
+        public Boolean call() throws IOException {
+            Object recorder = invokeRecorder("jdk.jfr.FlightRecorder", "getFlightRecorder", null, new Class<?>[0]);
+            List<?> recordings = (List<?>) invokeRecorder("jdk.jfr.FlightRecorder", "getRecordings", recorder, new Class<?>[0]);
+            for (Object recording : recordings) {
+                if ((Long) invokeRecorder("jdk.jfr.Recording", "getId", recording, new Class<?>[0]) != recordingId) {
+                    continue;
+                }
+                try {
+                    invokeRecorder("jdk.jfr.Recording", "stop", recording, new Class<?>[0]);
+                    File dump = new File(dumpFile);
+                    File dumpDir = dump.getParentFile();
+                    if (dumpDir != null && !dumpDir.isDirectory() && !dumpDir.mkdirs()) {
+                        throw new IOException("failed to create JFR recording directory " + dumpDir);
+                    }
+                    invokeRecorder("jdk.jfr.Recording", "dump", recording, new Class<?>[] { Path.class }, dump.toPath());
+                }
+                finally {
+                    invokeRecorder("jdk.jfr.Recording", "close", recording, new Class<?>[0]);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
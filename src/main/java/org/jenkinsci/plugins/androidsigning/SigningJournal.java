@@ -0,0 +1,159 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.Run;
+
+
+/**
+ * The APKs the {@link SignApksBuilder} steps of a build have finished signing, with the digests of each signed
+ * output, kept in the build directory so a step that runs again in the same build, because a pipeline retried it or
+ * resumed it after a restart, continues from the APKs it has not signed yet.  Each APK appends a line that is forced
+ * to disk before the step moves on, and a line cut short by a crash is ignored when the journal is read back.
+ */
+class SigningJournal {
+
+    static final String JOURNAL_FILE_NAME = "android-signing-journal.txt";
+
+    private static final Object WRITE_LOCK = new Object();
+
+    static class Entry {
+        final String keyStoreId;
+        final String keyAlias;
+        final String unsignedApk;
+        final long unsignedSize;
+        final long unsignedLastModified;
+        final String signedApk;
+        final DigestingDataSink.Digests digests;
+
+        Entry(String keyStoreId, String keyAlias, String unsignedApk, long unsignedSize, long unsignedLastModified, String signedApk,
+            DigestingDataSink.Digests digests) {
+            this.keyStoreId = keyStoreId;
+            this.keyAlias = keyAlias;
+            this.unsignedApk = unsignedApk;
+            this.unsignedSize = unsignedSize;
+            this.unsignedLastModified = unsignedLastModified;
+            this.signedApk = signedApk;
+            this.digests = digests;
+        }
+
+        private String key() {
+            return SigningJournal.key(keyStoreId, keyAlias, unsignedApk);
+        }
+
+        private String toLine() {
+            return String.join("\t", keyStoreId, keyAlias, unsignedApk, Long.toString(unsignedSize), Long.toString(unsignedLastModified),
+                signedApk, Long.toString(digests.size), digests.md5, digests.sha256) + "\n";
+        }
+
+        @CheckForNull
+        private static Entry fromLine(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 9) {
+                return null;
+            }
+            try {
+                return new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5],
+                    new DigestingDataSink.Digests(Long.parseLong(fields[6]), fields[7], fields[8]));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean endsWithPartialLine;
+
+    SigningJournal(@Nonnull File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                Entry entry = Entry.fromLine(line);
+                if (entry != null) {
+                    entries.put(entry.key(), entry);
+                }
+            }
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() > 0) {
+                in.seek(in.length() - 1);
+                endsWithPartialLine = in.read() != '\n';
+            }
+        }
+    }
+
+    static SigningJournal forRun(@Nonnull Run<?, ?> run) throws IOException {
+        return new SigningJournal(new File(run.getRootDir(), JOURNAL_FILE_NAME));
+    }
+
+    private static String key(String keyStoreId, String keyAlias, String unsignedApk) {
+        return keyStoreId + "\t" + keyAlias + "\t" + unsignedApk;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @CheckForNull
+    Entry get(String keyStoreId, String keyAlias, String unsignedApk) {
+        return entries.get(key(keyStoreId, keyAlias, unsignedApk));
+    }
+
+    /**
+     * Append the entry to the journal file and wait for it to reach the disk.
+     */
+    void record(@Nonnull Entry entry) throws IOException {
+        synchronized (WRITE_LOCK) {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                // end a line cut short by a crash, so it does not run into this one
+                String line = endsWithPartialLine ? "\n" + entry.toLine() : entry.toLine();
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.getChannel().force(false);
+            }
+            endsWithPartialLine = false;
+        }
+        entries.put(entry.key(), entry);
+    }
+
+    /**
+     * @return the digests of the signed APK the journal records for the given unsigned APK, when the unsigned APK has
+     * the size and modification time it had when it was signed and the signed APK is still there with the recorded
+     * SHA-256 digest, or else null, so the APK needs signing again
+     */
+    @CheckForNull
+    DigestingDataSink.Digests verifiedOutput(String keyStoreId, String keyAlias, String unsignedRelName, FilePath unsignedApk,
+        String signedRelName, FilePath signedApk) throws IOException, InterruptedException {
+        Entry entry = get(keyStoreId, keyAlias, unsignedRelName);
+        if (entry == null || !entry.signedApk.equals(signedRelName)) {
+            return null;
+        }
+        if (unsignedApk.length() != entry.unsignedSize || unsignedApk.lastModified() != entry.unsignedLastModified) {
+            return null;
+        }
+        if (!signedApk.exists() || signedApk.length() != entry.digests.size) {
+            return null;
+        }
+        DigestFileCallable digest = new DigestFileCallable(DigestFileCallable.SHA_256);
+        String sha256 = signedApk.act(digest);
+        RemoteCallAccounting.recordReceived(signedApk, sha256);
+        return sha256.equals(entry.digests.sha256) ? entry.digests : null;
+    }
+}
@@ -0,0 +1,133 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+
+
+/**
+ * Keeps the signing of one APK within a memory limit.  The signer streams the entries of the APK rather than holding
+ * them in memory, but it keeps the whole central directory, the v1 signature files, which have a line for every
+ * entry, the AndroidManifest.xml, and a digest of every megabyte for the v2 signature.  Those grow with the APK, so
+ * the signing of an APK is admitted only when an estimate of them fits in the limit with the
+ * {@link PooledBufferDataSink} buffer the signed APK is written through.
+ */
+class SigningMemoryLimit {
+
+    static final long MIB = 1L << 20;
+
+    /** the signer, its configuration, and the certificates, whatever the APK */
+    static final long FIXED_HEAP_BYTES = 4 * MIB;
+    /** the signer's record of an entry, besides the entry's name */
+    static final long ENTRY_HEAP_BYTES = 256;
+    /** a v1 signature file's line for an entry, besides the entry's name */
+    static final long SIGNATURE_LINE_BYTES = 100;
+    static final long V2_CHUNK_SIZE = MIB;
+    static final long V2_CHUNK_DIGEST_BYTES = 32;
+
+    static final String ANDROID_MANIFEST = "AndroidManifest.xml";
+
+    /**
+     * The memory the signing of one APK used.
+     */
+    static class Usage implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final long estimatedHeapBytes;
+        final long directBytes;
+        /** the heap the signer allocated in all, most of it collected as it went, or -1 if the JVM does not say */
+        final long allocatedHeapBytes;
+
+        Usage(long estimatedHeapBytes, long directBytes, long allocatedHeapBytes) {
+            this.estimatedHeapBytes = estimatedHeapBytes;
+            this.directBytes = directBytes;
+            this.allocatedHeapBytes = allocatedHeapBytes;
+        }
+
+        /**
+         * @return the memory estimated before signing, with the direct buffers the signing then used; not a measured
+         * peak, nor a bound on the heap the signer allocates
+         */
+        long getEstimatedBytes() {
+            return estimatedHeapBytes + directBytes;
+        }
+    }
+
+    /**
+     * @param limitMiB the limit the user configured, in MiB
+     * @return the limit in bytes
+     */
+    static long parseLimit(@Nonnull String limitMiB) throws AbortException {
+        try {
+            long mib = Long.parseLong(limitMiB.trim());
+            if (mib > 0) {
+                return mib * MIB;
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new AbortException(String.format("signing memory limit %s is not a positive number of MiB", limitMiB));
+    }
+
+    /**
+     * @return about how much heap the signer holds at once to sign the APK of the given layout
+     */
+    static long estimateHeapBytes(@Nonnull ApkZipLayout layout) {
+        long entries = layout.getEntries().size();
+        long nameBytes = 0;
+        long manifestBytes = 0;
+        for (ApkZipLayout.Entry entry : layout.getEntries()) {
+            nameBytes += entry.name.length();
+            if (ANDROID_MANIFEST.equals(entry.name)) {
+                manifestBytes = entry.uncompressedSize;
+            }
+        }
+        long v2Chunks = layout.fileSize / V2_CHUNK_SIZE + 1;
+        return FIXED_HEAP_BYTES
+            // the central directory read from the unsigned APK, and the one built for the signed APK
+            + 2 * layout.centralDirectorySize
+            // names are held as UTF-16 strings
+            + entries * ENTRY_HEAP_BYTES + 2 * nameBytes
+            // MANIFEST.MF and the .SF file
+            + 2 * (entries * SIGNATURE_LINE_BYTES + nameBytes)
+            + manifestBytes
+            // a digest of each chunk of the entries and of the central directory, and the chunk being digested
+            + 2 * v2Chunks * V2_CHUNK_DIGEST_BYTES + V2_CHUNK_SIZE;
+    }
+
+    /**
+     * Check the APK can be signed within the limit.
+     *
+     * @return the estimated heap the signer needs
+     * @throws AbortException if the estimate and the output buffer do not fit in the limit
+     */
+    static long admit(@Nonnull File apk, @Nonnull ApkZipLayout layout, long limitBytes) throws AbortException {
+        long heapBytes = estimateHeapBytes(layout);
+        long neededBytes = heapBytes + PooledBufferDataSink.BUFFER_SIZE;
+        if (neededBytes > limitBytes) {
+            throw new AbortException(String.format("APK %s needs about %,d MiB to sign, more than the signing memory limit of %,d MiB",
+                apk.getAbsolutePath(), (neededBytes + MIB - 1) / MIB, limitBytes / MIB));
+        }
+        return heapBytes;
+    }
+
+    /**
+     * @return the heap the current thread has allocated since it started, or -1 if the JVM does not say
+     */
+    static long currentThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,125 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.Plugin;
+import jenkins.model.Jenkins;
+
+
+/**
+ * Timings of the stages of {@link SignApksBuilder}, counts of the APKs and bytes it signs, and counts of the
+ * remote calls each stage makes, from {@link RemoteCallAccounting}.  When the
+ * Metrics plugin is installed, the metrics go to its registry, so they show up wherever the Metrics plugin
+ * reports; otherwise, they are available through the {@link SigningMetricsMXBean} on the platform MBean server.
+ */
+abstract class SigningMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(SigningMetrics.class.getName());
+
+    static final String METRIC_PREFIX = "android-signing";
+
+    enum Stage {
+        ENVIRONMENT("environment"),
+        ZIPALIGN_DISCOVERY("zipalign-discovery"),
+        KEY_STORE_DECODE("keystore-decode"),
+        WORKSPACE_SCAN("workspace-scan"),
+        ZIPALIGN("zipalign"),
+        SIGN("sign"),
+        ARCHIVE("archive");
+
+        final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /**
+     * A running measurement of one stage, optionally traced as a span.  Stages that fail do not call
+     * {@link #stop()}, so failures do not skew the timings.  Until it stops, the remote calls of the thread that
+     * started the timing count towards its stage.
+     */
+    final class Timing {
+        private final Stage stage;
+        private final SigningTrace.Span span;
+        private final long start = System.nanoTime();
+
+        private Timing(Stage stage, @CheckForNull SigningTrace.Span span) {
+            this.stage = stage;
+            this.span = span;
+            RemoteCallAccounting.enterStage(stage);
+        }
+
+        /**
+         * @return the span tracing this stage, or null if the stage is not traced
+         */
+        @CheckForNull
+        SigningTrace.Span span() {
+            return span;
+        }
+
+        /**
+         * @return the elapsed time in nanoseconds
+         */
+        long stop() {
+            long elapsed = System.nanoTime() - start;
+            RemoteCallAccounting.exitStage(stage);
+            recordStage(stage, elapsed);
+            if (span != null) {
+                span.end();
+            }
+            return elapsed;
+        }
+    }
+
+    private static SigningMetrics instance;
+
+    static synchronized SigningMetrics get() {
+        if (instance == null) {
+            instance = create();
+        }
+        return instance;
+    }
+
+    private static SigningMetrics create() {
+        Jenkins jenkins = Jenkins.getInstance();
+        Plugin metricsPlugin = jenkins == null ? null : jenkins.getPlugin("metrics");
+        if (metricsPlugin != null) {
+            try {
+                SigningMetrics registryMetrics = MetricsPluginSigningMetrics.create();
+                if (registryMetrics != null) {
+                    return registryMetrics;
+                }
+            }
+            catch (LinkageError e) {
+                LOGGER.log(Level.WARNING, "error using the Metrics plugin registry; reporting signing metrics through JMX instead", e);
+            }
+        }
+        return JmxSigningMetrics.create();
+    }
+
+    Timing start(Stage stage) {
+        return new Timing(stage, null);
+    }
+
+    /**
+     * Start timing the given stage, and a span named for the stage in the given trace.
+     */
+    Timing start(Stage stage, @Nonnull SigningTrace trace, @CheckForNull SigningTrace.Span parent) {
+        return new Timing(stage, trace.start(stage.metricName, parent));
+    }
+
+    abstract void recordStage(Stage stage, long nanos);
+
+    abstract void recordSignedApk(long bytes);
+
+    /**
+     * Record the remote calls of one signing step in one phase, which is a {@link Stage#metricName} or
+     * {@value RemoteCallAccounting#OTHER_PHASE}.
+     */
+    abstract void recordRemoteCalls(String phase, long calls, long bytesSent, long bytesReceived);
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.util.Map;
+
+
+/**
+ * The JMX view of {@link SigningMetrics}, registered as {@value JmxSigningMetrics#OBJECT_NAME} when the Metrics
+ * plugin is not installed.
+ */
+public interface SigningMetricsMXBean {
+
+    long getApksSigned();
+
+    long getBytesSigned();
+
+    /**
+     * @return the timing of each stage of signing, keyed by stage name
+     */
+    Map<String, StageTiming> getStageTimings();
+
+    /**
+     * @return the remote calls signing steps made in each phase, keyed by phase name
+     */
+    Map<String, RemoteCalls> getRemoteCalls();
+
+    void reset();
+
+    class StageTiming {
+        private final long count;
+        private final long totalMillis;
+        private final long maxMillis;
+        private final long p50Millis;
+        private final long p95Millis;
+
+        public StageTiming(long count, long totalMillis, long maxMillis, long p50Millis, long p95Millis) {
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMeanMillis() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        /**
+         * @return the upper bound of the power-of-two histogram bucket that holds the median
+         */
+        public long getP50Millis() {
+            return p50Millis;
+        }
+
+        /**
+         * @return the upper bound of the power-of-two histogram bucket that holds the 95th percentile
+         */
+        public long getP95Millis() {
+            return p95Millis;
+        }
+    }
+
+    class RemoteCalls {
+        private final long calls;
+        private final long bytesSent;
+        private final long bytesReceived;
+
+        public RemoteCalls(long calls, long bytesSent, long bytesReceived) {
+            this.calls = calls;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return the estimated serialized size of the calls
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * @return the estimated serialized size of the results the plugin's own callables returned
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+
+/**
+ * The APKs the {@link SignApksBuilder} steps of a build signed, with the sizes, timings, and signer of each.
+ * The action is saved with the build, so {@link SigningTrendAction} can chart it across builds.
+ */
+public class SigningReportAction implements RunAction2 {
+
+    static final String URL_NAME = "signingReport";
+
+    public static class SignedApk {
+        private final String unsignedApk;
+        private final String signedApk;
+        private final long inputSize;
+        private final long outputSize;
+        private final boolean zipalignSkipped;
+        private final long zipalignMillis;
+        private final long signMillis;
+        private final String signatureSchemes;
+        private final String keyStoreId;
+        private final String keyAlias;
+        private final String signerCertSha256;
+        private final long estimatedMemoryBytes;
+
+        SignedApk(String unsignedApk, String signedApk, long inputSize, long outputSize, boolean zipalignSkipped, long zipalignMillis, long signMillis,
+            String signatureSchemes, String keyStoreId, String keyAlias, String signerCertSha256) {
+            this(unsignedApk, signedApk, inputSize, outputSize, zipalignSkipped, zipalignMillis, signMillis, signatureSchemes, keyStoreId, keyAlias,
+                signerCertSha256, 0);
+        }
+
+        /**
+         * @param estimatedMemoryBytes the memory estimated before signing the APK that it would need, heap and direct
+         * buffers, or 0 if signing had no memory limit
+         */
+        SignedApk(String unsignedApk, String signedApk, long inputSize, long outputSize, boolean zipalignSkipped, long zipalignMillis, long signMillis,
+            String signatureSchemes, String keyStoreId, String keyAlias, String signerCertSha256, long estimatedMemoryBytes) {
+            this.unsignedApk = unsignedApk;
+            this.signedApk = signedApk;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.zipalignSkipped = zipalignSkipped;
+            this.zipalignMillis = zipalignMillis;
+            this.signMillis = signMillis;
+            this.signatureSchemes = signatureSchemes;
+            this.keyStoreId = keyStoreId;
+            this.keyAlias = keyAlias;
+            this.signerCertSha256 = signerCertSha256;
+            this.estimatedMemoryBytes = estimatedMemoryBytes;
+        }
+
+        public String getUnsignedApk() {
+            return unsignedApk;
+        }
+
+        public String getSignedApk() {
+            return signedApk;
+        }
+
+        public long getInputSize() {
+            return inputSize;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        public boolean isZipalignSkipped() {
+            return zipalignSkipped;
+        }
+
+        public long getZipalignMillis() {
+            return zipalignMillis;
+        }
+
+        public long getSignMillis() {
+            return signMillis;
+        }
+
+        public String getSignatureSchemes() {
+            return signatureSchemes;
+        }
+
+        public String getKeyStoreId() {
+            return keyStoreId;
+        }
+
+        public String getKeyAlias() {
+            return keyAlias;
+        }
+
+        public String getSignerCertSha256() {
+            return signerCertSha256;
+        }
+
+        public long getEstimatedMemoryBytes() {
+            return estimatedMemoryBytes;
+        }
+    }
+
+    private final List<SignedApk> signedApks = new ArrayList<>();
+    private long durationMillis;
+    private transient Run<?, ?> run;
+
+    /**
+     * @return the report of the given build, attaching a new one to the build if it does not have one
+     */
+    static synchronized SigningReportAction forRun(@Nonnull Run<?, ?> run) {
+        SigningReportAction report = run.getAction(SigningReportAction.class);
+        if (report == null) {
+            report = new SigningReportAction();
+            run.addAction(report);
+        }
+        return report;
+    }
+
+    synchronized void addSignedApk(SignedApk apk) {
+        signedApks.add(apk);
+    }
+
+    /**
+     * Add the duration of one signing step; a build can have several.
+     */
+    synchronized void addDuration(long millis) {
+        durationMillis += millis;
+    }
+
+    public synchronized List<SignedApk> getSignedApks() {
+        return Collections.unmodifiableList(new ArrayList<>(signedApks));
+    }
+
+    public synchronized long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public synchronized long getTotalOutputSize() {
+        long total = 0;
+        for (SignedApk apk : signedApks) {
+            total += apk.outputSize;
+        }
+        return total;
+    }
+
+    /**
+     * @return the most memory estimated for signing any one APK, or 0 if no APK was signed with a memory limit; an
+     * estimate made before signing, not a measurement
+     */
+    public synchronized long getEstimatedMemoryBytes() {
+        long most = 0;
+        for (SignedApk apk : signedApks) {
+            most = Math.max(most, apk.estimatedMemoryBytes);
+        }
+        return most;
+    }
+
+    /**
+     * @return {@link #getEstimatedMemoryBytes()} in MiB, rounded up
+     */
+    public long getEstimatedMemoryMiB() {
+        return (getEstimatedMemoryBytes() + SigningMemoryLimit.MIB - 1) / SigningMemoryLimit.MIB;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "document.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.signingReport_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        run = r;
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.IOException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+
+/**
+ * Where one signing step puts its aligned APKs and other temporary files on a node.  With a
+ * {@link SigningScratchNodeProperty}, the files go in a directory of the step's own under the node's scratch
+ * directory, which the step deletes when it closes the scratch.  A file goes to the fallback directory in the
+ * workspace instead when the node has no scratch directory, when the scratch directory cannot be created, or when
+ * it has too little free space for the file.
+ */
+class SigningScratch implements AutoCloseable {
+
+    /**
+     * The free space the scratch directory keeps beyond the expected size of a file, as the expected size is a guess
+     * and a full tmpfs starves everything else on the node.
+     */
+    static final long RESERVED_BYTES = 16L << 20;
+
+    private final FilePath scratchDir;
+    private final FilePath fallbackDir;
+    private final TaskListener listener;
+
+    SigningScratch(@CheckForNull FilePath scratchDir, @Nonnull FilePath fallbackDir, @Nonnull TaskListener listener) {
+        this.scratchDir = scratchDir;
+        this.fallbackDir = fallbackDir;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the scratch of the node of the given workspace
+     */
+    static SigningScratch forWorkspace(@Nonnull FilePath workspace, @Nonnull FilePath fallbackDir, @Nonnull TaskListener listener) throws InterruptedException {
+        Computer computer = workspace.toComputer();
+        return forNode(computer == null ? null : computer.getNode(), fallbackDir, listener);
+    }
+
+    /**
+     * @return the scratch of the given node, creating the step's directory under the node's scratch directory
+     */
+    static SigningScratch forNode(@CheckForNull Node node, @Nonnull FilePath fallbackDir, @Nonnull TaskListener listener) throws InterruptedException {
+        SigningScratchNodeProperty property = node == null ? null : node.getNodeProperties().get(SigningScratchNodeProperty.class);
+        if (property == null || property.getScratchDirectory() == null) {
+            return new SigningScratch(null, fallbackDir, listener);
+        }
+        FilePath scratchRoot = node.createPath(property.getScratchDirectory());
+        if (scratchRoot == null) {
+            return new SigningScratch(null, fallbackDir, listener);
+        }
+        try {
+            scratchRoot.mkdirs();
+            FilePath scratchDir = scratchRoot.createTempDir("SignApksBuilder-", "");
+            listener.getLogger().printf("[SignApksBuilder] using scratch directory %s%n", scratchDir.getRemote());
+            return new SigningScratch(scratchDir, fallbackDir, listener);
+        }
+        catch (IOException e) {
+            listener.getLogger().printf("[SignApksBuilder] cannot use scratch directory %s; using %s instead: %s%n",
+                scratchRoot.getRemote(), fallbackDir.getRemote(), e);
+            return new SigningScratch(null, fallbackDir, listener);
+        }
+    }
+
+    /**
+     * @return whether the step has a directory under the node's scratch directory, rather than only the fallback
+     */
+    boolean hasScratchDir() {
+        return scratchDir != null;
+    }
+
+    /**
+     * Create an empty temporary file in the scratch directory when it has room for the expected size, or else in
+     * the fallback directory.
+     *
+     * @param expectedSize about how large the file will grow
+     */
+    FilePath createTempFile(@Nonnull String prefix, @Nonnull String suffix, long expectedSize) throws IOException, InterruptedException {
+        if (hasRoomFor(prefix + "*" + suffix, expectedSize)) {
+            return scratchDir.createTempFile(prefix, suffix);
+        }
+        fallbackDir.mkdirs();
+        return fallbackDir.createTempFile(prefix, suffix);
+    }
+
+    /**
+     * Create an empty temporary directory in the scratch directory when it has room for the expected size of its
+     * contents, or else in the fallback directory.
+     *
+     * @param expectedSize about how large the directory's contents will grow
+     */
+    FilePath createTempDir(@Nonnull String prefix, @Nonnull String suffix, long expectedSize) throws IOException, InterruptedException {
+        if (hasRoomFor(prefix + "*" + suffix, expectedSize)) {
+            return scratchDir.createTempDir(prefix, suffix);
+        }
+        fallbackDir.mkdirs();
+        return fallbackDir.createTempDir(prefix, suffix);
+    }
+
+    private boolean hasRoomFor(String name, long expectedSize) throws IOException, InterruptedException {
+        if (scratchDir == null) {
+            return false;
+        }
+        long usable = scratchDir.getUsableDiskSpace();
+        long needed = expectedSize + RESERVED_BYTES;
+        if (usable >= needed) {
+            return true;
+        }
+        listener.getLogger().printf("[SignApksBuilder] scratch directory %s has %,d bytes free of the %,d needed for %s; using %s instead%n",
+            scratchDir.getRemote(), usable, needed, name, fallbackDir.getRemote());
+        return false;
+    }
+
+    /**
+     * Delete the step's scratch directory with everything left in it.
+     */
+    @Override
+    public void close() {
+        if (scratchDir != null) {
+            SignApksBuilder.deleteQuietly(scratchDir, listener);
+        }
+    }
+}
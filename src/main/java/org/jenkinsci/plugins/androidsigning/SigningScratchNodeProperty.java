@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
+
+
+/**
+ * Puts the aligned APKs and other temporary files of the builds that sign on a node in a directory on fast local
+ * storage rather than in the workspace; see {@link SigningScratch}.
+ */
+public class SigningScratchNodeProperty extends NodeProperty<Node> {
+
+    private final String scratchDirectory;
+
+    @DataBoundConstructor
+    public SigningScratchNodeProperty(String scratchDirectory) {
+        this.scratchDirectory = StringUtils.stripToNull(scratchDirectory);
+    }
+
+    public String getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.signingScratch_displayName();
+        }
+
+        public FormValidation doCheckScratchDirectory(@QueryParameter String value) {
+            value = StringUtils.stripToNull(value);
+            if (value == null) {
+                return FormValidation.error(Messages.validation_scratchDirectoryRequired());
+            }
+            // the node may not run the same OS as the master, so accept absolute paths of either kind
+            if (!value.startsWith("/") && !value.startsWith("\\\\") && !value.matches("[A-Za-z]:[\\\\/].*")) {
+                return FormValidation.error(Messages.validation_scratchDirectoryNotAbsolute());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+
+/**
+ * A trace of one {@link SignApksBuilder} step, made of spans with parent/child relationships.  Spans are
+ * {@link Serializable}, and so is their {@link Context}, so a callable can start child spans on an agent and
+ * return them to the controller, which adds them to the trace.  The trace is written in the OTLP/JSON format,
+ * which trace viewers and OpenTelemetry collectors import.
+ * <p>
+ * Span times are wall-clock times of the JVM that recorded the span, so spans from an agent are only as
+ * consistent with controller spans as the two clocks are.  Agent spans also record the CPU time and heap
+ * allocation of the thread that did the work, which separates agent CPU time from remoting latency regardless of
+ * clock skew.
+ */
+class SigningTrace {
+
+    static final String TRACE_FILE_NAME = "android-signing-trace.json";
+    static final String SERVICE_NAME = "jenkins-android-signing";
+    static final String CPU_TIME_ATTRIBUTE = "thread.cpu_time_ns";
+    static final String ALLOCATED_BYTES_ATTRIBUTE = "thread.allocated_bytes";
+
+    /** nanosecond offset between {@link System#nanoTime()} and the Unix epoch in this JVM */
+    private static final long EPOCH_NANOS_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    private static long nowUnixNanos() {
+        return EPOCH_NANOS_OFFSET + System.nanoTime();
+    }
+
+    private static String randomId(int longs) {
+        StringBuilder id = new StringBuilder(longs * 16);
+        for (int i = 0; i < longs; i++) {
+            long part;
+            do {
+                part = ThreadLocalRandom.current().nextLong();
+            } while (part == 0);
+            id.append(String.format("%016x", part));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Identifies a span as the parent of spans that another JVM starts.
+     */
+    static final class Context implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final String traceId;
+        final String spanId;
+
+        private Context(String traceId, String spanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+    }
+
+    static final class Span implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        /**
+         * Start a span without adding it to a trace, e.g., on an agent; the caller is responsible for returning
+         * it to the trace.
+         */
+        static Span start(String name, @Nonnull Context parent) {
+            return new Span(null, parent.traceId, parent.spanId, name);
+        }
+
+        private final transient SigningTrace trace;
+        final String traceId;
+        final String spanId = randomId(1);
+        final String parentSpanId;
+        final String name;
+        final long startUnixNanos = nowUnixNanos();
+        private final long startCpuNanos;
+        private final long startAllocatedBytes;
+        private long endUnixNanos;
+        private final Map<String, Serializable> attributes = new LinkedHashMap<>();
+
+        private Span(@CheckForNull SigningTrace trace, String traceId, @CheckForNull String parentSpanId, String name) {
+            this.trace = trace;
+            this.traceId = traceId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            startCpuNanos = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+            startAllocatedBytes = SigningMemoryLimit.currentThreadAllocatedBytes();
+        }
+
+        Context context() {
+            return new Context(traceId, spanId);
+        }
+
+        Span attribute(String key, String value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        Span attribute(String key, long value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        /**
+         * Record the CPU time the current thread spent since this span started; only meaningful if the
+         * current thread started the span.
+         */
+        Span recordCpuTime() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (startCpuNanos > -1 && threads.isCurrentThreadCpuTimeSupported()) {
+                attribute(CPU_TIME_ATTRIBUTE, threads.getCurrentThreadCpuTime() - startCpuNanos);
+            }
+            return this;
+        }
+
+        /**
+         * Record the heap the current thread allocated since this span started; only meaningful if the current
+         * thread started the span.
+         */
+        Span recordAllocatedBytes() {
+            long allocatedBytes = SigningMemoryLimit.currentThreadAllocatedBytes();
+            if (startAllocatedBytes > -1 && allocatedBytes > -1) {
+                attribute(ALLOCATED_BYTES_ATTRIBUTE, allocatedBytes - startAllocatedBytes);
+            }
+            return this;
+        }
+
+        void end() {
+            endUnixNanos = nowUnixNanos();
+            if (trace != null) {
+                trace.add(this);
+            }
+        }
+
+        boolean isEnded() {
+            return endUnixNanos != 0;
+        }
+
+        JSONObject toOtlpJson() {
+            JSONObject span = new JSONObject();
+            span.put("traceId", traceId);
+            span.put("spanId", spanId);
+            if (parentSpanId != null) {
+                span.put("parentSpanId", parentSpanId);
+            }
+            span.put("name", name);
+            // SPAN_KIND_INTERNAL
+            span.put("kind", 1);
+            span.put("startTimeUnixNano", String.valueOf(startUnixNanos));
+            span.put("endTimeUnixNano", String.valueOf(endUnixNanos));
+            span.put("attributes", otlpAttributes(attributes));
+            return span;
+        }
+    }
+
+    private static JSONArray otlpAttributes(Map<String, ? extends Serializable> attributes) {
+        JSONArray otlpAttributes = new JSONArray();
+        for (Map.Entry<String, ? extends Serializable> attribute : attributes.entrySet()) {
+            JSONObject value = new JSONObject();
+            if (attribute.getValue() instanceof Long) {
+                // OTLP/JSON encodes 64-bit integers as strings
+                value.put("intValue", String.valueOf(attribute.getValue()));
+            }
+            else {
+                value.put("stringValue", String.valueOf(attribute.getValue()));
+            }
+            JSONObject otlpAttribute = new JSONObject();
+            otlpAttribute.put("key", attribute.getKey());
+            otlpAttribute.put("value", value);
+            otlpAttributes.add(otlpAttribute);
+        }
+        return otlpAttributes;
+    }
+
+    private final String traceId = randomId(2);
+    private final Map<String, String> resourceAttributes = new LinkedHashMap<>();
+    private final List<Span> spans = new ArrayList<>();
+
+    SigningTrace(String runName) {
+        resourceAttributes.put("service.name", SERVICE_NAME);
+        resourceAttributes.put("jenkins.run", runName);
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    Span start(String name, @CheckForNull Span parent) {
+        return new Span(this, traceId, parent == null ? null : parent.spanId, name);
+    }
+
+    synchronized void add(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * Add spans another JVM recorded as children of this trace's spans.
+     */
+    synchronized void addAll(Collection<Span> remoteSpans) {
+        for (Span span : remoteSpans) {
+            if (span.isEnded() && traceId.equals(span.traceId)) {
+                spans.add(span);
+            }
+        }
+    }
+
+    synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * Write this trace to the given OTLP/JSON file.  If the file already has traces, e.g., from another signing
+     * step of the same build, this adds the trace to them.
+     */
+    void writeOtlpJson(File file) throws IOException {
+        // parallel signing steps of a build write the same file
+        synchronized (SigningTrace.class) {
+            writeOtlpJsonUnlocked(file);
+        }
+    }
+
+    private void writeOtlpJsonUnlocked(File file) throws IOException {
+        JSONObject traces;
+        if (file.isFile()) {
+            traces = JSONObject.fromObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+        else {
+            traces = new JSONObject();
+            traces.put("resourceSpans", new JSONArray());
+        }
+
+        JSONArray otlpSpans = new JSONArray();
+        for (Span span : getSpans()) {
+            otlpSpans.add(span.toOtlpJson());
+        }
+        JSONObject scope = new JSONObject();
+        scope.put("name", SigningTrace.class.getName());
+        JSONObject scopeSpans = new JSONObject();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", otlpSpans);
+        JSONArray scopeSpansList = new JSONArray();
+        scopeSpansList.add(scopeSpans);
+        JSONObject resource = new JSONObject();
+        resource.put("attributes", otlpAttributes(resourceAttributes));
+        JSONObject resourceSpans = new JSONObject();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", scopeSpansList);
+        traces.getJSONArray("resourceSpans").add(resourceSpans);
+
+        Files.write(file.toPath(), traces.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,148 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import jenkins.model.TransientActionFactory;
+
+
+/**
+ * Charts the {@link SigningReportAction}s of a job's recent builds, so a jump in signing time or APK size
+ * stands out on the job page.  Only jobs whose last completed build has a report get the charts, so rendering
+ * the page of any other job loads no build history.
+ */
+public class SigningTrendAction implements Action {
+
+    static final int MAX_BUILDS = 30;
+
+    private final Job<?, ?> job;
+
+    SigningTrendAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    /**
+     * @return the reports of the last {@value #MAX_BUILDS} builds, newest first, skipping builds without a report
+     */
+    List<SigningReportAction> getReports() {
+        List<SigningReportAction> reports = new ArrayList<>();
+        int count = 0;
+        for (Run<?, ?> run = job.getLastBuild(); run != null && count < MAX_BUILDS; run = run.getPreviousBuild(), count++) {
+            SigningReportAction report = run.getAction(SigningReportAction.class);
+            if (report != null) {
+                reports.add(report);
+            }
+        }
+        return reports;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.signingTrend_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "signingTrend";
+    }
+
+    public void doDurationGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<>();
+        for (SigningReportAction report : getReports()) {
+            data.add(report.getDurationMillis() / 1000.0, Messages.signingTrend_durationSeries(), new ChartUtil.NumberOnlyBuildLabel(report.getRun()));
+        }
+        graph(data, Messages.signingTrend_durationAxis()).doPng(req, rsp);
+    }
+
+    public void doSizeGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<>();
+        for (SigningReportAction report : getReports()) {
+            data.add(report.getTotalOutputSize() / (1024.0 * 1024.0), Messages.signingTrend_sizeSeries(), new ChartUtil.NumberOnlyBuildLabel(report.getRun()));
+        }
+        graph(data, Messages.signingTrend_sizeAxis()).doPng(req, rsp);
+    }
+
+    private Graph graph(DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data, String rangeAxisLabel) {
+        Run<?, ?> lastBuild = job.getLastBuild();
+        long timestamp = lastBuild == null ? 0 : lastBuild.getTimeInMillis();
+        return new Graph(timestamp, 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                JFreeChart chart = ChartFactory.createLineChart(null, null, rangeAxisLabel, data.build(), PlotOrientation.VERTICAL, false, true, false);
+                chart.setBackgroundPaint(Color.WHITE);
+
+                CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.WHITE);
+                plot.setOutlinePaint(null);
+                plot.setRangeGridlinesVisible(true);
+                plot.setRangeGridlinePaint(Color.BLACK);
+                plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+
+                CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+                plot.setDomainAxis(domainAxis);
+                domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+                domainAxis.setLowerMargin(0.0);
+                domainAxis.setUpperMargin(0.0);
+                domainAxis.setCategoryMargin(0.0);
+
+                NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+                rangeAxis.setAutoRangeIncludesZero(true);
+
+                return chart;
+            }
+        };
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull Job target) {
+            Run<?, ?> lastCompleted = target.getLastCompletedBuild();
+            if (lastCompleted == null || lastCompleted.getAction(SigningReportAction.class) == null) {
+                return Collections.emptySet();
+            }
+            return Collections.singleton(new SigningTrendAction((Job<?, ?>) target));
+        }
+    }
+}
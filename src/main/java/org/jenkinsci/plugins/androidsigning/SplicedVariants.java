@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+
+/**
+ * The white-label variants {@link SignApksBuilder} signs in place of the base APKs, each the base with an overlay
+ * directory as {@link ApkVariantSplicer} describes.  A variant is spliced only when it is about to be signed, and
+ * deleted once it is signed, so the unsigned variants on disk at once are the ones being signed rather than every
+ * variant of every base.  Each base is aligned once for all its variants, and the aligned base is kept until its last
+ * variant is spliced.
+ */
+class SplicedVariants implements AutoCloseable {
+
+    private final int nativeLibraryAlignment;
+    private final ZipalignStage.Aligner aligner;
+    private final TaskListener listener;
+    private final Set<FilePath> variants = new TreeSet<>(Comparator.comparing(FilePath::getRemote));
+    private final Map<String, FilePath> basesByVariant = new HashMap<>();
+    private final Map<String, String> overlayDirsByVariant = new HashMap<>();
+    private final Map<String, Integer> unsplicedByBase = new HashMap<>();
+    private final Map<String, ZipalignStage.Aligned> alignedBases = new HashMap<>();
+    private final Set<String> spliced = new HashSet<>();
+
+    /**
+     * @param variantsDir the directory to splice the variants of each base to, under the base's path relative to the
+     * workspace
+     * @param aligner aligns a base APK, or hands it over as it is when it needs no zipalign
+     */
+    SplicedVariants(@Nonnull Set<FilePath> baseApks, @Nonnull FilePath workspace, @Nonnull FilePath overlaysDir, @Nonnull FilePath variantsDir,
+        int nativeLibraryAlignment, @Nonnull ZipalignStage.Aligner aligner, @Nonnull TaskListener listener) throws IOException, InterruptedException {
+        this.nativeLibraryAlignment = nativeLibraryAlignment;
+        this.aligner = aligner;
+        this.listener = listener;
+        List<FilePath> variantDirs = overlaysDir.isDirectory() ? overlaysDir.listDirectories() : Collections.emptyList();
+        if (variantDirs.isEmpty()) {
+            throw new AbortException("No variant overlay directories in " + overlaysDir.getRemote());
+        }
+        variantDirs.sort(Comparator.comparing(FilePath::getName));
+        for (FilePath baseApk : baseApks) {
+            baseApk = baseApk.absolutize();
+            FilePath baseVariantsDir = variantsDir.child(relativeTo(workspace, baseApk.getParent()));
+            for (FilePath variantDir : variantDirs) {
+                FilePath variant = baseVariantsDir.child(ApkVariantSplicer.variantApkName(baseApk.getName(), variantDir.getName()));
+                variants.add(variant);
+                basesByVariant.put(variant.getRemote(), baseApk);
+                overlayDirsByVariant.put(variant.getRemote(), variantDir.getRemote());
+            }
+            unsplicedByBase.put(baseApk.getRemote(), variantDirs.size());
+            listener.getLogger().printf("[SignApksBuilder] splicing %d variants of %s%n", variantDirs.size(), relativeTo(workspace, baseApk));
+        }
+    }
+
+    private static String relativeTo(FilePath dir, FilePath path) throws IOException, InterruptedException {
+        return dir.toURI().relativize(path.toURI()).getPath().replaceFirst("/$", "");
+    }
+
+    /**
+     * @return the unsigned variants to sign, none of which exist until they are {@link #splice(FilePath) spliced}
+     */
+    Set<FilePath> getVariants() {
+        return variants;
+    }
+
+    boolean isVariant(@Nonnull FilePath apk) {
+        return basesByVariant.containsKey(apk.getRemote());
+    }
+
+    /**
+     * Splice the given variant, unless it is already spliced or is not a variant.
+     */
+    void splice(@Nonnull FilePath variant) throws IOException, InterruptedException {
+        FilePath baseApk = basesByVariant.get(variant.getRemote());
+        if (baseApk == null || !spliced.add(variant.getRemote())) {
+            return;
+        }
+        ZipalignStage.Aligned alignedBase = alignedBases.get(baseApk.getRemote());
+        if (alignedBase == null) {
+            alignedBase = aligner.align(baseApk);
+            alignedBases.put(baseApk.getRemote(), alignedBase);
+        }
+        FilePath variantDir = variant.getParent();
+        if (variantDir != null) {
+            variantDir.mkdirs();
+        }
+        ApkVariantSplicer.SpliceVariantsCallable splice = new ApkVariantSplicer.SpliceVariantsCallable(
+            Collections.singletonMap(variant.getRemote(), overlayDirsByVariant.get(variant.getRemote())), nativeLibraryAlignment);
+        alignedBase.alignedApk.act(splice);
+        if (unsplicedByBase.merge(baseApk.getRemote(), -1, Integer::sum) == 0) {
+            alignedBases.remove(baseApk.getRemote()).deleteAlignedApk(listener);
+        }
+    }
+
+    /**
+     * Splice the given variants at once, for signing that needs them all on disk before it starts.
+     */
+    void spliceAll(@Nonnull Collection<FilePath> apks) throws IOException, InterruptedException {
+        for (FilePath apk : apks) {
+            splice(apk);
+        }
+    }
+
+    /**
+     * Delete the aligned bases of variants not yet spliced, as when signing fails.
+     */
+    @Override
+    public void close() {
+        for (ZipalignStage.Aligned alignedBase : alignedBases.values()) {
+            alignedBase.deleteAlignedApk(listener);
+        }
+        alignedBases.clear();
+    }
+}
@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+
+/**
+ * Checks whether an APK is aligned the way <code>zipalign -p 4</code> leaves it: the data of every stored entry at a
+ * multiple of {@value ApkVariantSplicer#ALIGNMENT} bytes, and the data of every stored native library at a page
+ * boundary, or as <code>zipalign -P 16 4</code> leaves it for 16 KB pages.  The check reads only the central
+ * directory and the local file headers, so it takes a few small reads however large the APK is, against zipalign's
+ * copy of the whole APK.
+ */
+class ZipAlignmentCheck extends MasterToSlaveFileCallable<ZipAlignmentCheck.Result> {
+
+    private static final long serialVersionUID = 1;
+
+    static final int MAX_REPORTED_ENTRIES = 3;
+
+    private final int nativeLibraryAlignment;
+
+    ZipAlignmentCheck() {
+        this(ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT);
+    }
+
+    /**
+     * @param nativeLibraryAlignment the page size stored native libraries must be aligned to
+     */
+    ZipAlignmentCheck(int nativeLibraryAlignment) {
+        this.nativeLibraryAlignment = nativeLibraryAlignment;
+    }
+
+    static class Result implements Serializable {
+        private static final long serialVersionUID = 1;
+
+        final int storedCount;
+        final int misalignedCount;
+        /** the first {@value ZipAlignmentCheck#MAX_REPORTED_ENTRIES} misaligned entries, described for the console log */
+        final List<String> misaligned;
+
+        Result(int storedCount, int misalignedCount, List<String> misaligned) {
+            this.storedCount = storedCount;
+            this.misalignedCount = misalignedCount;
+            this.misaligned = misaligned;
+        }
+
+        boolean isAligned() {
+            return misalignedCount == 0;
+        }
+    }
+
+    /**
+     * @return the alignment zipalign gives the data of the given entry when stored
+     */
+    static int alignmentOf(@Nonnull String entryName) {
+        return alignmentOf(entryName, ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT);
+    }
+
+    /**
+     * @return the alignment zipalign gives the data of the given entry when stored, with native libraries aligned to
+     * the given page size
+     */
+    static int alignmentOf(@Nonnull String entryName, int nativeLibraryAlignment) {
+        return entryName.endsWith(".so") ? nativeLibraryAlignment : ApkVariantSplicer.ALIGNMENT;
+    }
+
+    static Result check(@Nonnull ApkZipLayout layout) {
+        return check(layout, ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT);
+    }
+
+    static Result check(@Nonnull ApkZipLayout layout, int nativeLibraryAlignment) {
+        int stored = 0;
+        int misalignedCount = 0;
+        List<String> misaligned = new ArrayList<>(MAX_REPORTED_ENTRIES);
+        for (ApkZipLayout.Entry entry : layout.getEntries()) {
+            if (!entry.isStored()) {
+                continue;
+            }
+            stored++;
+            int alignment = alignmentOf(entry.name, nativeLibraryAlignment);
+            if (entry.dataOffset % alignment != 0) {
+                misalignedCount++;
+                if (misaligned.size() < MAX_REPORTED_ENTRIES) {
+                    misaligned.add(String.format("%s at offset %d, not a multiple of %d", entry.name, entry.dataOffset, alignment));
+                }
+            }
+        }
+        return new Result(stored, misalignedCount, Collections.unmodifiableList(misaligned));
+    }
+
+    /**
+     * Check the alignment of the given APK on its node, and log whether it needs zipalign.
+     *
+     * @param apkName the name of the APK for the console log
+     * @param nativeLibraryAlignment the page size stored native libraries must be aligned to
+     * @return whether the APK needs zipalign
+     */
+    static boolean needsZipalign(@Nonnull FilePath apk, @Nonnull String apkName, int nativeLibraryAlignment, @Nonnull TaskListener listener)
+        throws IOException, InterruptedException {
+        ZipAlignmentCheck check = new ZipAlignmentCheck(nativeLibraryAlignment);
+        Result result = apk.act(check);
+        RemoteCallAccounting.recordReceived(apk, result);
+        if (result.isAligned()) {
+            listener.getLogger().printf("[SignApksBuilder] all %d stored entries of %s are aligned; skipping zipalign%n", result.storedCount, apkName);
+            return false;
+        }
+        listener.getLogger().printf("[SignApksBuilder] %d of %d stored entries of %s are not aligned, such as %s; running zipalign%n",
+            result.misalignedCount, result.storedCount, apkName, String.join("; ", result.misaligned));
+        return true;
+    }
+
+    @Override
+    public Result invoke(File apk, VirtualChannel channel) throws IOException, InterruptedException {
+        return check(ApkZipLayout.read(apk), nativeLibraryAlignment);
+    }
+}
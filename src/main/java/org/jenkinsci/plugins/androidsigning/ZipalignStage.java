@@ -0,0 +1,198 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+
+/**
+ * The zipalign stage of {@link SignApksBuilder}'s overlapped stages: a thread that aligns APKs ahead of the signing
+ * stage, in the order the signing stage takes them, and hands them over through a bounded queue.  When signing falls
+ * behind, the queue fills and the thread waits for signing to take an APK, so no more than the queue's capacity of
+ * aligned APKs wait in the workspace at once.
+ */
+class ZipalignStage implements AutoCloseable {
+
+    interface Aligner {
+        Aligned align(FilePath unsignedApk) throws IOException, InterruptedException;
+    }
+
+    static class Aligned {
+        final FilePath unsignedApk;
+        final FilePath alignedApk;
+        /** how long zipalign took, or -1 if the APK needed no zipalign */
+        final long zipalignNanos;
+
+        Aligned(FilePath unsignedApk, FilePath alignedApk, long zipalignNanos) {
+            this.unsignedApk = unsignedApk;
+            this.alignedApk = alignedApk;
+            this.zipalignNanos = zipalignNanos;
+        }
+
+        /**
+         * Delete the aligned APK, unless it is the unsigned APK itself, which the aligner hands over when the APK
+         * needs no zipalign.
+         */
+        void deleteAlignedApk(TaskListener listener) {
+            if (!alignedApk.getRemote().equals(unsignedApk.getRemote())) {
+                SignApksBuilder.deleteQuietly(alignedApk, listener);
+            }
+        }
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final ExecutorService alignThread;
+    private final TaskListener listener;
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private long takeWaitNanos;
+    private volatile boolean closing;
+
+    /**
+     * Start aligning the given APKs.
+     *
+     * @param capacity the number of aligned APKs the stage holds for the signing stage before it waits
+     */
+    ZipalignStage(@Nonnull List<FilePath> unsignedApks, int capacity, @Nonnull Aligner aligner, @Nonnull String threadName,
+        @Nonnull TaskListener listener) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.listener = listener;
+        alignThread = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), threadName));
+        RemoteCallAccounting remoteCalls = RemoteCallAccounting.current();
+        alignThread.submit(() -> {
+            if (remoteCalls != null) {
+                remoteCalls.attach();
+            }
+            try {
+                alignAll(unsignedApks, aligner);
+            }
+            finally {
+                RemoteCallAccounting.detach();
+            }
+        });
+    }
+
+    private void alignAll(List<FilePath> unsignedApks, Aligner aligner) {
+        for (FilePath unsignedApk : unsignedApks) {
+            long alignStart = System.nanoTime();
+            Object result;
+            try {
+                result = aligner.align(unsignedApk);
+            }
+            catch (InterruptedException e) {
+                if (closing) {
+                    return;
+                }
+                // not from close(), e.g., rethrown from the stager's thread, so the signing stage must hear of it
+                result = e;
+            }
+            catch (Throwable e) {
+                result = e;
+            }
+            busyNanos.addAndGet(System.nanoTime() - alignStart);
+            long putStart = System.nanoTime();
+            try {
+                queue.put(result);
+            }
+            catch (InterruptedException e) {
+                if (result instanceof Aligned) {
+                    ((Aligned) result).deleteAlignedApk(listener);
+                }
+                return;
+            }
+            blockedNanos.addAndGet(System.nanoTime() - putStart);
+            if (result instanceof Throwable) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait for the stage to align the next APK.
+     *
+     * @param unsignedApk the APK the caller expects next, which must be the next of the APKs the stage started with
+     * @throws IOException when aligning the APK failed
+     */
+    Aligned take(@Nonnull FilePath unsignedApk) throws IOException, InterruptedException {
+        long waitStart = System.nanoTime();
+        Object result = queue.take();
+        takeWaitNanos += System.nanoTime() - waitStart;
+        if (result instanceof Aligned) {
+            Aligned aligned = (Aligned) result;
+            if (!aligned.unsignedApk.getRemote().equals(unsignedApk.getRemote())) {
+                aligned.deleteAlignedApk(listener);
+                throw new IllegalStateException("zipalign stage aligned " + aligned.unsignedApk.getRemote() + " but the signing stage expected " + unsignedApk.getRemote());
+            }
+            return aligned;
+        }
+        if (result instanceof IOException) {
+            throw (IOException) result;
+        }
+        if (result instanceof RuntimeException) {
+            throw (RuntimeException) result;
+        }
+        if (result instanceof Error) {
+            throw (Error) result;
+        }
+        throw new IOException("error aligning " + unsignedApk.getRemote(), (Throwable) result);
+    }
+
+    /**
+     * @return how long the stage spent aligning APKs
+     */
+    long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    /**
+     * @return how long the stage waited for the signing stage to take an APK from a full queue
+     */
+    long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * @return how long the signing stage waited for the stage to align an APK
+     */
+    long getTakeWaitNanos() {
+        return takeWaitNanos;
+    }
+
+    /**
+     * Stop aligning, wait for the thread to exit, and delete the aligned APKs the signing stage did not take.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        alignThread.shutdownNow();
+        boolean interrupted = Thread.interrupted();
+        try {
+            alignThread.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        finally {
+            for (Object result = queue.poll(); result != null; result = queue.poll()) {
+                if (result instanceof Aligned) {
+                    ((Aligned) result).deleteAlignedApk(listener);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.apache.commons.lang.StringUtils;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -24,6 +26,30 @@ class ZipalignTool {
     static final String ENV_ZIPALIGN_PATH = "ANDROID_ZIPALIGN";
     static final String ENV_PATH = "PATH";
 
+    /** the page sizes zipalign can align stored native libraries to, in KB */
+    static final List<Integer> PAGE_SIZES_KB = Collections.unmodifiableList(Arrays.asList(4, 16, 64));
+    static final int DEFAULT_PAGE_SIZE_KB = 4;
+
+    /**
+     * @param pageSizeKb the page size the user configured, in KB, or null for the default
+     * @return the page size in KB
+     */
+    static int parsePageSizeKb(@Nullable String pageSizeKb) throws AbortException {
+        if (StringUtils.isBlank(pageSizeKb)) {
+            return DEFAULT_PAGE_SIZE_KB;
+        }
+        try {
+            int kb = Integer.parseInt(pageSizeKb.trim());
+            if (PAGE_SIZES_KB.contains(kb)) {
+                return kb;
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new AbortException(String.format("native library page size %s KB is not one of %s", pageSizeKb, PAGE_SIZES_KB));
+    }
+
     private static FilePath findFromEnv(EnvVars env, FilePath workspace, PrintStream logger) throws AbortException {
 
         String zipalignPath = env.get(ENV_ZIPALIGN_PATH);
@@ -132,7 +158,9 @@ class ZipalignTool {
     }
 
     private static String pathSeparatorForWorkspace(FilePath workspace) throws IOException, InterruptedException {
-        return workspace.act(new GetPathSeparator());
+        String pathSeparator = workspace.act(new GetPathSeparator());
+        RemoteCallAccounting.recordReceived(workspace, pathSeparator);
+        return pathSeparator;
     }
 
     private static FilePath androidHomeAncestorOfPath(FilePath path, PrintStream logger) throws Exception {
@@ -216,18 +244,32 @@ class ZipalignTool {
     private final PrintStream logger;
     private final String overrideAndroidHome;
     private final String overrideZipalignPath;
+    private final int pageSizeKb;
     private FilePath zipalign;
 
     ZipalignTool(@Nonnull EnvVars buildEnv, @Nonnull FilePath workspace, @Nonnull PrintStream logger, @Nullable String overrideAndroidHome, @Nullable String overrideZipalignPath) {
+        this(buildEnv, workspace, logger, overrideAndroidHome, overrideZipalignPath, DEFAULT_PAGE_SIZE_KB);
+    }
+
+    /**
+     * @param pageSizeKb the page size to align stored native libraries to, one of {@link #PAGE_SIZES_KB}
+     */
+    ZipalignTool(@Nonnull EnvVars buildEnv, @Nonnull FilePath workspace, @Nonnull PrintStream logger, @Nullable String overrideAndroidHome, @Nullable String overrideZipalignPath,
+        int pageSizeKb) {
         this.buildEnv = buildEnv;
         this.workspace = workspace;
         this.logger = logger;
         this.overrideAndroidHome = overrideAndroidHome;
         this.overrideZipalignPath = overrideZipalignPath;
+        this.pageSizeKb = pageSizeKb;
     }
 
-    ArgumentListBuilder commandFor(String unsignedApk, String outputApk) throws AbortException {
+    /**
+     * Find the zipalign executable, unless this tool has already found it.
+     */
+    FilePath findZipalign() throws AbortException {
         if (zipalign == null) {
+            SigningFlightRecorder.Event discoveryEvent = SigningFlightRecorder.begin(SigningFlightRecorder.EventType.ZIPALIGN_DISCOVERY);
             if (!StringUtils.isEmpty(overrideZipalignPath)) {
                 logger.printf("[SignApksBuilder] zipalign path explicitly set to %s%n", overrideZipalignPath);
                 zipalign = zipalignOrZipalignExe(workspace.child(buildEnv.expand(overrideZipalignPath)), logger);
@@ -244,12 +286,27 @@ class ZipalignTool {
             if (zipalign == null) {
                 throw new AbortException("failed to find zipalign path in parameters or environment");
             }
+            discoveryEvent.commit();
         }
+        return zipalign;
+    }
 
-        return new ArgumentListBuilder()
-            .add(zipalign.getRemote())
-            .add("-f")
-            .add("-p").add("4")
+    /**
+     * @return the command to align the given APK, page-aligning stored native libraries with {@code -p} for 4 KB
+     * pages, or with {@code -P}, which zipalign has had since build tools 35, for larger pages
+     */
+    ArgumentListBuilder commandFor(String unsignedApk, String outputApk) throws AbortException {
+        ArgumentListBuilder command = new ArgumentListBuilder()
+            .add(findZipalign().getRemote())
+            .add("-f");
+        if (pageSizeKb == DEFAULT_PAGE_SIZE_KB) {
+            command.add("-p");
+        }
+        else {
+            command.add("-P").add(String.valueOf(pageSizeKb));
+        }
+        return command
+            .add("4")
             .add(unsignedApk)
             .add(outputApk);
     }
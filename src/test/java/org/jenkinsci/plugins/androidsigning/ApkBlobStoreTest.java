@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import hudson.FilePath;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+
+public class ApkBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private ApkBlobStore store;
+    private FilePath apk;
+    private String apkSha256;
+
+    @Before
+    public void setupStore() throws Exception {
+        store = new ApkBlobStore(tempDir.newFolder("blobs"));
+        File apkFile = new File(getClass().getResource("/workspace/SignApksBuilderTest-unsigned.apk").toURI());
+        apk = new FilePath(apkFile);
+        apkSha256 = apk.act(new DigestFileCallable(DigestFileCallable.SHA_256));
+    }
+
+    @Test
+    public void storesEachDigestOnce() throws Exception {
+        assertThat(store.contains(apkSha256), is(false));
+        assertThat(store.store(apk, apkSha256), is(true));
+        assertThat(store.contains(apkSha256), is(true));
+        assertThat(store.store(apk, apkSha256), is(false));
+        assertThat(new FilePath(store.blobFor(apkSha256)).act(new DigestFileCallable(DigestFileCallable.SHA_256)), equalTo(apkSha256));
+    }
+
+    @Test
+    public void rejectsNamesThatAreNotDigests() throws Exception {
+        for (String notDigest : new String[] { "../../secrets/master.key", apkSha256.toUpperCase(), apkSha256.substring(1), apkSha256 + "/" }) {
+            try {
+                store.store(apk, notDigest);
+                fail("stored a blob named " + notDigest);
+            }
+            catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), containsString("not a SHA-256 digest"));
+            }
+        }
+        assertThat(tempDir.getRoot().list(), equalTo(new String[] { "blobs" }));
+    }
+
+    @Test
+    public void rejectsBlobsThatDoNotMatchTheirDigest() throws Exception {
+        String otherSha256 = apkSha256.replace(apkSha256.charAt(0), apkSha256.charAt(0) == '0' ? '1' : '0');
+        try {
+            store.store(apk, otherSha256);
+            fail("stored a blob under the wrong digest");
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage(), containsString("has SHA-256 " + apkSha256 + ", not " + otherSha256));
+        }
+        assertThat(store.contains(otherSha256), is(false));
+        assertThat(store.blobFor(otherSha256).getParentFile().list(), equalTo(new String[0]));
+    }
+
+    @Test
+    public void linksBlobsIntoArtifactDirs() throws Exception {
+        store.store(apk, apkSha256);
+        File build1 = new File(tempDir.newFolder("build1"), "out/app.apk");
+        File build2 = new File(tempDir.newFolder("build2"), "out/app.apk");
+        store.link(apkSha256, build1);
+        store.link(apkSha256, build2);
+
+        assertThat(Files.readAllBytes(build1.toPath()), equalTo(Files.readAllBytes(store.blobFor(apkSha256).toPath())));
+        assertThat(Files.readAllBytes(build2.toPath()), equalTo(Files.readAllBytes(store.blobFor(apkSha256).toPath())));
+    }
+
+    @Test
+    public void removesBlobsNoBuildLinksTo() throws Exception {
+        store.store(apk, apkSha256);
+        File artifact = new File(tempDir.newFolder("build"), "app.apk");
+        store.link(apkSha256, artifact);
+        // only file systems that support hard links report link counts the cleanup can use
+        assumeTrue(Files.isSameFile(artifact.toPath(), store.blobFor(apkSha256).toPath()));
+
+        assertThat(store.removeUnreferenced(0), equalTo(0));
+        assertThat(store.contains(apkSha256), is(true));
+
+        Files.delete(artifact.toPath());
+
+        assertThat(store.removeUnreferenced(0), equalTo(1));
+        assertThat(store.contains(apkSha256), is(false));
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+
+public class ApkDeltaPatchTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File workspaceApk(String name) throws Exception {
+        return new File(getClass().getResource("/workspace/" + name).toURI());
+    }
+
+    @Test
+    public void patchReproducesTargetExactly() throws Exception {
+        File base = workspaceApk("SignApksBuilderTest-unsigned.apk");
+        File target = workspaceApk("SignApksBuilderTest.apk");
+        File patch = tempDir.newFile("app.apk" + ApkDeltaPatch.FILE_EXTENSION);
+        File rebuilt = tempDir.newFile("rebuilt.apk");
+
+        ApkDeltaPatch.Stats stats = ApkDeltaPatch.create(base, target, patch);
+        ApkDeltaPatch.apply(base, patch, rebuilt);
+
+        assertThat(stats.targetSize, equalTo(target.length()));
+        assertThat(stats.copiedBytes + stats.literalBytes, equalTo(target.length()));
+        assertThat(Files.readAllBytes(rebuilt.toPath()), equalTo(Files.readAllBytes(target.toPath())));
+    }
+
+    @Test
+    public void patchBetweenIdenticalApksCopiesEverything() throws Exception {
+        File base = workspaceApk("SignApksBuilderTest-unsigned.apk");
+        File target = workspaceApk("SignApksBuilderTest-chocolate_flavor.apk");
+        File patch = tempDir.newFile("app.apk" + ApkDeltaPatch.FILE_EXTENSION);
+        File rebuilt = tempDir.newFile("rebuilt.apk");
+
+        ApkDeltaPatch.Stats stats = ApkDeltaPatch.create(base, target, patch);
+        ApkDeltaPatch.apply(base, patch, rebuilt);
+
+        assertThat(stats.copiedBytes, greaterThan(stats.literalBytes));
+        assertThat(stats.patchSize, lessThan(target.length() / 10));
+        assertThat(Files.readAllBytes(rebuilt.toPath()), equalTo(Files.readAllBytes(target.toPath())));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToApplyToTheWrongBase() throws Exception {
+        File base = workspaceApk("SignApksBuilderTest-unsigned.apk");
+        File target = workspaceApk("SignApksBuilderTest.apk");
+        File patch = tempDir.newFile("app.apk" + ApkDeltaPatch.FILE_EXTENSION);
+        ApkDeltaPatch.create(base, target, patch);
+
+        ApkDeltaPatch.apply(target, patch, tempDir.newFile("rebuilt.apk"));
+    }
+}
@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class ApkStagerTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private List<FilePath> unsignedApks(int size, String... names) throws Exception {
+        Random random = new Random(size);
+        List<FilePath> apks = new ArrayList<>();
+        for (String name : names) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            File apk = new File(tempDir.getRoot(), name);
+            Files.write(apk.toPath(), content);
+            apks.add(new FilePath(apk));
+        }
+        return apks;
+    }
+
+    private SigningScratch scratch() throws Exception {
+        return new SigningScratch(new FilePath(tempDir.newFolder("scratch")), new FilePath(new File(tempDir.getRoot(), "fallback")), TaskListener.NULL);
+    }
+
+    @Test
+    public void copiesFilesLargerThanTheBuffer() throws Exception {
+        FilePath source = unsignedApks(ApkStager.COPY_BUFFER_SIZE * 2 + 123, "large.apk").get(0);
+        File destination = new File(tempDir.getRoot(), "copy.apk");
+        Files.write(destination.toPath(), new byte[ApkStager.COPY_BUFFER_SIZE * 3]);
+
+        long copied = source.act(new ApkStager.CopySequentiallyCallable(destination.getAbsolutePath()));
+
+        assertThat(copied, equalTo((long) ApkStager.COPY_BUFFER_SIZE * 2 + 123));
+        assertArrayEquals(Files.readAllBytes(new File(source.getRemote()).toPath()), Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void stagesEachApkInTheScratchDirectoryInOrder() throws Exception {
+        List<FilePath> apks = unsignedApks(1000, "a.apk", "b.apk", "c.apk");
+        File scratchDir;
+        try (SigningScratch scratch = scratch(); ApkStager stager = new ApkStager(apks, scratch, "test stager", TaskListener.NULL)) {
+            scratchDir = new File(tempDir.getRoot(), "scratch");
+            for (FilePath apk : apks) {
+                FilePath staged = stager.take(apk);
+                assertThat(staged.getParent().getRemote(), equalTo(scratchDir.getAbsolutePath()));
+                assertArrayEquals(Files.readAllBytes(new File(apk.getRemote()).toPath()), Files.readAllBytes(new File(staged.getRemote()).toPath()));
+                staged.delete();
+            }
+        }
+        assertThat(scratchDir.exists(), is(false));
+    }
+
+    @Test
+    public void deletesThePrefetchedApkWhenClosed() throws Exception {
+        List<FilePath> apks = unsignedApks(1000, "a.apk", "b.apk", "c.apk");
+        File scratchDir = new File(tempDir.getRoot(), "scratch");
+        SigningScratch scratch = scratch();
+        ApkStager stager = new ApkStager(apks, scratch, "test stager", TaskListener.NULL);
+        FilePath first = stager.take(apks.get(0));
+        first.delete();
+        // b.apk is copying or copied by now
+        Thread.sleep(200);
+
+        stager.close();
+
+        assertThat(Arrays.asList(scratchDir.list()), equalTo(new ArrayList<String>()));
+    }
+
+    @Test
+    public void refusesApksOutOfOrder() throws Exception {
+        List<FilePath> apks = unsignedApks(1000, "a.apk", "b.apk", "c.apk");
+        try (SigningScratch scratch = scratch(); ApkStager stager = new ApkStager(apks, scratch, "test stager", TaskListener.NULL)) {
+            stager.take(apks.get(0)).delete();
+            try {
+                stager.take(apks.get(2));
+                fail("expected c.apk to be refused before b.apk");
+            }
+            catch (IllegalStateException e) {
+                assertThat(e.getMessage(), equalTo("staging " + apks.get(2).getRemote() + " out of order"));
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class ApkVariantSplicerTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private final SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(512 * 1024, 40)
+        .storedFraction(0.5)
+        .nativeLibraries(1, "arm64-v8a", 4096);
+
+    private File overlayDir() throws Exception {
+        File overlayDir = tempDir.newFolder("acme");
+        File config = new File(overlayDir, "assets/config.json");
+        Files.createDirectories(config.getParentFile().toPath());
+        Files.write(config.toPath(), "{\"tenant\":\"acme\"}".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(overlayDir, SyntheticApkCorpus.MANIFEST_ENTRY).toPath(), "acme manifest".getBytes(StandardCharsets.UTF_8));
+        return overlayDir;
+    }
+
+    private File splice(File base, File overlayDir) throws Exception {
+        File variant = new File(tempDir.getRoot(), "variant.apk");
+        try (FileChannel baseIn = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+            ApkVariantSplicer.splice(baseIn, ApkZipLayout.read(base), ApkVariantSplicer.overlayFiles(overlayDir), variant);
+        }
+        return variant;
+    }
+
+    @Test
+    public void replacesAndAddsOverlayEntries() throws Exception {
+        File base = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+
+        File variant = splice(base, overlayDir());
+
+        try (ZipFile baseZip = new ZipFile(base); ZipFile variantZip = new ZipFile(variant)) {
+            assertThat(variantZip.size(), equalTo(baseZip.size() + 1));
+            try (InputStream config = variantZip.getInputStream(variantZip.getEntry("assets/config.json"))) {
+                assertThat(new String(readAll(config), StandardCharsets.UTF_8), equalTo("{\"tenant\":\"acme\"}"));
+            }
+            try (InputStream manifest = variantZip.getInputStream(variantZip.getEntry(SyntheticApkCorpus.MANIFEST_ENTRY))) {
+                assertThat(new String(readAll(manifest), StandardCharsets.UTF_8), equalTo("acme manifest"));
+            }
+            for (ZipEntry baseEntry : Collections.list(baseZip.entries())) {
+                if (baseEntry.getName().equals(SyntheticApkCorpus.MANIFEST_ENTRY)) {
+                    continue;
+                }
+                ZipEntry variantEntry = variantZip.getEntry(baseEntry.getName());
+                assertThat(baseEntry.getName(), variantEntry.getCrc(), equalTo(baseEntry.getCrc()));
+                assertThat(baseEntry.getName(), variantEntry.getMethod(), equalTo(baseEntry.getMethod()));
+                assertThat(baseEntry.getName(), variantEntry.getCompressedSize(), equalTo(baseEntry.getCompressedSize()));
+            }
+        }
+    }
+
+    @Test
+    public void alignsStoredEntries() throws Exception {
+        File base = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+
+        File variant = splice(base, overlayDir());
+
+        for (ApkZipLayout.Entry entry : ApkZipLayout.read(variant).getEntries()) {
+            if (entry.isStored()) {
+                long alignment = entry.name.endsWith(".so") ? ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT : ApkVariantSplicer.ALIGNMENT;
+                assertThat(entry.name, entry.dataOffset % alignment, equalTo(0L));
+            }
+        }
+    }
+
+    @Test
+    public void storesAddedNativeLibrariesAndResourceTable() throws Exception {
+        File base = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File overlayDir = overlayDir();
+        File lib = new File(overlayDir, "lib/arm64-v8a/libtenant.so");
+        Files.createDirectories(lib.getParentFile().toPath());
+        Files.write(lib.toPath(), new byte[10000]);
+        Files.write(new File(overlayDir, "resources.arsc").toPath(), new byte[3000]);
+
+        File variant = splice(base, overlayDir);
+
+        Map<String, ApkZipLayout.Entry> entries = new LinkedHashMap<>();
+        for (ApkZipLayout.Entry entry : ApkZipLayout.read(variant).getEntries()) {
+            entries.put(entry.name, entry);
+        }
+        ApkZipLayout.Entry libEntry = entries.get("lib/arm64-v8a/libtenant.so");
+        assertThat(libEntry.isStored(), is(true));
+        assertThat(libEntry.dataOffset % ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT, equalTo(0L));
+        ApkZipLayout.Entry resourceTable = entries.get("resources.arsc");
+        assertThat(resourceTable.isStored(), is(true));
+        assertThat(resourceTable.dataOffset % ApkVariantSplicer.ALIGNMENT, equalTo(0L));
+        assertThat(entries.get("assets/config.json").isStored(), is(false));
+        try (ZipFile variantZip = new ZipFile(variant); InputStream libIn = variantZip.getInputStream(variantZip.getEntry("lib/arm64-v8a/libtenant.so"))) {
+            assertThat(readAll(libIn), equalTo(new byte[10000]));
+        }
+    }
+
+    @Test
+    public void writesVariantsThatSign() throws Exception {
+        File base = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File variant = splice(base, overlayDir());
+        File signedVariant = new File(tempDir.getRoot(), "variant-signed.apk");
+        char[] password = SignApksBuilderTest.class.getSimpleName().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream keyStoreIn = getClass().getResourceAsStream(TestKeyStore.KEY_STORE_RESOURCE)) {
+            keyStore.load(keyStoreIn, password);
+        }
+        PrivateKey key = (PrivateKey) keyStore.getKey(TestKeyStore.KEY_ALIAS, password);
+        Certificate[] certChain = keyStore.getCertificateChain(TestKeyStore.KEY_ALIAS);
+
+        new SignApksBuilder.SignApkCallable(key, certChain, TestKeyStore.KEY_ALIAS, signedVariant.getAbsolutePath(), false, 0,
+            new SigningTrace(getClass().getSimpleName()).start("test", null).context(), TaskListener.NULL).invoke(variant, null);
+        VerifyApkCallable.VerifyResult result = new VerifyApkCallable(TaskListener.NULL).invoke(signedVariant, null);
+
+        assertThat(result.isVerified, is(true));
+    }
+
+    @Test
+    public void writesEachVariantOfTheBase() throws Exception {
+        File base = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File acme = overlayDir();
+        File globex = tempDir.newFolder("globex");
+        Files.write(new File(globex, "config.json").toPath(), "globex".getBytes(StandardCharsets.UTF_8));
+        File acmeVariant = new File(tempDir.getRoot(), "app-acme-unsigned.apk");
+        File globexVariant = new File(tempDir.getRoot(), "app-globex-unsigned.apk");
+        Map<String, String> overlayDirsByOutput = new LinkedHashMap<>();
+        overlayDirsByOutput.put(acmeVariant.getPath(), acme.getPath());
+        overlayDirsByOutput.put(globexVariant.getPath(), globex.getPath());
+
+        int count = new ApkVariantSplicer.SpliceVariantsCallable(overlayDirsByOutput).invoke(base, null);
+
+        assertThat(count, equalTo(2));
+        try (ZipFile globexZip = new ZipFile(globexVariant)) {
+            assertThat(globexZip.getEntry("config.json").getSize(), equalTo(6L));
+            assertThat(globexZip.getEntry("assets/config.json") == null, is(true));
+        }
+        try (ZipFile acmeZip = new ZipFile(acmeVariant)) {
+            assertThat(acmeZip.getEntry("assets/config.json").getSize(), equalTo(17L));
+        }
+    }
+
+    @Test
+    public void namesVariantsForTheBase() {
+        assertThat(ApkVariantSplicer.variantApkName("app-release-unsigned.apk", "acme"), equalTo("app-release-acme-unsigned.apk"));
+        assertThat(ApkVariantSplicer.variantApkName("app.apk", "acme"), equalTo("app-acme.apk"));
+        assertThat(ApkVariantSplicer.variantApkName("app", "acme"), equalTo("app-acme"));
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int count = in.read(buf); count > -1; count = in.read(buf)) {
+            bytes.write(buf, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
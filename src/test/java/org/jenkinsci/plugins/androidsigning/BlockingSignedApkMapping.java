@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Descriptor;
+
+
+/**
+ * Maps signed APKs like {@link SignedApkMappingStrategy.UnsignedApkSiblingMapping}, but blocks the signing of the
+ * unsigned APK named {@link #blockOnApk} until the signing thread is interrupted, so a test can restart Jenkins in
+ * the middle of a batch.
+ */
+public class BlockingSignedApkMapping extends SignedApkMappingStrategy {
+
+    static volatile String blockOnApk;
+    static volatile CountDownLatch blocked = new CountDownLatch(1);
+
+    @DataBoundConstructor
+    public BlockingSignedApkMapping() {
+    }
+
+    @Override
+    public FilePath destinationForUnsignedApk(FilePath unsignedApk, FilePath workspace) {
+        if (unsignedApk.getName().equals(blockOnApk)) {
+            blocked.countDown();
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while blocking " + unsignedApk.getName(), e);
+            }
+        }
+        return new UnsignedApkSiblingMapping().destinationForUnsignedApk(unsignedApk, workspace);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SignedApkMappingStrategy> {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return BlockingSignedApkMapping.class.getSimpleName();
+        }
+    }
+}
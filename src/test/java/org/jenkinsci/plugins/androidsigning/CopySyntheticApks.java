@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.File;
+import java.io.IOException;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildWrapperDescriptor;
+import jenkins.tasks.SimpleBuildWrapper;
+
+
+/**
+ * Copies unsigned APKs from the {@link SyntheticApkCorpus} into the workspace as {@code synthetic-N-unsigned.apk},
+ * like {@link CopyTestWorkspace} does with the test APKs.
+ */
+public class CopySyntheticApks extends SimpleBuildWrapper {
+
+    static final String APK_GLOB = "synthetic-*-unsigned.apk";
+
+    private final int apkCount;
+    private final int apkSizeMb;
+    private final int entryCount;
+
+    @DataBoundConstructor
+    public CopySyntheticApks(int apkCount, int apkSizeMb, int entryCount) {
+        this.apkCount = apkCount;
+        this.apkSizeMb = apkSizeMb;
+        this.entryCount = entryCount;
+    }
+
+    public int getApkCount() {
+        return apkCount;
+    }
+
+    public int getApkSizeMb() {
+        return apkSizeMb;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void setUp(Context context, Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars initialEnvironment) throws IOException, InterruptedException {
+        SyntheticApkCorpus corpus = new SyntheticApkCorpus();
+        for (int apk = 0; apk < apkCount; apk++) {
+            File source = corpus.get(new SyntheticApkCorpus.Spec(apkSizeMb * 1024L * 1024L, entryCount)
+                .storedFraction(0.2)
+                .nativeLibraries(2, "arm64-v8a", 4096)
+                .seed(apk));
+            workspace.child("synthetic-" + apk + "-unsigned.apk").copyFrom(new FilePath(source));
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BuildWrapperDescriptor {
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return getClass().getSimpleName();
+        }
+    }
+}
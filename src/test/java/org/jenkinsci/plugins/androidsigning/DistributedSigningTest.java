@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RequestAbortedException;
+import hudson.remoting.VirtualChannel;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class DistributedSigningTest {
+
+    private static FilePath apk(String name) {
+        return new FilePath(new File(name));
+    }
+
+    @Test
+    public void balancesShardsBySize() {
+        Node node1 = mock(Node.class);
+        Node node2 = mock(Node.class);
+        FilePath huge = apk("huge.apk");
+        FilePath large = apk("large.apk");
+        FilePath medium = apk("medium.apk");
+        FilePath small = apk("small.apk");
+        Map<FilePath, Long> sizes = new LinkedHashMap<>();
+        sizes.put(small, 10L);
+        sizes.put(medium, 40L);
+        sizes.put(huge, 100L);
+        sizes.put(large, 60L);
+
+        List<DistributedSigning.Shard> shards = DistributedSigning.plan(Arrays.asList(node1, node2), sizes);
+
+        assertThat(shards.size(), equalTo(2));
+        assertThat(shards.get(0).node, equalTo(node1));
+        assertThat(shards.get(0).apks, contains(huge, small));
+        assertThat(shards.get(0).bytes, equalTo(110L));
+        assertThat(shards.get(1).apks, contains(large, medium));
+        assertThat(shards.get(1).bytes, equalTo(100L));
+    }
+
+    @Test
+    public void omitsNodesWithoutApks() {
+        Node node1 = mock(Node.class);
+        Node node2 = mock(Node.class);
+        Node node3 = mock(Node.class);
+        Map<FilePath, Long> sizes = new LinkedHashMap<>();
+        sizes.put(apk("one.apk"), 10L);
+        sizes.put(apk("two.apk"), 10L);
+
+        List<DistributedSigning.Shard> shards = DistributedSigning.plan(Arrays.asList(node1, node2, node3), sizes);
+
+        assertThat(shards.size(), equalTo(2));
+        assertThat(shards.get(0).apks.size(), equalTo(1));
+        assertThat(shards.get(1).apks.size(), equalTo(1));
+    }
+
+    @Test
+    public void balancesShardsByCostRatherThanSize() {
+        Node node1 = mock(Node.class);
+        Node node2 = mock(Node.class);
+        FilePath slow = apk("slow.apk");
+        FilePath fast1 = apk("fast1.apk");
+        FilePath fast2 = apk("fast2.apk");
+        Map<FilePath, Long> sizes = new LinkedHashMap<>();
+        sizes.put(slow, 10L);
+        sizes.put(fast1, 50L);
+        sizes.put(fast2, 50L);
+        Map<FilePath, Long> costs = new LinkedHashMap<>();
+        costs.put(slow, 900L);
+        costs.put(fast1, 400L);
+        costs.put(fast2, 400L);
+
+        List<DistributedSigning.Shard> shards = DistributedSigning.plan(Arrays.asList(node1, node2), sizes, costs);
+
+        assertThat(shards.size(), equalTo(2));
+        assertThat(shards.get(0).apks, contains(slow));
+        assertThat(shards.get(0).cost, equalTo(900L));
+        assertThat(shards.get(0).bytes, equalTo(10L));
+        assertThat(shards.get(1).apks, contains(fast1, fast2));
+        assertThat(shards.get(1).cost, equalTo(800L));
+        assertThat(DistributedSigning.makespan(shards), equalTo(900L));
+    }
+
+    @Test
+    public void usesTheFewestNodesThatFinishAsSoon() {
+        Node node1 = mock(Node.class);
+        Node node2 = mock(Node.class);
+        Node node3 = mock(Node.class);
+        Node node4 = mock(Node.class);
+        FilePath huge = apk("huge.apk");
+        Map<FilePath, Long> sizes = new LinkedHashMap<>();
+        sizes.put(huge, 1000L);
+        sizes.put(apk("a.apk"), 300L);
+        sizes.put(apk("b.apk"), 300L);
+        sizes.put(apk("c.apk"), 300L);
+
+        List<DistributedSigning.Shard> shards = DistributedSigning.plan(Arrays.asList(node1, node2, node3, node4), sizes);
+
+        assertThat(shards.size(), equalTo(2));
+        assertThat(shards.get(0).apks, contains(huge));
+        assertThat(shards.get(1).apks.size(), equalTo(3));
+        assertThat(DistributedSigning.makespan(shards), equalTo(1000L));
+    }
+
+    @Test
+    public void retriesOnlyWhenTheAgentFails() {
+        Computer online = mock(Computer.class);
+        when(online.isOffline()).thenReturn(false);
+        when(online.getChannel()).thenReturn(mock(VirtualChannel.class));
+        Computer offline = mock(Computer.class);
+        when(offline.isOffline()).thenReturn(true);
+
+        assertThat(DistributedSigning.isAgentFailure(new IOException("signed APK has 10 bytes, not 20"), online), equalTo(false));
+        assertThat(DistributedSigning.isAgentFailure(new ChannelClosedException(new EOFException()), online), equalTo(true));
+        assertThat(DistributedSigning.isAgentFailure(new IOException(new RequestAbortedException(new EOFException())), online), equalTo(true));
+        assertThat(DistributedSigning.isAgentFailure(new IOException("remote call failed"), offline), equalTo(true));
+        assertThat(DistributedSigning.isAgentFailure(new IOException("remote call failed"), null), equalTo(true));
+    }
+}
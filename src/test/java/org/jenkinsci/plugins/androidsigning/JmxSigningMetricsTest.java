@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.junit.Assert.assertThat;
+
+
+public class JmxSigningMetricsTest {
+
+    @Test
+    public void recordsStageTimingsInHistograms() {
+        JmxSigningMetrics metrics = new JmxSigningMetrics();
+        for (long millis = 1; millis <= 100; millis++) {
+            metrics.recordStage(SigningMetrics.Stage.SIGN, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        Map<String, SigningMetricsMXBean.StageTiming> timings = metrics.getStageTimings();
+        for (SigningMetrics.Stage stage : SigningMetrics.Stage.values()) {
+            assertThat(timings, hasKey(stage.metricName));
+        }
+        SigningMetricsMXBean.StageTiming sign = timings.get(SigningMetrics.Stage.SIGN.metricName);
+        assertThat(sign.getCount(), equalTo(100L));
+        assertThat(sign.getTotalMillis(), equalTo(5050L));
+        assertThat(sign.getMeanMillis(), equalTo(50L));
+        assertThat(sign.getMaxMillis(), equalTo(100L));
+        assertThat(sign.getP50Millis(), equalTo(63L));
+        assertThat(sign.getP95Millis(), equalTo(127L));
+        assertThat(timings.get(SigningMetrics.Stage.ARCHIVE.metricName).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void countsSignedApksAndBytes() {
+        JmxSigningMetrics metrics = new JmxSigningMetrics();
+        metrics.recordSignedApk(1000);
+        metrics.recordSignedApk(24);
+
+        assertThat(metrics.getApksSigned(), equalTo(2L));
+        assertThat(metrics.getBytesSigned(), equalTo(1024L));
+
+        metrics.reset();
+
+        assertThat(metrics.getApksSigned(), equalTo(0L));
+        assertThat(metrics.getBytesSigned(), equalTo(0L));
+    }
+}
@@ -0,0 +1,121 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class NativeLibraryAlignmentCheckTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static SyntheticApkCorpus.Spec specWithLibrariesAlignedTo(long alignment) {
+        return new SyntheticApkCorpus.Spec(512 * 1024, 20).storedFraction(0.5).nativeLibraries(2, "arm64-v8a", alignment);
+    }
+
+    private File alignedApk(SyntheticApkCorpus.Spec spec, int pageSize) throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File alignedApk = new File(tempDir.getRoot(), "aligned-" + pageSize + ".apk");
+        try (FileChannel in = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            ApkVariantSplicer.splice(in, ApkZipLayout.read(apk), Collections.emptyMap(), alignedApk, pageSize);
+        }
+        return alignedApk;
+    }
+
+    @Test
+    public void passesLibrariesAlignedForTheirPageSize() throws Exception {
+        File apk = alignedApk(specWithLibrariesAlignedTo(16384), 16384);
+
+        assertThat(new NativeLibraryAlignmentCheck(16384).invoke(apk, null), hasSize(0));
+        assertThat(new NativeLibraryAlignmentCheck(4096).invoke(apk, null), hasSize(0));
+    }
+
+    @Test
+    public void reportsLoadSegmentsAlignedForSmallerPages() throws Exception {
+        File apk = alignedApk(specWithLibrariesAlignedTo(4096), 16384);
+
+        List<String> violations = new NativeLibraryAlignmentCheck(16384).invoke(apk, null);
+
+        assertThat(violations, hasSize(2));
+        assertThat(violations.get(0), containsString("lib/arm64-v8a/libsynthetic0.so has a LOAD segment aligned to 4096 bytes"));
+        assertThat(violations.get(0), containsString("-z max-page-size=16384"));
+    }
+
+    @Test
+    public void reportsLibrariesStoredOffThePageBoundary() throws Exception {
+        File apk = alignedApk(specWithLibrariesAlignedTo(16384), 4096);
+
+        List<String> violations = new NativeLibraryAlignmentCheck(16384).invoke(apk, null);
+
+        // the splicer puts the first library at a 16 KB boundary by chance at most
+        for (String violation : violations) {
+            assertThat(violation, containsString(" is stored at offset "));
+        }
+        for (ApkZipLayout.Entry entry : ApkZipLayout.read(apk).getEntries()) {
+            if (NativeLibraryAlignmentCheck.isNativeLibrary(entry.name) && entry.dataOffset % 16384 != 0) {
+                assertThat(String.join("\n", violations), containsString(entry.name + " is stored at offset " + entry.dataOffset));
+            }
+        }
+    }
+
+    @Test
+    public void readsTheHeadersOfCompressedLibraries() throws Exception {
+        File apk = tempDir.newFile("compressed.apk");
+        byte[] library = new byte[32 * 1024];
+        byte[] header = SyntheticApkCorpus.elfHeader(specWithLibrariesAlignedTo(4096), library.length);
+        System.arraycopy(header, 0, library, 0, header.length);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            zip.putNextEntry(new ZipEntry("lib/arm64-v8a/libcompressed.so"));
+            zip.write(library);
+            zip.closeEntry();
+        }
+
+        assertThat(new NativeLibraryAlignmentCheck(4096).invoke(apk, null), hasSize(0));
+        List<String> violations = new NativeLibraryAlignmentCheck(65536).invoke(apk, null);
+        assertThat(violations, hasSize(1));
+        assertThat(violations.get(0), containsString("aligned to 4096 bytes, not a multiple of 65536"));
+    }
+
+    @Test
+    public void checksElf32Libraries() {
+        ByteBuffer elf = ByteBuffer.allocate(52 + 32).order(ByteOrder.BIG_ENDIAN);
+        // e_ident: magic, ELFCLASS32, ELFDATA2MSB, EV_CURRENT
+        elf.put(new byte[] { 0x7f, 'E', 'L', 'F', 1, 2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+        // e_type, e_machine, e_version, e_entry, e_phoff
+        elf.putShort((short) 3).putShort((short) 40).putInt(1).putInt(0).putInt(52);
+        // e_shoff, e_flags, e_ehsize, e_phentsize, e_phnum
+        elf.putInt(0).putInt(0).putShort((short) 52).putShort((short) 32).putShort((short) 1);
+        elf.position(52);
+        // p_type PT_LOAD, p_offset, p_vaddr, p_paddr, p_filesz, p_memsz, p_flags, p_align
+        elf.putInt(1).putInt(0).putInt(0).putInt(0).putInt(4096).putInt(4096).putInt(5).putInt(65536);
+        elf.flip();
+
+        assertThat(NativeLibraryAlignmentCheck.checkLoadSegments("lib/armeabi-v7a/libold.so", elf, 16384), nullValue());
+        assertThat(NativeLibraryAlignmentCheck.checkLoadSegments("lib/armeabi-v7a/libold.so", elf, 65536), nullValue());
+    }
+
+    @Test
+    public void reportsLibrariesThatAreNotElfFiles() {
+        ByteBuffer notElf = ByteBuffer.wrap(new byte[64]);
+
+        assertThat(NativeLibraryAlignmentCheck.checkLoadSegments("lib/x86/libfake.so", notElf, 4096), equalTo("lib/x86/libfake.so is not an ELF file"));
+    }
+}
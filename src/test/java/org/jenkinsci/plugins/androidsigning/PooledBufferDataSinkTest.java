@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+
+public class PooledBufferDataSinkTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void writesWritesLargerThanItsBufferThroughTheBuffer() throws Exception {
+        byte[] expected = randomBytes(PooledBufferDataSink.BUFFER_SIZE * 3 + 12345);
+        File out = tempDir.newFile("out.apk");
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw");
+             PooledBufferDataSink sink = new PooledBufferDataSink(raf.getChannel())) {
+            sink.consume(expected, 0, 100);
+            sink.consume(ByteBuffer.wrap(expected, 100, PooledBufferDataSink.BUFFER_SIZE * 2));
+            ByteBuffer direct = ByteBuffer.allocateDirect(expected.length - 100 - PooledBufferDataSink.BUFFER_SIZE * 2);
+            direct.put(expected, 100 + PooledBufferDataSink.BUFFER_SIZE * 2, direct.capacity()).flip();
+            sink.consume(direct);
+
+            assertThat(direct.remaining(), equalTo(0));
+            assertThat(sink.size(), equalTo((long) expected.length));
+            assertThat(sink.getPeakDirectBytes(), equalTo((long) PooledBufferDataSink.BUFFER_SIZE));
+        }
+        assertThat(Files.readAllBytes(out.toPath()), equalTo(expected));
+    }
+
+    @Test
+    public void readsWhatItHasNotWrittenOutYet() throws Exception {
+        byte[] expected = randomBytes(4096);
+        File out = tempDir.newFile("out.apk");
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw");
+             PooledBufferDataSink sink = new PooledBufferDataSink(raf.getChannel())) {
+            DataSource written = sink.asDataSource(DataSources.asDataSource(raf));
+            sink.consume(expected, 0, 1000);
+            assertThat(written.size(), equalTo(1000L));
+            assertThat(raf.length(), equalTo(0L));
+
+            ByteBuffer head = written.getByteBuffer(10, 20);
+            byte[] headBytes = new byte[20];
+            head.get(headBytes);
+            assertThat(headBytes, equalTo(Arrays.copyOfRange(expected, 10, 30)));
+
+            sink.consume(expected, 1000, expected.length - 1000);
+            DataSource tail = written.slice(4000, 96);
+            ByteBuffer tailBytes = ByteBuffer.allocate(96);
+            tail.copyTo(0, 96, tailBytes);
+            assertThat(tailBytes.array(), equalTo(Arrays.copyOfRange(expected, 4000, 4096)));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void refusesToReadPastWhatItConsumed() throws Exception {
+        File out = tempDir.newFile("out.apk");
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw");
+             PooledBufferDataSink sink = new PooledBufferDataSink(raf.getChannel())) {
+            sink.consume(randomBytes(100), 0, 100);
+            sink.asDataSource(DataSources.asDataSource(raf)).getByteBuffer(50, 51);
+        }
+    }
+
+    @Test
+    public void returnsItsBufferToThePoolWhenClosed() throws Exception {
+        File out = tempDir.newFile("out.apk");
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+            PooledBufferDataSink first = new PooledBufferDataSink(raf.getChannel());
+            first.consume(randomBytes(10), 0, 10);
+            first.close();
+            int pooled = PooledBufferDataSink.Pool.pooledCount();
+            assertThat(pooled, greaterThan(0));
+
+            PooledBufferDataSink second = new PooledBufferDataSink(raf.getChannel());
+            second.consume(randomBytes(10), 0, 10);
+            assertThat(PooledBufferDataSink.Pool.pooledCount(), equalTo(pooled - 1));
+            second.close();
+            assertThat(PooledBufferDataSink.Pool.pooledCount(), equalTo(pooled));
+        }
+    }
+}
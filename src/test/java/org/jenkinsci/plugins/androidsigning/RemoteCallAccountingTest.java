@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import hudson.remoting.DelegatingCallable;
+import hudson.util.StreamTaskListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class RemoteCallAccountingTest {
+
+    private static class Payload extends MasterToSlaveCallable<Void, IOException>
+        implements DelegatingCallable<Void, IOException>, RemoteCallAccounting.EstimatedPayload {
+        private static final long serialVersionUID = 1;
+
+        private final byte[] data;
+        private final StreamTaskListener listener = new StreamTaskListener(new ByteArrayOutputStream());
+
+        Payload(int size) {
+            data = new byte[size];
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return getClass().getClassLoader();
+        }
+
+        @Override
+        public long estimatePayloadBytes() {
+            return data.length;
+        }
+
+        @Override
+        public Void call() {
+            return null;
+        }
+    }
+
+    /**
+     * Fails the test if the accounting serializes it.
+     */
+    private static class SecretPayload extends MasterToSlaveCallable<Void, IOException> {
+        private static final long serialVersionUID = 1;
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new AssertionError("the accounting serialized a payload");
+        }
+
+        @Override
+        public Void call() {
+            return null;
+        }
+    }
+
+    /**
+     * Stands in for core's wrapper around the {@link hudson.FilePath.FileCallable} of a {@link hudson.FilePath} call.
+     */
+    private static class Wrapper {
+        private final Object callable;
+
+        Wrapper(Object callable) {
+            this.callable = callable;
+        }
+    }
+
+    private final RemoteCallAccounting.CountingWrapperFactory wrapperFactory = new RemoteCallAccounting.CountingWrapperFactory();
+
+    @After
+    public void detach() {
+        RemoteCallAccounting.detach();
+    }
+
+    @Test
+    public void countsCallsInTheStageTheThreadIsTiming() {
+        RemoteCallAccounting accounting = new RemoteCallAccounting();
+        accounting.attach();
+        JmxSigningMetrics metrics = new JmxSigningMetrics();
+
+        wrapperFactory.wrap(new Payload(10));
+        SigningMetrics.Timing signTiming = metrics.start(SigningMetrics.Stage.SIGN);
+        wrapperFactory.wrap(new Payload(10));
+        wrapperFactory.wrap(new Payload(1000));
+        signTiming.stop();
+        wrapperFactory.wrap(new Payload(10));
+
+        RemoteCallAccounting.PhaseCounts sign = accounting.getPhases().get(SigningMetrics.Stage.SIGN.metricName);
+        RemoteCallAccounting.PhaseCounts other = accounting.getPhases().get(RemoteCallAccounting.OTHER_PHASE);
+        assertThat(sign.calls.get(), equalTo(2L));
+        assertThat(sign.bytesSent.get(), greaterThan(1000L));
+        assertThat(other.calls.get(), equalTo(2L));
+        assertThat(other.bytesSent.get(), lessThan(sign.bytesSent.get()));
+        assertThat(accounting.getTotalCalls(), equalTo(4L));
+    }
+
+    @Test
+    public void countsNothingWhenNotAttached() {
+        RemoteCallAccounting accounting = new RemoteCallAccounting();
+        accounting.attach();
+        RemoteCallAccounting.detach();
+
+        wrapperFactory.wrap(new Payload(10));
+
+        assertThat(RemoteCallAccounting.current(), nullValue());
+        assertThat(accounting.getTotalCalls(), equalTo(0L));
+    }
+
+    @Test
+    public void estimatesPayloadsFromTheFieldsTheyCarry() {
+        long small = RemoteCallAccounting.estimatePayloadBytes(new Payload(0));
+        long large = RemoteCallAccounting.estimatePayloadBytes(new Payload(4096));
+
+        assertThat(small, equalTo(RemoteCallAccounting.CALL_OVERHEAD_BYTES));
+        assertThat(large - small, equalTo(4096L));
+        assertThat(RemoteCallAccounting.estimatePayloadBytes(new Wrapper(new Payload(4096))), equalTo(large));
+        assertThat(RemoteCallAccounting.estimatePayloadBytes(Arrays.asList("zipalign", "-f", "4")), equalTo(12L));
+        assertThat(RemoteCallAccounting.estimatePayloadBytes(null), equalTo(0L));
+    }
+
+    @Test
+    public void neverSerializesPayloadsToEstimateThem() {
+        assertThat(RemoteCallAccounting.estimatePayloadBytes(new SecretPayload()), equalTo(RemoteCallAccounting.CALL_OVERHEAD_BYTES));
+        assertThat(RemoteCallAccounting.estimatePayloadBytes(new Wrapper(new SecretPayload())), equalTo(RemoteCallAccounting.CALL_OVERHEAD_BYTES));
+    }
+
+    @Test
+    public void estimatesSizeOfReturnValuesWithListeners() {
+        long small = RemoteCallAccounting.estimateSerializedSize(new Payload(0));
+        long large = RemoteCallAccounting.estimateSerializedSize(new Payload(4096));
+
+        assertThat(small, greaterThan(0L));
+        assertThat(large - small, greaterThan(4096L - 16));
+        assertThat(RemoteCallAccounting.estimateSerializedSize(null), equalTo(0L));
+    }
+
+    @Test
+    public void reportsPhasesWithCallsToMetrics() {
+        RemoteCallAccounting accounting = new RemoteCallAccounting();
+        accounting.attach();
+        JmxSigningMetrics metrics = new JmxSigningMetrics();
+        SigningMetrics.Timing archiveTiming = metrics.start(SigningMetrics.Stage.ARCHIVE);
+        wrapperFactory.wrap(new Payload(10));
+        archiveTiming.stop();
+
+        accounting.report(metrics);
+
+        assertThat(metrics.getRemoteCalls().keySet().size(), equalTo(1));
+        assertThat(metrics.getRemoteCalls().get(SigningMetrics.Stage.ARCHIVE.metricName).getCalls(), equalTo(1L));
+        assertThat(accounting.summary().startsWith("archive 1 calls, "), equalTo(true));
+    }
+}
@@ -9,6 +9,7 @@ import com.gargoylesoftware.htmlunit.html.HtmlOption;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.html.HtmlSelect;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -18,21 +19,32 @@ import org.junit.rules.TestName;
 import org.jvnet.hudson.test.FakeLauncher;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.PretendSlave;
+import org.jvnet.hudson.test.TestBuilder;
 import org.jvnet.hudson.test.WithoutJenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import hudson.EnvVars;
@@ -51,13 +63,19 @@ import hudson.model.Label;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.ChannelClosedException;
 import hudson.security.ACL;
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.tasks.Fingerprinter;
+import jenkins.model.Jenkins;
 import jenkins.util.VirtualFile;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.endsWith;
@@ -70,6 +88,7 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.Matchers.emptyArray;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.is;
@@ -83,6 +102,8 @@ import static org.jenkinsci.plugins.androidsigning.TestKeyStore.KEY_STORE_ID;
 import static org.jenkinsci.plugins.androidsigning.TestKeyStore.KEY_STORE_RESOURCE;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 
 @SuppressWarnings("deprecation")
@@ -282,6 +303,896 @@ public class SignApksBuilderTest {
         assertThat(artifacts, empty());
     }
 
+    @Test
+    public void archivesEachApkImmediately() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setArchiveUnsignedApks(true);
+        builder.setArchiveImmediately(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+
+        assertThat(artifacts.size(), equalTo(4));
+        assertThat(artifacts, hasItems(
+            hasProperty("fileName", endsWith("SignApksBuilderTest-chocolate_flavor-signed.apk")),
+            hasProperty("fileName", endsWith("SignApksBuilderTest-signed.apk"))));
+        for (Run.Artifact artifact : artifacts) {
+            if (artifact.getFileName().endsWith("-signed.apk")) {
+                assertThat(buildArtifact(build, artifact), isSigned());
+            }
+        }
+    }
+
+    @Test
+    public void overlapsZipalignSigningAndArchiving() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setOverlapStages(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+
+        assertThat(artifacts.size(), equalTo(2));
+        assertThat(artifacts, hasItems(
+            hasProperty("fileName", endsWith("SignApksBuilderTest-chocolate_flavor-signed.apk")),
+            hasProperty("fileName", endsWith("SignApksBuilderTest-signed.apk"))));
+        for (Run.Artifact artifact : artifacts) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+        testJenkins.assertLogContains("stage utilization over", build);
+        FilePath zipalignDir = build.getWorkspace().child(SignApksBuilder.BUILDER_DIR).child("zipalign");
+        assertThat(zipalignDir.list("aligned-*.apk").length, equalTo(0));
+
+        JSONArray spans = JSONObject.fromObject(new FilePath(new File(build.getRootDir(), SigningTrace.TRACE_FILE_NAME)).readToString())
+            .getJSONArray("resourceSpans").getJSONObject(0).getJSONArray("scopeSpans").getJSONObject(0).getJSONArray("spans");
+        Set<String> apkSpanIds = new HashSet<>();
+        List<String> zipalignParentIds = new ArrayList<>();
+        for (int i = 0; i < spans.size(); i++) {
+            JSONObject span = spans.getJSONObject(i);
+            if (span.getString("name").equals("apk")) {
+                apkSpanIds.add(span.getString("spanId"));
+            }
+            else if (span.getString("name").equals("zipalign")) {
+                zipalignParentIds.add(span.getString("parentSpanId"));
+            }
+        }
+        assertThat(zipalignParentIds.size(), equalTo(2));
+        for (String parentId : zipalignParentIds) {
+            assertThat(apkSpanIds.contains(parentId), is(true));
+        }
+    }
+
+    @Test
+    public void archiveOnlyRemovesSignedApksFromWorkspace() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setArchiveOnly(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+
+        assertThat(artifacts.size(), equalTo(1));
+        assertThat(artifacts.get(0).getFileName(), equalTo("SignApksBuilderTest.apk"));
+        assertThat(buildArtifact(build, artifacts.get(0)), isSigned());
+        assertThat(build.getWorkspace().child("SignApksBuilderTest.apk").exists(), is(false));
+        assertThat(build.getWorkspace().child("SignApksBuilderTest-unsigned.apk").exists(), is(true));
+    }
+
+    @Test
+    public void recordsChecksumsAndFingerprintsOfSignedApks() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setRecordChecksums(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+
+        assertThat(artifacts.size(), equalTo(2));
+        Run.Artifact signedApkArtifact = artifacts.stream().filter(artifact -> artifact.getFileName().endsWith(".apk")).findFirst().get();
+        Run.Artifact sha256Artifact = artifacts.stream().filter(artifact -> artifact.getFileName().endsWith(".sha256")).findFirst().get();
+        assertThat(buildArtifact(build, signedApkArtifact), isSigned());
+
+        FilePath signedApk = new FilePath(new File(build.getArtifactsDir(), signedApkArtifact.relativePath));
+        String sha256 = signedApk.act(new DigestFileCallable(DigestFileCallable.SHA_256));
+        String sha256File = new FilePath(new File(build.getArtifactsDir(), sha256Artifact.relativePath)).readToString();
+        assertThat(sha256File, equalTo(sha256 + "  " + signedApk.getName() + "\n"));
+
+        Fingerprinter.FingerprintAction fingerprints = build.getAction(Fingerprinter.FingerprintAction.class);
+        assertThat(fingerprints, notNullValue());
+        assertThat(fingerprints.getRecords().get("SignApksBuilderTest.apk"), equalTo(signedApk.digest()));
+    }
+
+    @Test
+    public void archivesDeltaPatchesThatRebuildTheSignedApkFromThePreviousBuild() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setGenerateDeltaPatches(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild first = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("no previous successful build; skipping delta patch", first);
+        assertThat(first.getArtifacts().size(), equalTo(1));
+
+        FreeStyleBuild second = testJenkins.buildAndAssertSuccess(job);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = second.getArtifacts();
+
+        assertThat(artifacts.size(), equalTo(2));
+        Run.Artifact signedApkArtifact = artifacts.stream().filter(artifact -> artifact.getFileName().endsWith(".apk")).findFirst().get();
+        Run.Artifact deltaArtifact = artifacts.stream().filter(artifact -> artifact.getFileName().endsWith(ApkDeltaPatch.FILE_EXTENSION)).findFirst().get();
+        assertThat(deltaArtifact.relativePath, equalTo(signedApkArtifact.relativePath + ApkDeltaPatch.FILE_EXTENSION));
+
+        File previousApk = new File(first.getArtifactsDir(), signedApkArtifact.relativePath);
+        File signedApk = new File(second.getArtifactsDir(), signedApkArtifact.relativePath);
+        File patch = new File(second.getArtifactsDir(), deltaArtifact.relativePath);
+        File rebuiltApk = testDir.newFile("rebuilt.apk");
+        ApkDeltaPatch.apply(previousApk, patch, rebuiltApk);
+
+        assertThat(Files.readAllBytes(rebuiltApk.toPath()), equalTo(Files.readAllBytes(signedApk.toPath())));
+        FilePath workspace = second.getWorkspace();
+        assertThat(workspace.child(SignApksBuilder.BUILDER_DIR).child("delta").exists(), is(false));
+    }
+
+    @Test
+    public void archivesDeltaPatchesOnTheArchiveThread() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setArchiveImmediately(true);
+        builder.setGenerateDeltaPatches(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        testJenkins.buildAndAssertSuccess(job);
+        FreeStyleBuild second = testJenkins.buildAndAssertSuccess(job);
+
+        List<String> artifactPaths = second.getArtifacts().stream().map(artifact -> artifact.relativePath).collect(Collectors.toList());
+        List<String> signedApkPaths = artifactPaths.stream().filter(path -> path.endsWith(".apk")).collect(Collectors.toList());
+        assertThat(signedApkPaths.size(), greaterThan(1));
+        for (String signedApkPath : signedApkPaths) {
+            assertThat(artifactPaths, hasItem(signedApkPath + ApkDeltaPatch.FILE_EXTENSION));
+        }
+        testJenkins.assertLogContains("bytes reused from the previous APK", second);
+    }
+
+    @Test
+    public void attachesSigningReportToBuild() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        assertThat(job.getAction(SigningTrendAction.class), nullValue());
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        SigningReportAction report = build.getAction(SigningReportAction.class);
+        assertThat(report, notNullValue());
+        assertThat(report.getSignedApks().size(), equalTo(2));
+        String signerCertSha256 = report.getSignedApks().get(0).getSignerCertSha256();
+        assertThat(signerCertSha256.length(), equalTo(64));
+        for (SigningReportAction.SignedApk apk : report.getSignedApks()) {
+            assertThat(apk.getUnsignedApk(), startsWith("SignApksBuilderTest-"));
+            assertThat(apk.getInputSize(), greaterThan(0L));
+            assertThat(apk.getOutputSize(), greaterThan(0L));
+            assertThat(apk.isZipalignSkipped(), is(false));
+            assertThat(apk.getSignatureSchemes(), equalTo("v1, v2"));
+            assertThat(apk.getKeyAlias(), equalTo(KEY_ALIAS));
+            assertThat(apk.getSignerCertSha256(), equalTo(signerCertSha256));
+        }
+        assertThat(report.getTotalOutputSize(), equalTo(report.getSignedApks().get(0).getOutputSize() + report.getSignedApks().get(1).getOutputSize()));
+
+        JenkinsRule.WebClient browser = testJenkins.createWebClient();
+        HtmlPage reportPage = browser.getPage(build, SigningReportAction.URL_NAME);
+        assertThat(reportPage.asText(), containsString(signerCertSha256));
+
+        SigningTrendAction trend = job.getAction(SigningTrendAction.class);
+        assertThat(trend, notNullValue());
+        assertThat(trend.getReports().size(), equalTo(1));
+        browser.goTo(job.getUrl());
+        browser.goTo(job.getUrl() + trend.getUrlName() + "/durationGraph", "image/png");
+        browser.goTo(job.getUrl() + trend.getUrlName() + "/sizeGraph", "image/png");
+    }
+
+    @Test
+    public void writesSigningTraceToBuildDir() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        File traceFile = new File(build.getRootDir(), SigningTrace.TRACE_FILE_NAME);
+        assertThat(traceFile.isFile(), is(true));
+        String trace = new FilePath(traceFile).readToString();
+        assertThat(trace, containsString("\"SignApksBuilder.perform\""));
+        assertThat(trace, containsString("\"workspace-scan\""));
+        assertThat(trace, containsString("\"zipalign\""));
+        assertThat(trace, containsString("\"agent.sign\""));
+        assertThat(trace, containsString("\"apksig.sign\""));
+        assertThat(trace, containsString("\"archive\""));
+    }
+
+    @Test
+    public void reportsRemoteCallsByPhase() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] remote calls: ", build);
+        testJenkins.assertLogContains("workspace-scan 1 calls", build);
+        String log = JenkinsRule.getLog(build);
+        assertThat(log, containsString("; sign "));
+        assertThat(log, containsString("; archive "));
+    }
+
+    @Test
+    public void waitsForSigningPermitsOfTheNode() throws Exception {
+        slave.getNodeProperties().add(new SigningConcurrencyNodeProperty(1));
+        testJenkins.jenkins.getLabelAtom(getClass().getSimpleName()).getProperties().add(new SigningConcurrencyLabelProperty(2));
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        String log = JenkinsRule.getLog(build);
+        String waitLine = "for one of 1 signing permits on " + slave.getNodeName();
+        assertThat(log.indexOf(waitLine), greaterThan(-1));
+        assertThat(log.indexOf(waitLine, log.indexOf(waitLine) + 1), greaterThan(-1));
+        assertThat(SigningConcurrencyLimiter.availablePermits(slave.getNodeName()), equalTo(1));
+    }
+
+    @Test
+    public void usesTheSmallestLabelLimitWithoutANodeLimit() throws Exception {
+        testJenkins.jenkins.getLabelAtom(getClass().getSimpleName()).getProperties().add(new SigningConcurrencyLabelProperty(3));
+        testJenkins.jenkins.getLabelAtom(slave.getNodeName()).getProperties().add(new SigningConcurrencyLabelProperty(2));
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("for one of 2 signing permits on " + slave.getNodeName(), build);
+    }
+
+    @Test
+    public void alignsInTheScratchDirectoryOfTheNodeAndDeletesItAfter() throws Exception {
+        File scratchRoot = testDir.newFolder("scratch");
+        slave.getNodeProperties().add(new SigningScratchNodeProperty(scratchRoot.getAbsolutePath()));
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] using scratch directory " + scratchRoot.getAbsolutePath(), build);
+        List<String> zipalignCommand = zipalignLauncher.lastProc.cmds();
+        assertThat(zipalignCommand.get(zipalignCommand.size() - 1), startsWith(scratchRoot.getAbsolutePath()));
+        assertThat(scratchRoot.list(), emptyArray());
+        for (Run.Artifact artifact : build.getArtifacts()) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+    }
+
+    @Test
+    public void stagesApksInTheScratchDirectory() throws Exception {
+        File scratchRoot = testDir.newFolder("scratch");
+        slave.getNodeProperties().add(new SigningScratchNodeProperty(scratchRoot.getAbsolutePath()));
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setArchiveSignedApks(true);
+        builder.setRecordChecksums(true);
+        builder.setStageApks(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] staged ", build);
+        List<String> zipalignCommand = zipalignLauncher.lastProc.cmds();
+        assertThat(zipalignCommand.get(zipalignCommand.size() - 2), startsWith(scratchRoot.getAbsolutePath()));
+        assertThat(scratchRoot.list(), emptyArray());
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertThat(artifacts.size(), equalTo(4));
+        for (Run.Artifact artifact : artifacts) {
+            if (artifact.getFileName().endsWith(".apk")) {
+                assertThat(buildArtifact(build, artifact), isSigned());
+                FilePath signedApk = new FilePath(new File(build.getArtifactsDir(), artifact.relativePath));
+                String sha256 = signedApk.act(new DigestFileCallable(DigestFileCallable.SHA_256));
+                String sha256File = signedApk.sibling(signedApk.getName() + ".sha256").readToString();
+                assertThat(sha256File, equalTo(sha256 + "  " + signedApk.getName() + "\n"));
+            }
+        }
+    }
+
+    @Test
+    public void signsFromTheWorkspaceWhenStagingWithoutAScratchDirectory() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setStageApks(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("not staging APKs because the node has no scratch directory for APK signing", build);
+        for (Run.Artifact artifact : build.getArtifacts()) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+    }
+
+    @Test
+    public void signsWithinTheSigningMemoryLimit() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setSigningMemoryLimit("64");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("of the 67,108,864 byte memory limit", build);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertThat(artifacts.size(), equalTo(2));
+        for (Run.Artifact artifact : artifacts) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+        SigningReportAction report = build.getAction(SigningReportAction.class);
+        for (SigningReportAction.SignedApk apk : report.getSignedApks()) {
+            assertThat(apk.getEstimatedMemoryBytes(), greaterThan((long) PooledBufferDataSink.BUFFER_SIZE));
+        }
+    }
+
+    @Test
+    public void failsApksThatNeedMoreThanTheSigningMemoryLimit() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setSigningMemoryLimit("1");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+
+        testJenkins.assertLogContains("more than the signing memory limit of 1 MiB", build);
+        assertThat(build.getArtifacts(), empty());
+    }
+
+    @Test
+    public void zipalignsOnlyTheApksThatAreNotAligned() throws Exception {
+        SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(256 * 1024, 30).storedFraction(0.5).nativeLibraries(1, "arm64-v8a", 4096);
+        File unalignedApk = new SyntheticApkCorpus(testDir.newFolder()).get(spec);
+        File alignedApk = ZipAlignmentCheckTest.align(unalignedApk, new File(testDir.getRoot(), "aligned.apk"));
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("synthetic-*.apk");
+        builder.setZipalignOnlyUnaligned(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("synthetic-aligned.apk").copyFrom(new FilePath(alignedApk));
+                build.getWorkspace().child("synthetic-unaligned.apk").copyFrom(new FilePath(unalignedApk));
+                return true;
+            }
+        });
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("stored entries of synthetic-aligned.apk are aligned; skipping zipalign", build);
+        testJenkins.assertLogContains("stored entries of synthetic-unaligned.apk are not aligned, such as ", build);
+        List<String> zipalignCommand = zipalignLauncher.lastProc.cmds();
+        assertThat(zipalignCommand.get(zipalignCommand.size() - 2), endsWith("synthetic-unaligned.apk"));
+        for (SigningReportAction.SignedApk apk : build.getAction(SigningReportAction.class).getSignedApks()) {
+            assertThat(apk.isZipalignSkipped(), equalTo(apk.getUnsignedApk().equals("synthetic-aligned.apk")));
+        }
+        assertThat(build.getWorkspace().child("synthetic-aligned.apk").exists(), is(true));
+    }
+
+    @Test
+    public void alignsNativeLibrariesForTheConfiguredPageSize() throws Exception {
+        SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(256 * 1024, 30).storedFraction(0.5).nativeLibraries(1, "arm64-v8a", 4096);
+        File apk = new SyntheticApkCorpus(testDir.newFolder()).get(spec);
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("synthetic.apk");
+        builder.setNativeLibraryPageSize("16");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("synthetic.apk").copyFrom(new FilePath(apk));
+                return true;
+            }
+        });
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        List<String> zipalignCommand = zipalignLauncher.lastProc.cmds();
+        assertThat(zipalignCommand.subList(1, 5), equalTo(Arrays.asList("-f", "-P", "16", "4")));
+        testJenkins.assertLogContains("native library alignment problems in synthetic.apk keep it from loading with 16 KB pages", build);
+        testJenkins.assertLogContains("lib/arm64-v8a/libsynthetic0.so has a LOAD segment aligned to 4096 bytes, not a multiple of 16384", build);
+    }
+
+    @Test
+    public void failsAnUnsupportedNativeLibraryPageSize() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest.apk");
+        builder.setNativeLibraryPageSize("8");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0));
+
+        testJenkins.assertLogContains("native library page size 8 KB is not one of [4, 16, 64]", build);
+    }
+
+    @Test
+    public void distributesApksAcrossLabeledAgents() throws Exception {
+        PretendSlave signer1 = testJenkins.createPretendSlave(new FakeZipalign());
+        signer1.setLabelString("signers");
+        PretendSlave signer2 = testJenkins.createPretendSlave(new FakeZipalign());
+        signer2.setLabelString("signers");
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setDistributeToLabel("signers");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] signing 1 APKs", build);
+        testJenkins.assertLogContains(" on " + signer1.getNodeName(), build);
+        testJenkins.assertLogContains(" on " + signer2.getNodeName(), build);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertThat(artifacts.size(), equalTo(2));
+        for (Run.Artifact artifact : artifacts) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+        assertThat(build.getAction(SigningReportAction.class).getSignedApks().size(), equalTo(2));
+    }
+
+    @Test
+    public void signsOnlyOnAgentsTheBuildMayUse() throws Exception {
+        testJenkins.jenkins.setSecurityRealm(testJenkins.createDummySecurityRealm());
+        testJenkins.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+        testJenkins.jenkins.setLabelString("signers");
+        PretendSlave signer = testJenkins.createPretendSlave(new FakeZipalign());
+        signer.setLabelString("signers");
+
+        assertThat(DistributedSigning.whyCannotSignOn(testJenkins.jenkins, ACL.SYSTEM), containsString("built-in node"));
+        assertThat(DistributedSigning.whyCannotSignOn(signer, Jenkins.ANONYMOUS), containsString("lacks permission to build"));
+        assertThat(DistributedSigning.whyCannotSignOn(signer, ACL.SYSTEM), nullValue());
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setDistributeToLabel("signers");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("signing never runs on the built-in node", build);
+        testJenkins.assertLogContains("[SignApksBuilder] signing 1 APKs, ", build);
+        testJenkins.assertLogContains(" on " + signer.getNodeName(), build);
+        assertThat(buildArtifact(build, build.getArtifacts().get(0)), isSigned());
+    }
+
+    @Test
+    public void balancesAgentsByTheSigningTimesOfEarlierBuilds() throws Exception {
+        PretendSlave signer1 = testJenkins.createPretendSlave(new FakeZipalign());
+        signer1.setLabelString("signers");
+        PretendSlave signer2 = testJenkins.createPretendSlave(new FakeZipalign());
+        signer2.setLabelString("signers");
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setDistributeToLabel("signers");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild first = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("no signing times from earlier builds; balancing agents by APK size", first);
+        testJenkins.assertLogNotContains("predicted the agents would finish", first);
+
+        FreeStyleBuild second = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("estimated signing times of 2 APKs from 1 earlier builds", second);
+        testJenkins.assertLogContains("predicted the agents would finish in ", second);
+        for (Run.Artifact artifact : second.getArtifacts()) {
+            assertThat(buildArtifact(second, artifact), isSigned());
+        }
+    }
+
+    @Test
+    public void retriesApksOfAFailedAgentOnAnotherAgent() throws Exception {
+        PretendSlave failing = testJenkins.createPretendSlave(p -> {
+            if (p.cmds().get(0).contains("zipalign")) {
+                throw new ChannelClosedException(new IOException("agent went away"));
+            }
+            return new FakeLauncher.FinishedProc(0);
+        });
+        failing.setLabelString("signers");
+        PretendSlave working = testJenkins.createPretendSlave(new FakeZipalign());
+        working.setLabelString("signers");
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-*.apk");
+        builder.setDistributeToLabel("signers");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] signing on " + failing.getNodeName() + " failed; retrying its 1 unsigned APKs elsewhere", build);
+        testJenkins.assertLogContains("[SignApksBuilder] signing 1 APKs, ", build);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertThat(artifacts.size(), equalTo(2));
+        for (Run.Artifact artifact : artifacts) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+    }
+
+    @Test
+    public void failsOnApkErrorsOnAnAgentRatherThanRetrying() throws Exception {
+        PretendSlave failing = testJenkins.createPretendSlave(p -> {
+            if (p.cmds().get(0).contains("zipalign")) {
+                throw new IOException("no space left on device");
+            }
+            return new FakeLauncher.FinishedProc(0);
+        });
+        failing.setLabelString("signers");
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setDistributeToLabel("signers");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+
+        testJenkins.assertLogContains("no space left on device", build);
+        testJenkins.assertLogNotContains("retrying its", build);
+        testJenkins.assertLogNotContains("[SignApksBuilder] signing APK SignApksBuilderTest-unsigned.apk", build);
+    }
+
+    @Test
+    public void signsInTheWorkspaceWithoutLabeledAgents() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setDistributeToLabel("nobody");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] no online agents with label nobody have a free executor; signing 1 APKs in the workspace", build);
+        assertThat(buildArtifact(build, build.getArtifacts().get(0)), isSigned());
+    }
+
+    @Test
+    public void signsVariantsSplicedFromTheOverlays() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setVariantOverlays("tenants");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] splicing 2 variants of SignApksBuilderTest-unsigned.apk", build);
+        List<Run<FreeStyleProject,FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertThat(artifacts.size(), equalTo(2));
+        assertThat(artifacts.get(0).getFileName(), equalTo("SignApksBuilderTest-acme-signed.apk"));
+        assertThat(artifacts.get(1).getFileName(), equalTo("SignApksBuilderTest-globex-signed.apk"));
+        for (Run.Artifact artifact : artifacts) {
+            assertThat(buildArtifact(build, artifact), isSigned());
+        }
+        FilePath variantsDir = build.getWorkspace().child(SignApksBuilder.BUILDER_DIR).child(SignApksBuilder.VARIANTS_DIR_NAME);
+        assertThat(variantsDir.child("SignApksBuilderTest-acme-unsigned.apk").exists(), is(false));
+        assertThat(variantsDir.child("SignApksBuilderTest-globex-unsigned.apk").exists(), is(false));
+        assertThat(variantsDir.child("SignApksBuilderTest-acme-signed.apk").exists(), is(true));
+    }
+
+    @Test
+    public void skipsApksTheJournalShowsWereSignedEarlierInTheBuild() throws Exception {
+        FreeStyleProject job = createSignApkJob();
+        for (int i = 0; i < 2; i++) {
+            SignApksBuilder builder = new SignApksBuilder();
+            builder.setKeyStoreId(KEY_STORE_ID);
+            builder.setKeyAlias(KEY_ALIAS);
+            builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+            builder.setJournaled(true);
+            job.getBuildersList().add(builder);
+        }
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] resuming: signed APK SignApksBuilderTest-signed.apk matches the signing journal", build);
+        testJenkins.assertLogContains("[SignApksBuilder] resuming with 1 of 1 APKs already signed", build);
+        String log = JenkinsRule.getLog(build);
+        assertThat(log.indexOf("signing APK "), greaterThan(-1));
+        assertThat(log.indexOf("signing APK ", log.indexOf("signing APK ") + 1), equalTo(-1));
+        assertThat(new File(build.getRootDir(), SigningJournal.JOURNAL_FILE_NAME).isFile(), is(true));
+        assertThat(buildArtifact(build, build.getArtifacts().get(0)), isSigned());
+    }
+
+    @Test
+    public void freestyleBuildsKeepNoJournal() throws Exception {
+        FreeStyleProject job = createSignApkJob();
+        for (int i = 0; i < 2; i++) {
+            SignApksBuilder builder = new SignApksBuilder();
+            builder.setKeyStoreId(KEY_STORE_ID);
+            builder.setKeyAlias(KEY_ALIAS);
+            builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+            job.getBuildersList().add(builder);
+        }
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogNotContains("resuming", build);
+        assertThat(new File(build.getRootDir(), SigningJournal.JOURNAL_FILE_NAME).exists(), is(false));
+    }
+
+    @Test
+    public void signsAgainWhenTheJournaledOutputChanged() throws Exception {
+        FreeStyleProject job = createSignApkJob();
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setJournaled(true);
+        job.getBuildersList().add(builder);
+        job.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FilePath signedApk = build.getWorkspace().child("SignApksBuilderTest-signed.apk");
+                byte[] bytes;
+                try (InputStream in = signedApk.read()) {
+                    bytes = IOUtils.toByteArray(in);
+                }
+                bytes[bytes.length / 2] ^= 1;
+                signedApk.copyFrom(new ByteArrayInputStream(bytes));
+                return true;
+            }
+        });
+        SignApksBuilder again = new SignApksBuilder();
+        again.setKeyStoreId(KEY_STORE_ID);
+        again.setKeyAlias(KEY_ALIAS);
+        again.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        again.setJournaled(true);
+        job.getBuildersList().add(again);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogNotContains("resuming", build);
+        assertThat(buildArtifact(build, build.getArtifacts().get(0)), isSigned());
+    }
+
+    @Test
+    public void deletesTheAlignedApkWhenAbortedDuringZipalign() throws Exception {
+        CountDownLatch zipalignStarted = new CountDownLatch(1);
+        PretendSlave hanging = testJenkins.createPretendSlave(p -> {
+            if (!p.cmds().get(0).contains("zipalign")) {
+                return new FakeLauncher.FinishedProc(0);
+            }
+            p.pwd().child(p.cmds().get(p.cmds().size() - 1)).write("partial", "UTF-8");
+            zipalignStarted.countDown();
+            CountDownLatch neverExits = new CountDownLatch(1);
+            return new Proc() {
+                @Override
+                public boolean isAlive() {
+                    return true;
+                }
+
+                @Override
+                public void kill() {
+                }
+
+                @Override
+                public int join() throws InterruptedException {
+                    neverExits.await();
+                    return 1;
+                }
+
+                @Override
+                public InputStream getStdout() {
+                    return null;
+                }
+
+                @Override
+                public InputStream getStderr() {
+                    return null;
+                }
+
+                @Override
+                public OutputStream getStdin() {
+                    return null;
+                }
+            };
+        });
+        hanging.setLabelString("hanging");
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.setAssignedLabel(Label.get("hanging"));
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = job.scheduleBuild2(0).waitForStart();
+        assertTrue(zipalignStarted.await(30, TimeUnit.SECONDS));
+        build.getExecutor().interrupt();
+        testJenkins.assertBuildStatus(Result.ABORTED, testJenkins.waitForCompletion(build));
+
+        FilePath zipalignDir = build.getWorkspace().child(SignApksBuilder.BUILDER_DIR).child("zipalign");
+        assertThat(zipalignDir.list("aligned-*.apk").length, equalTo(0));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void deletesThePartialSignedApkWhenSigningIsInterrupted() throws Exception {
+        File apk = new SyntheticApkCorpus(testDir.newFolder()).get(new SyntheticApkCorpus.Spec(256 * 1024, 20));
+        File signedApk = new File(testDir.getRoot(), "signed.apk");
+        char[] password = SignApksBuilderTest.class.getSimpleName().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream keyStoreIn = getClass().getResourceAsStream(TestKeyStore.KEY_STORE_RESOURCE)) {
+            keyStore.load(keyStoreIn, password);
+        }
+        SignApksBuilder.SignApkCallable signApk = new SignApksBuilder.SignApkCallable((PrivateKey) keyStore.getKey(KEY_ALIAS, password),
+            keyStore.getCertificateChain(KEY_ALIAS), KEY_ALIAS, signedApk.getAbsolutePath(), true, 0,
+            new SigningTrace(getClass().getSimpleName()).start("test", null).context(), TaskListener.NULL);
+
+        Thread.currentThread().interrupt();
+        try {
+            signApk.invoke(apk, null);
+            fail("signing did not stop when interrupted");
+        }
+        catch (InterruptedException expected) {
+        }
+        finally {
+            Thread.interrupted();
+        }
+
+        assertThat(signedApk.exists(), is(false));
+        assertThat(new File(signedApk.getPath() + SignApksBuilder.SignApkCallable.SHA_256_FILE_EXTENSION).exists(), is(false));
+    }
+
+    @Test
+    public void doesNotWaitForPermitsWithoutALimit() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogNotContains("signing permits", build);
+    }
+
+    @Test
+    public void archivesFlightRecording() throws Exception {
+        assumeTrue(SigningFlightRecorder.isAvailable());
+
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setFlightRecording(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<String> artifactNames = build.getArtifacts().stream().map(Run.Artifact::getFileName).collect(Collectors.toList());
+
+        assertThat(build.getWorkspace().isRemote(), is(true));
+        assertThat(artifactNames, hasItem(SigningFlightRecorder.RECORDING_FILE_NAME));
+        assertThat(artifactNames.size(), equalTo(2));
+        assertThat(build.getWorkspace().child(SignApksBuilder.BUILDER_DIR + "/" + KEY_STORE_ID + "/" + KEY_ALIAS + "/" + SigningFlightRecorder.RECORDING_FILE_NAME).exists(), is(false));
+        testJenkins.assertLogContains("[SignApksBuilder] started flight recording ", build);
+    }
+
+    @Test
+    public void neverRecordsTheController() throws Exception {
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(KEY_STORE_ID);
+        builder.setKeyAlias(KEY_ALIAS);
+        builder.setApksToSign("SignApksBuilderTest-unsigned.apk");
+        builder.setSkipZipalign(true);
+        builder.setFlightRecording(true);
+
+        FreeStyleProject job = createSignApkJob();
+        job.setAssignedNode(testJenkins.jenkins);
+        job.getBuildersList().add(builder);
+        FreeStyleBuild build = testJenkins.buildAndAssertSuccess(job);
+        List<String> artifactNames = build.getArtifacts().stream().map(Run.Artifact::getFileName).collect(Collectors.toList());
+
+        testJenkins.assertLogContains("[SignApksBuilder] not recording the controller", build);
+        testJenkins.assertLogNotContains("[SignApksBuilder] started flight recording ", build);
+        assertThat(artifactNames, not(hasItem(SigningFlightRecorder.RECORDING_FILE_NAME)));
+    }
+
     @Test
     public void signsTheApk() throws Exception {
         List<Apk> entries = new ArrayList<>();
@@ -557,6 +1468,8 @@ public class SignApksBuilderTest {
         original.setApksToSign("**/*-unsigned.apk");
         original.setSignedApkMapping(new SignedApkMappingStrategy.UnsignedApkSiblingMapping());
         original.setSkipZipalign(true);
+        original.setArchiveImmediately(true);
+        original.setArchiveOnly(true);
         original.setArchiveSignedApks(!original.getArchiveSignedApks());
         original.setArchiveUnsignedApks(!original.getArchiveUnsignedApks());
         original.setAndroidHome(androidHome.getRemote());
@@ -577,6 +1490,8 @@ public class SignApksBuilderTest {
             "skipZipalign",
             "archiveUnsignedApks",
             "archiveSignedApks",
+            "archiveImmediately",
+            "archiveOnly",
             "androidHome",
             "zipalignPath"
         ));
@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import hudson.model.Run;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SignApksStepRestartTest {
+
+    private static final String JOB_NAME = SignApksStepRestartTest.class.getSimpleName();
+    private static final String FIRST_APK = "SignApksBuilderTest-chocolate_flavor.apk";
+    private static final String SECOND_APK = "SignApksBuilderTest-unsigned.apk";
+
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    private static int countOf(String text, String log) {
+        int count = 0;
+        for (int at = log.indexOf(text); at > -1; at = log.indexOf(text, at + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void resumesFromTheSigningJournalAfterARestart() throws Exception {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                new TestKeyStore(story.j).addCredentials();
+                BlockingSignedApkMapping.blockOnApk = SECOND_APK;
+                BlockingSignedApkMapping.blocked = new CountDownLatch(1);
+                WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, JOB_NAME);
+                job.setDefinition(new CpsFlowDefinition(String.format(
+                    "node {%n" +
+                    "  wrap($class: 'CopyTestWorkspace') {%n" +
+                    "    signAndroidApks(" +
+                    "      keyStoreId: '%s',%n" +
+                    "      keyAlias: '%s',%n" +
+                    "      apksToSign: '%s, %s',%n" +
+                    "      skipZipalign: true,%n" +
+                    "      signedApkMapping: [$class: 'BlockingSignedApkMapping']%n" +
+                    "    )%n" +
+                    "  }%n" +
+                    "}", TestKeyStore.KEY_STORE_ID, TestKeyStore.KEY_ALIAS, FIRST_APK, SECOND_APK)));
+                WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+
+                assertThat(BlockingSignedApkMapping.blocked.await(60, TimeUnit.SECONDS), is(true));
+                story.j.waitForMessage("[SignApksBuilder] signed APK SignApksBuilderTest-chocolate_flavor-signed.apk", run);
+                // the blocked signing thread stops when Jenkins shuts down; after the restart the second APK signs
+                BlockingSignedApkMapping.blockOnApk = null;
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = story.j.jenkins.getItemByFullName(JOB_NAME, WorkflowJob.class);
+                WorkflowRun run = job.getBuildByNumber(1);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(run));
+
+                story.j.assertLogContains("[SignApksBuilder] resuming signing after a restart", run);
+                story.j.assertLogContains("[SignApksBuilder] resuming with 1 of 2 APKs already signed", run);
+                String log = JenkinsRule.getLog(run);
+                assertThat(countOf("[SignApksBuilder] signing APK " + FIRST_APK, log), equalTo(1));
+                assertThat(countOf("[SignApksBuilder] signing APK " + SECOND_APK, log), equalTo(1));
+                List<String> artifactNames = run.getArtifacts().stream().map(Run.Artifact::getFileName).collect(Collectors.toList());
+                assertThat(artifactNames, hasItems("SignApksBuilderTest-chocolate_flavor-signed.apk", "SignApksBuilderTest.apk"));
+            }
+        });
+    }
+}
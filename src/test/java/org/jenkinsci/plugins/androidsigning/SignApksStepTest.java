@@ -248,4 +248,31 @@ public class SignApksStepTest {
         assertThat(artifacts.size(), equalTo(1));
         assertThat(artifacts.get(0).getFileName(), equalTo("TestSignedApkMapping-SignApksBuilderTest-unsigned.apk"));
     }
+
+    @Test
+    public void retryContinuesFromTheSigningJournal() throws Exception {
+        WorkflowJob job = testJenkins.jenkins.createProject(WorkflowJob.class, getClass().getSimpleName());
+        job.setDefinition(new CpsFlowDefinition(String.format(
+            "node('%s') {%n" +
+            "  wrap($class: 'CopyTestWorkspace') {%n" +
+            "    def attempts = 0%n" +
+            "    retry(2) {%n" +
+            "      attempts++%n" +
+            "      signAndroidApks(" +
+            "        keyStoreId: '%s',%n" +
+            "        keyAlias: '%s',%n" +
+            "        apksToSign: 'SignApksBuilderTest-unsigned.apk'%n" +
+            "      )%n" +
+            "      if (attempts == 1) {%n" +
+            "        error 'failing after signing'%n" +
+            "      }%n" +
+            "    }%n" +
+            "  }%n" +
+            "}", getClass().getSimpleName(), TestKeyStore.KEY_STORE_ID, TestKeyStore.KEY_ALIAS)));
+
+        WorkflowRun run = testJenkins.buildAndAssertSuccess(job);
+
+        testJenkins.assertLogContains("[SignApksBuilder] resuming with 1 of 1 APKs already signed", run);
+        assertThat(run.getArtifacts().get(0).getFileName(), equalTo("SignApksBuilderTest-signed.apk"));
+    }
 }
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class SigningConcurrencyLimiterTest {
+
+    @Test
+    public void blocksWhileAllPermitsAreHeld() throws Exception {
+        String node = "blocksWhileAllPermitsAreHeld";
+        SigningConcurrencyLimiter.Permit first = SigningConcurrencyLimiter.acquire(node, 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch waiting = new CountDownLatch(1);
+            Future<SigningConcurrencyLimiter.Permit> second = executor.submit(() -> {
+                waiting.countDown();
+                return SigningConcurrencyLimiter.acquire(node, 1);
+            });
+            waiting.await();
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("acquired a second permit of one");
+            }
+            catch (TimeoutException expected) {
+            }
+
+            first.close();
+            second.get(10, TimeUnit.SECONDS).close();
+            assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(1));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void releasesAPermitOnce() throws Exception {
+        String node = "releasesAPermitOnce";
+        SigningConcurrencyLimiter.Permit permit = SigningConcurrencyLimiter.acquire(node, 2);
+        assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(1));
+
+        permit.close();
+        permit.close();
+
+        assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(2));
+    }
+
+    @Test
+    public void startsANewSemaphoreWhenThePermitsChange() throws Exception {
+        String node = "startsANewSemaphoreWhenThePermitsChange";
+        SigningConcurrencyLimiter.Permit old = SigningConcurrencyLimiter.acquire(node, 1);
+
+        SigningConcurrencyLimiter.Permit resized = SigningConcurrencyLimiter.acquire(node, 3);
+        assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(2));
+
+        old.close();
+        assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(2));
+        resized.close();
+        assertThat(SigningConcurrencyLimiter.availablePermits(node), equalTo(3));
+    }
+
+    @Test
+    public void unlimitedPermitReleasesNothing() {
+        SigningConcurrencyLimiter.Permit.UNLIMITED.close();
+        assertThat(SigningConcurrencyLimiter.availablePermits("unlimitedPermitReleasesNothing"), is(-1));
+    }
+}
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SigningCostModelTest {
+
+    private static SigningReportAction.SignedApk apk(String unsignedApk, long inputSize, long zipalignMillis, long signMillis) {
+        return new SigningReportAction.SignedApk(unsignedApk, unsignedApk.replace("unsigned", "signed"), inputSize, inputSize,
+            false, zipalignMillis, signMillis, "v1,v2", "keyStore", "alias", "cert");
+    }
+
+    @Test
+    public void scalesTheLastTimeOfAnApkByItsSize() {
+        SigningReportAction newer = new SigningReportAction();
+        newer.addSignedApk(apk("app-unsigned.apk", 1000, 100, 300));
+        SigningReportAction older = new SigningReportAction();
+        older.addSignedApk(apk("app-unsigned.apk", 1000, 1000, 3000));
+        SigningCostModel model = new SigningCostModel();
+        model.addReport(newer);
+        model.addReport(older);
+
+        assertThat(model.getBuilds(), equalTo(2));
+        assertThat(model.estimateMillis("app-unsigned.apk", 1000), equalTo(400L));
+        assertThat(model.estimateMillis("app-unsigned.apk", 1500), equalTo(600L));
+    }
+
+    @Test
+    public void estimatesOtherApksFromTheOverallThroughput() {
+        SigningReportAction report = new SigningReportAction();
+        report.addSignedApk(apk("a-unsigned.apk", 1000, 50, 50));
+        report.addSignedApk(apk("b-unsigned.apk", 3000, 100, 200));
+        SigningCostModel model = new SigningCostModel();
+        model.addReport(report);
+
+        assertThat(model.estimateMillis("c-unsigned.apk", 2000), equalTo(200L));
+        assertThat(model.estimateMillis("d-unsigned.apk", 1), equalTo(1L));
+    }
+
+    @Test
+    public void ignoresApksReportedWithoutATime() {
+        SigningReportAction report = new SigningReportAction();
+        report.addSignedApk(apk("a-unsigned.apk", 1000, 0, 0));
+        SigningCostModel model = new SigningCostModel();
+        model.addReport(report);
+
+        assertThat(model.isEmpty(), is(true));
+        assertThat(model.getBuilds(), equalTo(0));
+    }
+}
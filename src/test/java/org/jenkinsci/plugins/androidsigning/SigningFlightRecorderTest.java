@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+
+public class SigningFlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void eventsWorkWithoutARecording() {
+        SigningFlightRecorder.begin(SigningFlightRecorder.EventType.KEY_STORE_DECODE).commit();
+        SigningFlightRecorder.begin(SigningFlightRecorder.EventType.APK_SIGN, "app.apk", 1024).commit();
+    }
+
+    @Test
+    public void recordsAndDumpsSigningEvents() throws Exception {
+        assumeTrue(SigningFlightRecorder.isAvailable());
+
+        long recordingId = new SigningFlightRecorder.StartRecording().call();
+        SigningFlightRecorder.begin(SigningFlightRecorder.EventType.APK_SIGN, "app.apk", 1024).commit();
+        File dump = new File(tempDir.getRoot(), "out/" + SigningFlightRecorder.RECORDING_FILE_NAME);
+
+        assertThat(new SigningFlightRecorder.StopRecording(recordingId, dump.getPath()).call(), is(true));
+        assertThat(dump.length(), greaterThan(0L));
+        assertThat(new SigningFlightRecorder.StopRecording(recordingId, dump.getPath()).call(), is(false));
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class SigningJournalTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static SigningJournal.Entry entry(String unsignedApk, String sha256) {
+        return new SigningJournal.Entry("keyStore", "alias", unsignedApk, 100, 1000, unsignedApk.replace("unsigned", "signed"),
+            new DigestingDataSink.Digests(120, "md5", sha256));
+    }
+
+    @Test
+    public void readsBackTheRecordedEntries() throws Exception {
+        File file = new File(tempDir.getRoot(), SigningJournal.JOURNAL_FILE_NAME);
+        SigningJournal journal = new SigningJournal(file);
+        assertThat(journal.isEmpty(), is(true));
+        journal.record(entry("a-unsigned.apk", "aaaa"));
+        journal.record(entry("b-unsigned.apk", "bbbb"));
+
+        SigningJournal reread = new SigningJournal(file);
+
+        SigningJournal.Entry a = reread.get("keyStore", "alias", "a-unsigned.apk");
+        assertThat(a.signedApk, equalTo("a-signed.apk"));
+        assertThat(a.unsignedSize, equalTo(100L));
+        assertThat(a.unsignedLastModified, equalTo(1000L));
+        assertThat(a.digests.size, equalTo(120L));
+        assertThat(a.digests.md5, equalTo("md5"));
+        assertThat(a.digests.sha256, equalTo("aaaa"));
+        assertThat(reread.get("keyStore", "alias", "b-unsigned.apk").digests.sha256, equalTo("bbbb"));
+        assertThat(reread.get("keyStore", "otherAlias", "a-unsigned.apk"), nullValue());
+    }
+
+    @Test
+    public void keepsTheLastEntryOfAnApk() throws Exception {
+        File file = new File(tempDir.getRoot(), SigningJournal.JOURNAL_FILE_NAME);
+        SigningJournal journal = new SigningJournal(file);
+        journal.record(entry("a-unsigned.apk", "first"));
+        journal.record(entry("a-unsigned.apk", "second"));
+
+        assertThat(new SigningJournal(file).get("keyStore", "alias", "a-unsigned.apk").digests.sha256, equalTo("second"));
+    }
+
+    @Test
+    public void ignoresALineCutShort() throws Exception {
+        File file = new File(tempDir.getRoot(), SigningJournal.JOURNAL_FILE_NAME);
+        new SigningJournal(file).record(entry("a-unsigned.apk", "aaaa"));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("keyStore\talias\tb-unsigned.apk\t100\t10".getBytes(StandardCharsets.UTF_8));
+        }
+
+        SigningJournal reread = new SigningJournal(file);
+
+        assertThat(reread.get("keyStore", "alias", "a-unsigned.apk").digests.sha256, equalTo("aaaa"));
+        assertThat(reread.get("keyStore", "alias", "b-unsigned.apk"), nullValue());
+        reread.record(entry("c-unsigned.apk", "cccc"));
+        assertThat(new SigningJournal(file).get("keyStore", "alias", "c-unsigned.apk").digests.sha256, equalTo("cccc"));
+    }
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class SigningMemoryLimitTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private final SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(1024 * 1024, 50)
+        .storedFraction(0.5)
+        .nativeLibraries(2, "arm64-v8a", 16384)
+        .largeAssets(1, 256 * 1024);
+
+    @Test
+    public void signsWithinAMemoryLimit() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(new SyntheticApkCorpus.Spec(4 * 1024 * 1024, 500)
+            .storedFraction(0.5)
+            .largeAssets(1, 2 * PooledBufferDataSink.BUFFER_SIZE));
+        File signedApk = new File(tempDir.getRoot(), "signed.apk");
+        File unlimitedSignedApk = new File(tempDir.getRoot(), "unlimited-signed.apk");
+
+        SignApksBuilder.SignApkCallable.Result signed = SyntheticApkCorpusTest.sign(apk, signedApk, 64 * SigningMemoryLimit.MIB);
+        SignApksBuilder.SignApkCallable.Result unlimited = SyntheticApkCorpusTest.sign(apk, unlimitedSignedApk, 0);
+        VerifyApkCallable.VerifyResult result = new VerifyApkCallable(TaskListener.NULL).invoke(signedApk, null);
+
+        assertThat(result.isVerified, is(true));
+        assertThat(result.isVerifiedV2Scheme, is(true));
+        assertThat(signed.digests.size, equalTo(signedApk.length()));
+        assertThat(signed.digests.sha256, equalTo(unlimited.digests.sha256));
+        assertThat(signed.memory.directBytes, equalTo((long) PooledBufferDataSink.BUFFER_SIZE));
+        assertThat(signed.memory.estimatedHeapBytes, greaterThan(SigningMemoryLimit.FIXED_HEAP_BYTES));
+        assertThat(signed.memory.getEstimatedBytes(), lessThanOrEqualTo(64 * SigningMemoryLimit.MIB));
+    }
+
+    @Test
+    public void refusesApksThatNeedMoreThanTheMemoryLimit() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File signedApk = new File(tempDir.getRoot(), "signed.apk");
+
+        try {
+            SyntheticApkCorpusTest.sign(apk, signedApk, 2 * SigningMemoryLimit.MIB);
+            fail("expected the memory limit to refuse the APK");
+        }
+        catch (AbortException e) {
+            assertThat(e.getMessage(), containsString("more than the signing memory limit of 2 MiB"));
+        }
+        assertThat(signedApk.exists(), is(false));
+    }
+}
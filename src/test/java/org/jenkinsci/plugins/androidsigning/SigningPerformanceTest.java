@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.PretendSlave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Run;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+
+/**
+ * Signs APKs from the {@link SyntheticApkCorpus} in freestyle and pipeline builds, with the real signer and
+ * {@link FakeZipalign}, and fails if the signing step makes more remote calls per APK, or its signing thread
+ * allocates more heap per APK, than {@value #BUDGETS_RESOURCE} allows, plus the margin in the
+ * {@value #MARGIN_PROPERTY} system property.  When a change legitimately costs more, raise the budget in the same
+ * commit and say why.
+ * <p>
+ * Signing thread allocation is what the agent's signing callable allocated, from the
+ * {@value SigningTrace#ALLOCATED_BYTES_ATTRIBUTE} attribute of its spans in the build's trace, so it does not depend
+ * on what else the JVM is doing.  Wall time does depend on the machine, so its budget is only checked when the
+ * {@value #ENABLE_PROPERTY} system property is true, e.g.,
+ * {@code mvn test -Dtest=SigningPerformanceTest -DSigningPerformanceTest.enabled=true}, on a machine quiet enough
+ * for it.
+ */
+public class SigningPerformanceTest {
+
+    static final String ENABLE_PROPERTY = "SigningPerformanceTest.enabled";
+    static final String BUDGETS_RESOURCE = "/performance-budgets.properties";
+    static final String MARGIN_PROPERTY = SigningPerformanceTest.class.getName() + ".margin";
+    static final double DEFAULT_MARGIN = 0.2;
+
+    static final int APK_COUNT = 4;
+    static final int APK_SIZE_MB = 4;
+    static final int APK_ENTRY_COUNT = 500;
+
+    private static final Pattern REMOTE_CALLS = Pattern.compile("(\\d+) calls");
+
+    private JenkinsRule testJenkins = new JenkinsRule();
+    private TestKeyStore testKeyStore = new TestKeyStore(testJenkins);
+
+    @Rule
+    public RuleChain jenkinsChain = RuleChain.outerRule(testJenkins).around(testKeyStore);
+
+    private PretendSlave slave;
+    private Properties budgets;
+
+    @Before
+    public void setupEnvironment() throws Exception {
+        URL androidHomeUrl = getClass().getResource("/android");
+        EnvironmentVariablesNodeProperty prop = new EnvironmentVariablesNodeProperty();
+        EnvVars envVars = prop.getEnvVars();
+        envVars.put("ANDROID_HOME", new File(androidHomeUrl.toURI()).getAbsolutePath());
+        testJenkins.jenkins.getGlobalNodeProperties().add(prop);
+        slave = testJenkins.createPretendSlave(new FakeZipalign());
+        slave.setLabelString(slave.getLabelString() + " " + getClass().getSimpleName());
+
+        budgets = new Properties();
+        try (InputStream budgetsIn = getClass().getResourceAsStream(BUDGETS_RESOURCE)) {
+            budgets.load(budgetsIn);
+        }
+    }
+
+    @Test
+    public void freestyleSigningStaysWithinBudgets() throws Exception {
+        FreeStyleProject job = testJenkins.createFreeStyleProject(getClass().getSimpleName());
+        job.getBuildWrappersList().add(new CopySyntheticApks(APK_COUNT, APK_SIZE_MB, APK_ENTRY_COUNT));
+        job.setAssignedLabel(Label.get(getClass().getSimpleName()));
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(TestKeyStore.KEY_STORE_ID);
+        builder.setKeyAlias(TestKeyStore.KEY_ALIAS);
+        builder.setApksToSign(CopySyntheticApks.APK_GLOB);
+        job.getBuildersList().add(builder);
+
+        Run<?, ?> build = testJenkins.buildAndAssertSuccess(job);
+
+        assertWithinBudgets("freestyle", build);
+    }
+
+    @Test
+    public void pipelineSigningStaysWithinBudgets() throws Exception {
+        WorkflowJob job = testJenkins.jenkins.createProject(WorkflowJob.class, getClass().getSimpleName());
+        job.setDefinition(new CpsFlowDefinition(String.format(
+            "node('%s') {%n" +
+            "  wrap([$class: 'CopySyntheticApks', apkCount: %d, apkSizeMb: %d, entryCount: %d]) {%n" +
+            "    signAndroidApks(keyStoreId: '%s', keyAlias: '%s', apksToSign: '%s')%n" +
+            "  }%n" +
+            "}", getClass().getSimpleName(), APK_COUNT, APK_SIZE_MB, APK_ENTRY_COUNT,
+            TestKeyStore.KEY_STORE_ID, TestKeyStore.KEY_ALIAS, CopySyntheticApks.APK_GLOB)));
+
+        Run<?, ?> build = testJenkins.buildAndAssertSuccess(job);
+
+        assertWithinBudgets("pipeline", build);
+    }
+
+    private void assertWithinBudgets(String kind, Run<?, ?> build) throws IOException, InterruptedException {
+        SigningReportAction report = build.getAction(SigningReportAction.class);
+        int apkCount = report.getSignedApks().size();
+        assertThat(apkCount, equalTo(APK_COUNT));
+
+        long remoteCalls = 0;
+        for (String line : build.getLog(Integer.MAX_VALUE)) {
+            if (line.startsWith("[SignApksBuilder] remote calls: ")) {
+                Matcher calls = REMOTE_CALLS.matcher(line);
+                while (calls.find()) {
+                    remoteCalls += Long.parseLong(calls.group(1));
+                }
+            }
+        }
+
+        long allocatedBytes = 0;
+        int allocationSpans = 0;
+        JSONArray spans = JSONObject.fromObject(new FilePath(new File(build.getRootDir(), SigningTrace.TRACE_FILE_NAME)).readToString())
+            .getJSONArray("resourceSpans").getJSONObject(0).getJSONArray("scopeSpans").getJSONObject(0).getJSONArray("spans");
+        for (int i = 0; i < spans.size(); i++) {
+            JSONObject span = spans.getJSONObject(i);
+            if (!span.getString("name").equals("agent.sign")) {
+                continue;
+            }
+            JSONArray attributes = span.getJSONArray("attributes");
+            for (int j = 0; j < attributes.size(); j++) {
+                JSONObject attribute = attributes.getJSONObject(j);
+                if (attribute.getString("key").equals(SigningTrace.ALLOCATED_BYTES_ATTRIBUTE)) {
+                    allocatedBytes += Long.parseLong(attribute.getJSONObject("value").getString("intValue"));
+                    allocationSpans++;
+                }
+            }
+        }
+
+        double margin = Double.parseDouble(System.getProperty(MARGIN_PROPERTY, String.valueOf(DEFAULT_MARGIN)));
+        long wallMillisPerApk = report.getDurationMillis() / apkCount;
+        long allocatedBytesPerApk = allocatedBytes / apkCount;
+        long remoteCallsPerApk = remoteCalls / apkCount;
+        // measurements in the budget file's format, for updating the budgets
+        System.out.printf("%s.wallMillisPerApk=%d%n%s.signingThreadAllocatedBytesPerApk=%d%n%s.remoteCallsPerApk=%d%n",
+            kind, wallMillisPerApk, kind, allocatedBytesPerApk, kind, remoteCallsPerApk);
+
+        assertThat(kind + " remote calls per APK", remoteCallsPerApk, lessThanOrEqualTo(budget(kind + ".remoteCallsPerApk", margin)));
+        // a JVM that does not measure thread allocation records none
+        if (allocationSpans > 0) {
+            assertThat(kind + " signing threads that recorded allocation", allocationSpans, equalTo(apkCount));
+            assertThat(kind + " signing thread allocation per APK", allocatedBytesPerApk,
+                lessThanOrEqualTo(budget(kind + ".signingThreadAllocatedBytesPerApk", margin)));
+        }
+        if (Boolean.getBoolean(ENABLE_PROPERTY)) {
+            assertThat(kind + " wall time per APK", wallMillisPerApk, lessThanOrEqualTo(budget(kind + ".wallMillisPerApk", margin)));
+        }
+    }
+
+    private long budget(String name, double margin) {
+        String budget = budgets.getProperty(name);
+        if (budget == null) {
+            throw new IllegalStateException(BUDGETS_RESOURCE + " has no budget " + name);
+        }
+        return (long) (Long.parseLong(budget.trim()) * (1 + margin));
+    }
+}
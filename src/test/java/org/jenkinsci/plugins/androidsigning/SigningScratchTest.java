@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SigningScratchTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void createsFilesInTheScratchDirectoryWithRoom() throws Exception {
+        FilePath scratchDir = new FilePath(tempDir.newFolder("scratch"));
+        FilePath fallbackDir = new FilePath(new File(tempDir.getRoot(), "fallback"));
+        SigningScratch scratch = new SigningScratch(scratchDir, fallbackDir, TaskListener.NULL);
+
+        FilePath file = scratch.createTempFile("aligned-", ".apk", 1024);
+        FilePath dir = scratch.createTempDir("shard-", "", 1024);
+
+        assertThat(file.getParent().getRemote(), equalTo(scratchDir.getRemote()));
+        assertThat(dir.getParent().getRemote(), equalTo(scratchDir.getRemote()));
+        assertThat(fallbackDir.exists(), is(false));
+    }
+
+    @Test
+    public void fallsBackWhenTheScratchDirectoryIsTooSmall() throws Exception {
+        FilePath scratchDir = new FilePath(tempDir.newFolder("scratch"));
+        FilePath fallbackDir = new FilePath(new File(tempDir.getRoot(), "fallback"));
+        SigningScratch scratch = new SigningScratch(scratchDir, fallbackDir, TaskListener.NULL);
+
+        FilePath file = scratch.createTempFile("aligned-", ".apk", scratchDir.getUsableDiskSpace() + 1);
+
+        assertThat(file.getParent().getRemote(), equalTo(fallbackDir.getRemote()));
+        assertThat(scratchDir.list().size(), equalTo(0));
+    }
+
+    @Test
+    public void usesTheFallbackWithoutAScratchDirectory() throws Exception {
+        FilePath fallbackDir = new FilePath(new File(tempDir.getRoot(), "fallback"));
+        SigningScratch scratch = new SigningScratch(null, fallbackDir, TaskListener.NULL);
+
+        assertThat(scratch.createTempFile("aligned-", ".apk", 1024).getParent().getRemote(), equalTo(fallbackDir.getRemote()));
+    }
+
+    @Test
+    public void deletesTheScratchDirectoryWhenClosed() throws Exception {
+        FilePath scratchDir = new FilePath(tempDir.newFolder("scratch"));
+        FilePath fallbackDir = new FilePath(new File(tempDir.getRoot(), "fallback"));
+        SigningScratch scratch = new SigningScratch(scratchDir, fallbackDir, TaskListener.NULL);
+        FilePath file = scratch.createTempFile("aligned-", ".apk", 1024);
+
+        scratch.close();
+
+        assertThat(file.exists(), is(false));
+        assertThat(scratchDir.exists(), is(false));
+        assertThat(fallbackDir.exists(), is(false));
+    }
+}
@@ -0,0 +1,356 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.PretendSlave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Cause;
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Runs many signing builds at once, freestyle and pipeline, with two credentials, on one and on several agents,
+ * and reports throughput, build latency percentiles, and how much each signing stage slows down compared to a
+ * build that runs alone.  It fails on cross-build interference: a failed build, a signed APK that does not verify
+ * with the expected signer, or a signed APK whose content is not the content of its unsigned APK, which is what a
+ * collision of temporary files in {@code SignApksBuilder-out/zipalign} would produce.
+ * <p>
+ * The harness only runs when the {@value #ENABLE_PROPERTY} system property is true, e.g.,
+ * {@code mvn test -Dtest=SigningStressTest -DSigningStressTest.enabled=true}.  The {@value #BUILDS_PROPERTY},
+ * {@value #AGENTS_PROPERTY}, and {@value #APK_SIZE_PROPERTY} properties scale it.  Reports go to standard output
+ * and to {@code target/signing-stress-report.txt}.
+ */
+public class SigningStressTest {
+
+    static final String ENABLE_PROPERTY = "SigningStressTest.enabled";
+    static final String BUILDS_PROPERTY = "SigningStressTest.builds";
+    static final String AGENTS_PROPERTY = "SigningStressTest.agents";
+    static final String APK_SIZE_PROPERTY = "SigningStressTest.apkSizeMb";
+    static final String REPORT_FILE = "target/signing-stress-report.txt";
+    static final String LABEL = SigningStressTest.class.getSimpleName();
+    static final String OTHER_KEY_STORE_ID = "stressOtherKey";
+    static final String OTHER_KEY_ALIAS = "SignApksBuilderTest2";
+    static final int APKS_PER_BUILD = 2;
+    static final int APK_ENTRY_COUNT = 200;
+
+    private static final List<String> report = new ArrayList<>();
+
+    private final int builds = Integer.getInteger(BUILDS_PROPERTY, 20);
+    private final int agents = Integer.getInteger(AGENTS_PROPERTY, 3);
+    private final int apkSizeMb = Integer.getInteger(APK_SIZE_PROPERTY, 4);
+
+    private JenkinsRule testJenkins = new JenkinsRule();
+    private TestKeyStore testKeyStore = new TestKeyStore(testJenkins);
+    private TestKeyStore otherKeyStore = new TestKeyStore(testJenkins,
+        "/SignApksBuilderTestMulti.p12", OTHER_KEY_STORE_ID, null, SignApksBuilderTest.class.getSimpleName());
+
+    @Rule
+    public RuleChain jenkinsChain = RuleChain.outerRule(testJenkins).around(testKeyStore).around(otherKeyStore);
+
+    @BeforeClass
+    public static void checkEnabled() {
+        assumeTrue(Boolean.getBoolean(ENABLE_PROPERTY));
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        if (report.isEmpty()) {
+            return;
+        }
+        File reportFile = new File(REPORT_FILE);
+        Files.createDirectories(reportFile.getAbsoluteFile().getParentFile().toPath());
+        Files.write(reportFile.toPath(), report, StandardCharsets.UTF_8);
+    }
+
+    @Before
+    public void setupEnvironment() throws Exception {
+        EnvironmentVariablesNodeProperty prop = new EnvironmentVariablesNodeProperty();
+        EnvVars envVars = prop.getEnvVars();
+        envVars.put("ANDROID_HOME", new File(getClass().getResource("/android").toURI()).getAbsolutePath());
+        testJenkins.jenkins.getGlobalNodeProperties().add(prop);
+    }
+
+    private List<PretendSlave> createAgents(int count) throws Exception {
+        List<PretendSlave> created = new ArrayList<>(count);
+        int executorsPerAgent = (builds + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            PretendSlave agent = new PretendSlave("stress-agent-" + i, testJenkins.createTmpDir().getPath(), executorsPerAgent,
+                Node.Mode.NORMAL, LABEL, testJenkins.createComputerLauncher(null), new FakeZipalign());
+            testJenkins.jenkins.addNode(agent);
+            testJenkins.waitOnline(agent);
+            created.add(agent);
+        }
+        return created;
+    }
+
+    private FreeStyleProject createFreestyleJob(String name, String keyStoreId, String keyAlias) throws IOException {
+        FreeStyleProject job = testJenkins.createFreeStyleProject(name);
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("RUN", "")));
+        job.setConcurrentBuild(true);
+        job.setAssignedLabel(Label.get(LABEL));
+        job.getBuildWrappersList().add(new CopySyntheticApks(APKS_PER_BUILD, apkSizeMb, APK_ENTRY_COUNT));
+        SignApksBuilder builder = new SignApksBuilder();
+        builder.setKeyStoreId(keyStoreId);
+        builder.setKeyAlias(keyAlias);
+        builder.setApksToSign(CopySyntheticApks.APK_GLOB);
+        job.getBuildersList().add(builder);
+        return job;
+    }
+
+    private WorkflowJob createPipelineJob(String name, String keyStoreId, String keyAlias) throws IOException {
+        WorkflowJob job = testJenkins.jenkins.createProject(WorkflowJob.class, name);
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("RUN", "")));
+        job.setDefinition(new CpsFlowDefinition(String.format(
+            "node('%s') {%n" +
+            "  wrap([$class: 'CopySyntheticApks', apkCount: %d, apkSizeMb: %d, entryCount: %d]) {%n" +
+            "    signAndroidApks(keyStoreId: '%s', keyAlias: '%s', apksToSign: '%s')%n" +
+            "  }%n" +
+            "}", LABEL, APKS_PER_BUILD, apkSizeMb, APK_ENTRY_COUNT, keyStoreId, keyAlias, CopySyntheticApks.APK_GLOB)));
+        return job;
+    }
+
+    @Test
+    public void concurrentFreestyleAndPipelineBuildsOnOneAgent() throws Exception {
+        createAgents(1);
+        runScenario("one agent, " + builds + " builds");
+    }
+
+    @Test
+    public void concurrentFreestyleAndPipelineBuildsOnSeveralAgents() throws Exception {
+        createAgents(agents);
+        runScenario(agents + " agents, " + builds + " builds");
+    }
+
+    @Test
+    public void parallelBranchesSigningInOneWorkspace() throws Exception {
+        createAgents(1);
+        WorkflowJob job = testJenkins.jenkins.createProject(WorkflowJob.class, "parallelBranches");
+        StringBuilder branches = new StringBuilder();
+        for (int branch = 0; branch < builds; branch++) {
+            boolean other = branch % 2 == 1;
+            branches.append(String.format("branches['sign-%d'] = { signAndroidApks(keyStoreId: '%s', keyAlias: '%s', apksToSign: 'synthetic-%d-unsigned.apk') }%n",
+                branch, other ? OTHER_KEY_STORE_ID : TestKeyStore.KEY_STORE_ID, other ? OTHER_KEY_ALIAS : TestKeyStore.KEY_ALIAS, branch));
+        }
+        job.setDefinition(new CpsFlowDefinition(String.format(
+            "def branches = [:]%n" +
+            "%s" +
+            "node('%s') {%n" +
+            "  wrap([$class: 'CopySyntheticApks', apkCount: %d, apkSizeMb: %d, entryCount: %d]) {%n" +
+            "    parallel branches%n" +
+            "  }%n" +
+            "}", branches, LABEL, builds, apkSizeMb, APK_ENTRY_COUNT)));
+
+        long start = System.currentTimeMillis();
+        Run<?, ?> build = testJenkins.buildAndAssertSuccess(job);
+        long elapsed = System.currentTimeMillis() - start;
+
+        List<String> interference = new ArrayList<>();
+        checkSignedArtifacts(build, interference);
+        SigningReportAction signingReport = build.getAction(SigningReportAction.class);
+        report(String.format("== %d parallel branches in one workspace: %d APKs in %,d ms, %.2f APKs/s",
+            builds, signingReport.getSignedApks().size(), elapsed, signingReport.getSignedApks().size() * 1000.0 / elapsed));
+        reportStages(Collections.singletonList(signingReport), Collections.emptyList());
+        reportInterference(interference);
+        assertThat(interference, empty());
+    }
+
+    private void runScenario(String name) throws Exception {
+        FreeStyleProject freestyle = createFreestyleJob("freestyle", TestKeyStore.KEY_STORE_ID, TestKeyStore.KEY_ALIAS);
+        FreeStyleProject freestyleOtherKey = createFreestyleJob("freestyleOtherKey", OTHER_KEY_STORE_ID, OTHER_KEY_ALIAS);
+        WorkflowJob pipeline = createPipelineJob("pipeline", TestKeyStore.KEY_STORE_ID, TestKeyStore.KEY_ALIAS);
+        WorkflowJob pipelineOtherKey = createPipelineJob("pipelineOtherKey", OTHER_KEY_STORE_ID, OTHER_KEY_ALIAS);
+        List<Job<?, ?>> jobs = new ArrayList<>();
+        Collections.addAll(jobs, freestyle, freestyleOtherKey, pipeline, pipelineOtherKey);
+
+        // a build alone, for the uncontended stage timings
+        Run<?, ?> solo = testJenkins.buildAndAssertSuccess(freestyle);
+
+        long start = System.currentTimeMillis();
+        List<Future<? extends Run<?, ?>>> scheduled = new ArrayList<>(builds);
+        for (int i = 0; i < builds; i++) {
+            Job<?, ?> job = jobs.get(i % jobs.size());
+            ParametersAction run = new ParametersAction(new StringParameterValue("RUN", String.valueOf(i)));
+            if (job instanceof FreeStyleProject) {
+                scheduled.add(((FreeStyleProject) job).scheduleBuild2(0, new Cause.UserIdCause(), run));
+            }
+            else {
+                scheduled.add(((WorkflowJob) job).scheduleBuild2(0, run));
+            }
+        }
+        List<Run<?, ?>> runs = new ArrayList<>(builds);
+        List<String> interference = new ArrayList<>();
+        for (Future<? extends Run<?, ?>> future : scheduled) {
+            Run<?, ?> run = future.get();
+            runs.add(run);
+            if (run.getResult() != Result.SUCCESS) {
+                interference.add(run.getFullDisplayName() + " finished " + run.getResult());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        List<Long> durations = new ArrayList<>(runs.size());
+        List<SigningReportAction> reports = new ArrayList<>(runs.size());
+        int apks = 0;
+        for (Run<?, ?> run : runs) {
+            durations.add(run.getDuration());
+            SigningReportAction signingReport = run.getAction(SigningReportAction.class);
+            if (signingReport != null) {
+                reports.add(signingReport);
+                apks += signingReport.getSignedApks().size();
+            }
+            checkSignedArtifacts(run, interference);
+        }
+        Collections.sort(durations);
+
+        report(String.format("== %s: %d APKs in %,d ms, %.2f APKs/s", name, apks, elapsed, apks * 1000.0 / elapsed));
+        report(String.format("build duration ms: p50 %,d, p95 %,d, p99 %,d, max %,d",
+            percentile(durations, 0.5), percentile(durations, 0.95), percentile(durations, 0.99), durations.get(durations.size() - 1)));
+        reportStages(reports, Collections.singletonList(solo.getAction(SigningReportAction.class)));
+        reportInterference(interference);
+        assertThat(interference, empty());
+    }
+
+    /**
+     * Report the median and 95th percentile of each per-APK stage under contention, and how much slower the median
+     * is than in the given uncontended reports; the stages that slow down most are where builds contend.
+     */
+    private void reportStages(List<SigningReportAction> reports, List<SigningReportAction> soloReports) {
+        Map<String, List<Long>> stages = stageMillis(reports);
+        Map<String, List<Long>> soloStages = stageMillis(soloReports);
+        for (Map.Entry<String, List<Long>> stage : stages.entrySet()) {
+            List<Long> millis = stage.getValue();
+            long median = percentile(millis, 0.5);
+            List<Long> solo = soloStages.get(stage.getKey());
+            String slowdown = solo == null || percentile(solo, 0.5) == 0 ? "" :
+                String.format(", %.1fx the uncontended median", median / (double) percentile(solo, 0.5));
+            report(String.format("%s ms per APK: p50 %,d, p95 %,d%s", stage.getKey(), median, percentile(millis, 0.95), slowdown));
+        }
+    }
+
+    private static Map<String, List<Long>> stageMillis(List<SigningReportAction> reports) {
+        Map<String, List<Long>> stages = new HashMap<>();
+        stages.put("zipalign", new ArrayList<>());
+        stages.put("sign", new ArrayList<>());
+        for (SigningReportAction signingReport : reports) {
+            for (SigningReportAction.SignedApk apk : signingReport.getSignedApks()) {
+                stages.get("zipalign").add(apk.getZipalignMillis());
+                stages.get("sign").add(apk.getSignMillis());
+            }
+        }
+        for (List<Long> millis : stages.values()) {
+            Collections.sort(millis);
+        }
+        return stages;
+    }
+
+    private void reportInterference(List<String> interference) {
+        report(String.format("interference: %d", interference.size()));
+        for (String problem : interference) {
+            report("  " + problem);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    /**
+     * Check every signed APK the build archived verifies with the signer of its step, and has the entries of the
+     * unsigned APK it came from.
+     */
+    private void checkSignedArtifacts(Run<?, ?> run, List<String> interference) throws Exception {
+        SigningReportAction signingReport = run.getAction(SigningReportAction.class);
+        if (signingReport == null) {
+            interference.add(run.getFullDisplayName() + " has no signing report");
+            return;
+        }
+        for (SigningReportAction.SignedApk apk : signingReport.getSignedApks()) {
+            String archivePath = SignApksBuilder.BUILDER_DIR + "/" + apk.getKeyStoreId() + "/" + apk.getKeyAlias() + "/" +
+                new File(apk.getUnsignedApk()).getName() + "/" + new File(apk.getSignedApk()).getName();
+            File signedApk = new File(run.getArtifactsDir(), archivePath);
+            if (!signedApk.isFile()) {
+                interference.add(run.getFullDisplayName() + " did not archive " + archivePath);
+                continue;
+            }
+            VerifyApkCallable.VerifyResult verified = new FilePath(signedApk).act(new VerifyApkCallable(TaskListener.NULL));
+            TestKeyStore keyStore = TestKeyStore.KEY_STORE_ID.equals(apk.getKeyStoreId()) ? testKeyStore : otherKeyStore;
+            X509Certificate expectedCert = (X509Certificate) keyStore.credentials.getKeyStore().getCertificate(apk.getKeyAlias());
+            if (!verified.isVerified || verified.certs.length != 1 || !verified.certs[0].equals(expectedCert)) {
+                interference.add(run.getFullDisplayName() + " signed " + archivePath + " with the wrong signer or not at all");
+            }
+            String contentProblem = compareContent(apk.getUnsignedApk(), signedApk);
+            if (contentProblem != null) {
+                interference.add(run.getFullDisplayName() + " signed " + archivePath + ": " + contentProblem);
+            }
+        }
+    }
+
+    /**
+     * @return what differs between the entries of the synthetic APK with the given name and the given signed APK,
+     * besides the signature, or null if nothing does
+     */
+    private String compareContent(String unsignedApkPath, File signedApk) throws IOException {
+        String name = new File(unsignedApkPath).getName();
+        int seed = Integer.parseInt(name.replaceAll("^synthetic-(\\d+)-unsigned\\.apk$", "$1"));
+        File unsignedApk = new SyntheticApkCorpus().get(new SyntheticApkCorpus.Spec(apkSizeMb * 1024L * 1024L, APK_ENTRY_COUNT)
+            .storedFraction(0.2)
+            .nativeLibraries(2, "arm64-v8a", 4096)
+            .seed(seed));
+        try (ZipFile unsigned = new ZipFile(unsignedApk); ZipFile signed = new ZipFile(signedApk)) {
+            for (ZipEntry entry : Collections.list(unsigned.entries())) {
+                ZipEntry signedEntry = signed.getEntry(entry.getName());
+                if (signedEntry == null || signedEntry.getCrc() != entry.getCrc()) {
+                    return "entry " + entry.getName() + " differs from " + name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void report(String line) {
+        System.out.println(line);
+        report.add(line);
+    }
+}
@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+
+public class SigningTraceTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static SigningTrace.Span overTheWire(SigningTrace.Span span) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(span);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (SigningTrace.Span) in.readObject();
+        }
+    }
+
+    private static Map<String, JSONObject> spansByName(JSONObject traces, int resourceIndex) {
+        JSONArray spans = traces.getJSONArray("resourceSpans").getJSONObject(resourceIndex)
+            .getJSONArray("scopeSpans").getJSONObject(0).getJSONArray("spans");
+        Map<String, JSONObject> byName = new HashMap<>();
+        for (int i = 0; i < spans.size(); i++) {
+            byName.put(spans.getJSONObject(i).getString("name"), spans.getJSONObject(i));
+        }
+        return byName;
+    }
+
+    @Test
+    public void remoteSpansKeepTheirParents() throws Exception {
+        SigningTrace trace = new SigningTrace("test #1");
+        SigningTrace.Span root = trace.start("root", null);
+        SigningTrace.Span sign = trace.start("sign", root);
+        SigningTrace.Span agentSign = SigningTrace.Span.start("agent.sign", sign.context());
+        agentSign.recordCpuTime().end();
+        trace.addAll(Collections.singletonList(overTheWire(agentSign)));
+        sign.end();
+        root.end();
+
+        File traceFile = new File(tempDir.getRoot(), SigningTrace.TRACE_FILE_NAME);
+        trace.writeOtlpJson(traceFile);
+        JSONObject traces = JSONObject.fromObject(new String(Files.readAllBytes(traceFile.toPath()), StandardCharsets.UTF_8));
+        Map<String, JSONObject> spans = spansByName(traces, 0);
+
+        assertThat(spans.size(), equalTo(3));
+        assertThat(spans.get("root").has("parentSpanId"), is(false));
+        assertThat(spans.get("sign").getString("parentSpanId"), equalTo(spans.get("root").getString("spanId")));
+        assertThat(spans.get("agent.sign").getString("parentSpanId"), equalTo(spans.get("sign").getString("spanId")));
+        for (JSONObject span : spans.values()) {
+            assertThat(span.getString("traceId"), equalTo(trace.getTraceId()));
+            assertThat(Long.parseLong(span.getString("endTimeUnixNano")), greaterThanOrEqualTo(Long.parseLong(span.getString("startTimeUnixNano"))));
+        }
+    }
+
+    @Test
+    public void ignoresUnfinishedAndForeignSpans() throws Exception {
+        SigningTrace trace = new SigningTrace("test #1");
+        SigningTrace other = new SigningTrace("test #2");
+        SigningTrace.Span root = trace.start("root", null);
+        SigningTrace.Span unfinished = SigningTrace.Span.start("unfinished", root.context());
+        SigningTrace.Span foreign = SigningTrace.Span.start("foreign", other.start("other", null).context());
+        foreign.end();
+
+        trace.addAll(Arrays.asList(unfinished, foreign));
+        root.end();
+
+        assertThat(trace.getSpans().size(), equalTo(1));
+    }
+
+    @Test
+    public void appendsTracesOfLaterSteps() throws Exception {
+        File traceFile = new File(tempDir.getRoot(), SigningTrace.TRACE_FILE_NAME);
+        for (int step = 0; step < 2; step++) {
+            SigningTrace trace = new SigningTrace("test #1");
+            trace.start("step" + step, null).end();
+            trace.writeOtlpJson(traceFile);
+        }
+
+        JSONObject traces = JSONObject.fromObject(new String(Files.readAllBytes(traceFile.toPath()), StandardCharsets.UTF_8));
+        assertThat(traces.getJSONArray("resourceSpans").size(), equalTo(2));
+        assertThat(spansByName(traces, 0).containsKey("step0"), is(true));
+        assertThat(spansByName(traces, 1).containsKey("step1"), is(true));
+    }
+}
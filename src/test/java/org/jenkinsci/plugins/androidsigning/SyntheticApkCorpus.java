@@ -0,0 +1,333 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import hudson.Util;
+
+
+/**
+ * Generates valid unsigned APKs of realistic size and shape for benchmarks and stress tests, and caches them on
+ * disk, so a 2 GB input costs its generation once per checkout instead of once per run.  Generation is
+ * deterministic: the same {@link Spec} always produces the same bytes, so results from different runs compare.
+ * <p>
+ * Each APK has the binary manifest of the test APK, so apksig can read its minimum SDK version, followed by the
+ * entries the spec asks for.  Stored entries and large assets hold incompressible bytes, deflated entries hold
+ * text-like bytes that deflate to about half their size, and native libraries start with an ELF64 header with
+ * two {@code PT_LOAD} segments aligned to the spec's page size.
+ */
+class SyntheticApkCorpus {
+
+    static final String CACHE_DIR_PROPERTY = SyntheticApkCorpus.class.getName() + ".cacheDir";
+    static final String MANIFEST_RESOURCE = "/workspace/SignApksBuilderTest-unsigned.apk";
+    static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+    static final int ELF_HEADER_SIZE = 64;
+    static final int ELF_PROGRAM_HEADER_SIZE = 56;
+    static final int ELF_PT_LOAD = 1;
+
+    /** change this when a change to the generator changes the APKs it generates, so cached APKs regenerate */
+    private static final int GENERATOR_VERSION = 1;
+    /** 1 January 2000, so entry times do not depend on when the APK was generated */
+    private static final long ENTRY_TIME = 946684800000L;
+    private static final byte[] TEXT_ALPHABET = "<abcdefghijklmnopqrstuvwxyz =\"/>\n".getBytes(StandardCharsets.US_ASCII);
+
+    static class Spec {
+        final long totalSize;
+        final int entryCount;
+        double storedFraction = 0;
+        int nativeLibraryCount = 0;
+        String abi = "arm64-v8a";
+        long nativeLibraryAlignment = 4096;
+        int largeAssetCount = 0;
+        long largeAssetSize = 0;
+        long seed = 1;
+
+        /**
+         * @param totalSize the total uncompressed size of the entries, in bytes
+         * @param entryCount the number of entries, including the manifest, native libraries, and large assets
+         */
+        Spec(long totalSize, int entryCount) {
+            this.totalSize = totalSize;
+            this.entryCount = entryCount;
+        }
+
+        /**
+         * Store the given fraction of the regular entries instead of deflating them.
+         */
+        Spec storedFraction(double x) {
+            storedFraction = x;
+            return this;
+        }
+
+        Spec nativeLibraries(int count, String abi, long alignment) {
+            nativeLibraryCount = count;
+            this.abi = abi;
+            nativeLibraryAlignment = alignment;
+            return this;
+        }
+
+        Spec largeAssets(int count, long size) {
+            largeAssetCount = count;
+            largeAssetSize = size;
+            return this;
+        }
+
+        Spec seed(long x) {
+            seed = x;
+            return this;
+        }
+
+        int regularEntryCount() {
+            return entryCount - 1 - nativeLibraryCount - largeAssetCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("v%d size=%d entries=%d stored=%s native=%d/%s/%d large=%d/%d seed=%d", GENERATOR_VERSION, totalSize, entryCount,
+                storedFraction, nativeLibraryCount, abi, nativeLibraryAlignment, largeAssetCount, largeAssetSize, seed);
+        }
+    }
+
+    private final File cacheDir;
+
+    /**
+     * A corpus cached in the directory the {@value #CACHE_DIR_PROPERTY} system property names, or in
+     * {@code target/synthetic-apks}.
+     */
+    SyntheticApkCorpus() {
+        this(new File(System.getProperty(CACHE_DIR_PROPERTY, "target/synthetic-apks")));
+    }
+
+    SyntheticApkCorpus(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @return the cached APK for the given spec, generating it first if it is not in the cache
+     */
+    File get(Spec spec) throws IOException {
+        File apk = new File(cacheDir, "synthetic-" + cacheKey(spec) + ".apk");
+        if (apk.isFile()) {
+            return apk;
+        }
+        Files.createDirectories(cacheDir.toPath());
+        File partial = File.createTempFile(apk.getName(), ".partial", cacheDir);
+        try {
+            write(spec, partial);
+            // concurrent generators of the same spec write the same bytes, so either can win
+            Files.move(partial.toPath(), apk.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(partial.toPath());
+        }
+        return apk;
+    }
+
+    private static String cacheKey(Spec spec) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(spec.toString().getBytes(StandardCharsets.UTF_8));
+            return Util.toHexString(digest).substring(0, 16);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void write(Spec spec, File apk) throws IOException {
+        byte[] manifest = readManifest();
+        int regularEntries = spec.regularEntryCount();
+        if (regularEntries < 0) {
+            throw new IllegalArgumentException("too few entries for the manifest, native libraries, and large assets: " + spec);
+        }
+        long sharedSize = spec.totalSize - manifest.length - spec.largeAssetCount * spec.largeAssetSize;
+        if (sharedSize < 0) {
+            throw new IllegalArgumentException("total size is less than the manifest and large assets: " + spec);
+        }
+        int sharingEntries = regularEntries + spec.nativeLibraryCount;
+        long entrySize = sharingEntries == 0 ? 0 : sharedSize / sharingEntries;
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            ZipEntry manifestEntry = new ZipEntry(MANIFEST_ENTRY);
+            manifestEntry.setTime(ENTRY_TIME);
+            zip.putNextEntry(manifestEntry);
+            zip.write(manifest);
+            zip.closeEntry();
+
+            long entryIndex = 0;
+            for (int lib = 0; lib < spec.nativeLibraryCount; lib++) {
+                long size = Math.max(entrySize, ELF_HEADER_SIZE + 2 * ELF_PROGRAM_HEADER_SIZE);
+                putStoredEntry(zip, "lib/" + spec.abi + "/libsynthetic" + lib + ".so", Content.ELF, spec, entryIndex++, size);
+            }
+            for (int asset = 0; asset < spec.largeAssetCount; asset++) {
+                putStoredEntry(zip, String.format("assets/large_%03d.bin", asset), Content.RANDOM, spec, entryIndex++, spec.largeAssetSize);
+            }
+            for (int regular = 0; regular < regularEntries; regular++) {
+                long size = regular == regularEntries - 1 ? sharedSize - entrySize * (sharingEntries - 1) : entrySize;
+                boolean stored = Math.floor((regular + 1) * spec.storedFraction) > Math.floor(regular * spec.storedFraction);
+                if (stored) {
+                    putStoredEntry(zip, String.format("res/raw/synthetic_%06d.png", regular), Content.RANDOM, spec, entryIndex++, size);
+                }
+                else {
+                    ZipEntry entry = new ZipEntry(String.format("res/xml/synthetic_%06d.xml", regular));
+                    entry.setTime(ENTRY_TIME);
+                    zip.putNextEntry(entry);
+                    Content.TEXT.write(zip, spec, entryIndex++, size);
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+
+    private static void putStoredEntry(ZipOutputStream zip, String name, Content content, Spec spec, long entryIndex, long size) throws IOException {
+        // stored entries need their CRC before their data, so generate the data twice
+        CheckedOutputStream crc = new CheckedOutputStream(new NullOutputStream(), new CRC32());
+        content.write(crc, spec, entryIndex, size);
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc.getChecksum().getValue());
+        zip.putNextEntry(entry);
+        content.write(zip, spec, entryIndex, size);
+        zip.closeEntry();
+    }
+
+    private enum Content {
+        RANDOM {
+            @Override
+            void fill(byte[] buffer, Random random) {
+                random.nextBytes(buffer);
+            }
+        },
+        TEXT {
+            @Override
+            void fill(byte[] buffer, Random random) {
+                random.nextBytes(buffer);
+                for (int i = 0; i < buffer.length; i++) {
+                    buffer[i] = TEXT_ALPHABET[(buffer[i] & 0xff) % TEXT_ALPHABET.length];
+                }
+            }
+        },
+        ELF {
+            @Override
+            void fill(byte[] buffer, Random random) {
+                RANDOM.fill(buffer, random);
+            }
+
+            @Override
+            void write(OutputStream out, Spec spec, long entryIndex, long size) throws IOException {
+                byte[] header = elfHeader(spec, size);
+                out.write(header);
+                writeFilled(out, new Random(entrySeed(spec, entryIndex)), size - header.length);
+            }
+        };
+
+        abstract void fill(byte[] buffer, Random random);
+
+        void write(OutputStream out, Spec spec, long entryIndex, long size) throws IOException {
+            writeFilled(out, new Random(entrySeed(spec, entryIndex)), size);
+        }
+
+        void writeFilled(OutputStream out, Random random, long size) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            for (long remaining = size; remaining > 0; remaining -= buffer.length) {
+                fill(buffer, random);
+                out.write(buffer, 0, (int) Math.min(buffer.length, remaining));
+            }
+        }
+
+        private static long entrySeed(Spec spec, long entryIndex) {
+            return spec.seed * 1_000_003L + entryIndex;
+        }
+    }
+
+    /**
+     * An ELF64 shared object header for the spec's ABI, followed by a read-execute and a read-write
+     * {@code PT_LOAD} segment that split the file between them.
+     */
+    static byte[] elfHeader(Spec spec, long fileSize) {
+        short machine;
+        switch (spec.abi) {
+            case "arm64-v8a":
+                machine = 183;
+                break;
+            case "x86_64":
+                machine = 62;
+                break;
+            default:
+                throw new IllegalArgumentException("not a 64-bit ABI: " + spec.abi);
+        }
+        long align = spec.nativeLibraryAlignment;
+        long textSize = fileSize / 2;
+        long dataOffset = textSize;
+        long dataVaddr = (textSize + align - 1) / align * align + dataOffset % align;
+
+        ByteBuffer elf = ByteBuffer.allocate(ELF_HEADER_SIZE + 2 * ELF_PROGRAM_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        // e_ident: magic, ELFCLASS64, ELFDATA2LSB, EV_CURRENT, then padding
+        elf.put(new byte[] { 0x7f, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+        // e_type ET_DYN, e_machine, e_version
+        elf.putShort((short) 3).putShort(machine).putInt(1);
+        // e_entry, e_phoff, e_shoff, e_flags
+        elf.putLong(0).putLong(ELF_HEADER_SIZE).putLong(0).putInt(0);
+        // e_ehsize, e_phentsize, e_phnum, e_shentsize, e_shnum, e_shstrndx
+        elf.putShort((short) ELF_HEADER_SIZE).putShort((short) ELF_PROGRAM_HEADER_SIZE).putShort((short) 2).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        // PF_R | PF_X
+        putLoadSegment(elf, 5, 0, 0, textSize, align);
+        // PF_R | PF_W
+        putLoadSegment(elf, 6, dataOffset, dataVaddr, fileSize - dataOffset, align);
+        return elf.array();
+    }
+
+    private static void putLoadSegment(ByteBuffer elf, int flags, long offset, long vaddr, long size, long align) {
+        elf.putInt(ELF_PT_LOAD).putInt(flags).putLong(offset).putLong(vaddr).putLong(vaddr).putLong(size).putLong(size).putLong(align);
+    }
+
+    private static byte[] readManifest() throws IOException {
+        try (ZipInputStream testApk = new ZipInputStream(SyntheticApkCorpus.class.getResourceAsStream(MANIFEST_RESOURCE))) {
+            for (ZipEntry entry = testApk.getNextEntry(); entry != null; entry = testApk.getNextEntry()) {
+                if (MANIFEST_ENTRY.equals(entry.getName())) {
+                    return readAll(testApk);
+                }
+            }
+        }
+        throw new IOException(MANIFEST_RESOURCE + " has no " + MANIFEST_ENTRY);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count = in.read(buffer); count > -1; count = in.read(buffer)) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
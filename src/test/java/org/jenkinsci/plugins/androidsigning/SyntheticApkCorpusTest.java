@@ -0,0 +1,123 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+
+public class SyntheticApkCorpusTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private final SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(1024 * 1024, 50)
+        .storedFraction(0.5)
+        .nativeLibraries(2, "arm64-v8a", 16384)
+        .largeAssets(1, 256 * 1024);
+
+    @Test
+    public void generatesTheRequestedEntries() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+
+        int stored = 0;
+        long totalSize = 0;
+        try (ZipFile zip = new ZipFile(apk)) {
+            List<? extends ZipEntry> entries = Collections.list(zip.entries());
+            assertThat(entries.size(), equalTo(50));
+            assertThat(entries.get(0).getName(), equalTo(SyntheticApkCorpus.MANIFEST_ENTRY));
+            for (ZipEntry entry : entries) {
+                totalSize += entry.getSize();
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    stored++;
+                }
+            }
+            assertThat(zip.getEntry("assets/large_000.bin").getSize(), equalTo(256L * 1024));
+
+            ZipEntry lib = zip.getEntry("lib/arm64-v8a/libsynthetic1.so");
+            byte[] header = new byte[SyntheticApkCorpus.ELF_HEADER_SIZE + 2 * SyntheticApkCorpus.ELF_PROGRAM_HEADER_SIZE];
+            try (InputStream libIn = zip.getInputStream(lib)) {
+                assertThat(libIn.read(header), equalTo(header.length));
+            }
+            ByteBuffer elf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            assertThat(elf.getInt(0), equalTo(0x464c457f));
+            for (int segment = 0; segment < 2; segment++) {
+                int programHeader = SyntheticApkCorpus.ELF_HEADER_SIZE + segment * SyntheticApkCorpus.ELF_PROGRAM_HEADER_SIZE;
+                assertThat(elf.getInt(programHeader), equalTo(SyntheticApkCorpus.ELF_PT_LOAD));
+                assertThat(elf.getLong(programHeader + 48), equalTo(16384L));
+            }
+        }
+        // half of the 46 regular entries, the native libraries, and the large asset
+        assertThat(stored, equalTo(23 + 2 + 1));
+        assertThat(totalSize, equalTo(1024L * 1024));
+    }
+
+    @Test
+    public void generatesTheSameBytesForTheSameSpec() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File again = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File otherSeed = new SyntheticApkCorpus(tempDir.newFolder()).get(new SyntheticApkCorpus.Spec(1024 * 1024, 50).seed(2));
+
+        assertThat(Files.readAllBytes(again.toPath()), equalTo(Files.readAllBytes(apk.toPath())));
+        assertThat(Files.readAllBytes(otherSeed.toPath()), not(equalTo(Files.readAllBytes(apk.toPath()))));
+    }
+
+    @Test
+    public void reusesCachedApks() throws Exception {
+        SyntheticApkCorpus corpus = new SyntheticApkCorpus(tempDir.newFolder());
+        File apk = corpus.get(spec);
+        assertThat(apk.setLastModified(0), is(true));
+
+        File cached = corpus.get(spec);
+
+        assertThat(cached, equalTo(apk));
+        assertThat(cached.lastModified(), equalTo(0L));
+        assertThat(apk.getParentFile().list().length, equalTo(1));
+    }
+
+    static SignApksBuilder.SignApkCallable.Result sign(File apk, File signedApk, long memoryLimitBytes) throws Exception {
+        char[] password = SignApksBuilderTest.class.getSimpleName().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream keyStoreIn = SyntheticApkCorpusTest.class.getResourceAsStream(TestKeyStore.KEY_STORE_RESOURCE)) {
+            keyStore.load(keyStoreIn, password);
+        }
+        PrivateKey key = (PrivateKey) keyStore.getKey(TestKeyStore.KEY_ALIAS, password);
+        Certificate[] certChain = keyStore.getCertificateChain(TestKeyStore.KEY_ALIAS);
+
+        return new SignApksBuilder.SignApkCallable(key, certChain, TestKeyStore.KEY_ALIAS, signedApk.getAbsolutePath(), false, memoryLimitBytes,
+            new SigningTrace(SyntheticApkCorpusTest.class.getSimpleName()).start("test", null).context(), TaskListener.NULL).invoke(apk, null);
+    }
+
+    @Test
+    public void generatesApksThatSign() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File signedApk = new File(tempDir.getRoot(), "signed.apk");
+
+        SignApksBuilder.SignApkCallable.Result signed = sign(apk, signedApk, 0);
+        VerifyApkCallable.VerifyResult result = new VerifyApkCallable(TaskListener.NULL).invoke(signedApk, null);
+
+        assertThat(result.isVerified, is(true));
+        assertThat(result.isVerifiedV2Scheme, is(true));
+        assertThat(signed.memory, nullValue());
+    }
+}
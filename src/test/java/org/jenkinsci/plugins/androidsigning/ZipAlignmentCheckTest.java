@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+
+public class ZipAlignmentCheckTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private final SyntheticApkCorpus.Spec spec = new SyntheticApkCorpus.Spec(512 * 1024, 40)
+        .storedFraction(0.5)
+        .nativeLibraries(2, "arm64-v8a", 4096);
+
+    /**
+     * Write a copy of the given APK aligned as zipalign would, by splicing it with no overlays.
+     */
+    static File align(File apk, File alignedApk) throws Exception {
+        try (FileChannel in = FileChannel.open(apk.toPath(), StandardOpenOption.READ)) {
+            ApkVariantSplicer.splice(in, ApkZipLayout.read(apk), Collections.emptyMap(), alignedApk);
+        }
+        return alignedApk;
+    }
+
+    @Test
+    public void findsTheMisalignedStoredEntries() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+
+        ZipAlignmentCheck.Result result = new ZipAlignmentCheck().invoke(apk, null);
+
+        assertThat(result.isAligned(), is(false));
+        assertThat(result.storedCount, equalTo(18 + 2));
+        assertThat(result.misalignedCount, greaterThan(0));
+        assertThat(result.misaligned.size(), lessThanOrEqualTo(ZipAlignmentCheck.MAX_REPORTED_ENTRIES));
+        assertThat(result.misaligned.get(0), containsString(" at offset "));
+    }
+
+    @Test
+    public void passesAnAlignedApk() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(spec);
+        File alignedApk = align(apk, new File(tempDir.getRoot(), "aligned.apk"));
+
+        ZipAlignmentCheck.Result result = new ZipAlignmentCheck().invoke(alignedApk, null);
+
+        assertThat(result.isAligned(), is(true));
+        assertThat(result.storedCount, equalTo(18 + 2));
+        assertThat(result.misaligned, hasSize(0));
+    }
+
+    @Test
+    public void pageAlignsNativeLibraries() throws Exception {
+        File alignedApk = align(new SyntheticApkCorpus(tempDir.newFolder()).get(spec), new File(tempDir.getRoot(), "aligned.apk"));
+
+        for (ApkZipLayout.Entry entry : ApkZipLayout.read(alignedApk).getEntries()) {
+            if (entry.isStored() && entry.name.endsWith(".so")) {
+                assertThat(ZipAlignmentCheck.alignmentOf(entry.name), equalTo(ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT));
+                assertThat(entry.dataOffset % ApkVariantSplicer.NATIVE_LIBRARY_ALIGNMENT, equalTo(0L));
+            }
+        }
+        assertThat(ZipAlignmentCheck.alignmentOf("assets/data.bin"), equalTo(ApkVariantSplicer.ALIGNMENT));
+    }
+
+    @Test
+    public void passesAnApkWithNoStoredEntries() throws Exception {
+        File apk = new SyntheticApkCorpus(tempDir.newFolder()).get(new SyntheticApkCorpus.Spec(64 * 1024, 10));
+
+        ZipAlignmentCheck.Result result = new ZipAlignmentCheck().invoke(apk, null);
+
+        assertThat(result.isAligned(), is(true));
+        assertThat(result.storedCount, equalTo(0));
+    }
+}
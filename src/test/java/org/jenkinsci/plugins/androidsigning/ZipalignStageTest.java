@@ -0,0 +1,153 @@
+package org.jenkinsci.plugins.androidsigning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+
+public class ZipalignStageTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private List<FilePath> unsignedApks(String... names) throws IOException {
+        List<FilePath> apks = new ArrayList<>();
+        for (String name : names) {
+            apks.add(new FilePath(tempDir.newFile(name)));
+        }
+        return apks;
+    }
+
+    private ZipalignStage.Aligned alignTo(FilePath unsignedApk) throws IOException, InterruptedException {
+        FilePath alignedApk = unsignedApk.sibling("aligned-" + unsignedApk.getName());
+        alignedApk.write("aligned", "UTF-8");
+        return new ZipalignStage.Aligned(unsignedApk, alignedApk, 1);
+    }
+
+    @Test
+    public void handsOverTheAlignedApksInOrder() throws Exception {
+        List<FilePath> apks = unsignedApks("a.apk", "b.apk", "c.apk");
+        try (ZipalignStage stage = new ZipalignStage(apks, 2, this::alignTo, "test zipalign stage", TaskListener.NULL)) {
+            for (FilePath apk : apks) {
+                ZipalignStage.Aligned aligned = stage.take(apk);
+                assertThat(aligned.unsignedApk.getRemote(), equalTo(apk.getRemote()));
+                assertThat(aligned.alignedApk.getName(), equalTo("aligned-" + apk.getName()));
+            }
+        }
+    }
+
+    @Test
+    public void alignsNoFurtherAheadThanItsCapacity() throws Exception {
+        List<FilePath> apks = unsignedApks("a.apk", "b.apk", "c.apk", "d.apk");
+        AtomicInteger alignedCount = new AtomicInteger();
+        CountDownLatch secondAligned = new CountDownLatch(2);
+        ZipalignStage.Aligner aligner = unsignedApk -> {
+            ZipalignStage.Aligned aligned = alignTo(unsignedApk);
+            alignedCount.incrementAndGet();
+            secondAligned.countDown();
+            return aligned;
+        };
+        try (ZipalignStage stage = new ZipalignStage(apks, 1, aligner, "test zipalign stage", TaskListener.NULL)) {
+            assertThat(secondAligned.await(10, TimeUnit.SECONDS), is(true));
+            // one in the queue, and one waiting for room
+            Thread.sleep(200);
+            assertThat(alignedCount.get(), equalTo(2));
+
+            stage.take(apks.get(0));
+            stage.take(apks.get(1));
+            stage.take(apks.get(2));
+            stage.take(apks.get(3));
+            assertThat(alignedCount.get(), equalTo(4));
+            assertThat(stage.getBlockedNanos() > 0, is(true));
+        }
+    }
+
+    @Test
+    public void rethrowsTheFailureOfAnApk() throws Exception {
+        List<FilePath> apks = unsignedApks("a.apk", "b.apk", "c.apk");
+        AtomicInteger alignedCount = new AtomicInteger();
+        ZipalignStage.Aligner aligner = unsignedApk -> {
+            alignedCount.incrementAndGet();
+            if (unsignedApk.getName().equals("b.apk")) {
+                throw new IOException("zipalign failed on b.apk");
+            }
+            return alignTo(unsignedApk);
+        };
+        try (ZipalignStage stage = new ZipalignStage(apks, 2, aligner, "test zipalign stage", TaskListener.NULL)) {
+            stage.take(apks.get(0));
+            try {
+                stage.take(apks.get(1));
+                fail("expected the failure of b.apk");
+            }
+            catch (IOException e) {
+                assertThat(e.getMessage(), equalTo("zipalign failed on b.apk"));
+            }
+        }
+        assertThat(alignedCount.get(), equalTo(2));
+    }
+
+    @Test(timeout = 10000)
+    public void rethrowsAnInterruptionThatDoesNotComeFromClosing() throws Exception {
+        List<FilePath> apks = unsignedApks("a.apk", "b.apk");
+        ZipalignStage.Aligner aligner = unsignedApk -> {
+            if (unsignedApk.getName().equals("b.apk")) {
+                throw new InterruptedException("staging b.apk was interrupted");
+            }
+            return alignTo(unsignedApk);
+        };
+        try (ZipalignStage stage = new ZipalignStage(apks, 2, aligner, "test zipalign stage", TaskListener.NULL)) {
+            stage.take(apks.get(0));
+            try {
+                stage.take(apks.get(1));
+                fail("expected the interruption of b.apk");
+            }
+            catch (IOException e) {
+                assertThat(e.getCause(), instanceOf(InterruptedException.class));
+            }
+        }
+    }
+
+    @Test
+    public void deletesTheAlignedApksNotTakenWhenClosed() throws Exception {
+        List<FilePath> apks = unsignedApks("a.apk", "b.apk");
+        CountDownLatch allAligned = new CountDownLatch(2);
+        ZipalignStage.Aligner aligner = unsignedApk -> {
+            ZipalignStage.Aligned aligned = alignTo(unsignedApk);
+            allAligned.countDown();
+            return aligned;
+        };
+        ZipalignStage stage = new ZipalignStage(apks, 2, aligner, "test zipalign stage", TaskListener.NULL);
+        assertThat(allAligned.await(10, TimeUnit.SECONDS), is(true));
+        stage.close();
+
+        assertThat(new File(tempDir.getRoot(), "aligned-a.apk").exists(), is(false));
+        assertThat(new File(tempDir.getRoot(), "aligned-b.apk").exists(), is(false));
+        assertThat(Arrays.asList(tempDir.getRoot().list()).containsAll(Arrays.asList("a.apk", "b.apk")), is(true));
+    }
+
+    @Test
+    public void alignsNothingForNoApks() throws Exception {
+        try (ZipalignStage stage = new ZipalignStage(Collections.emptyList(), 2, this::alignTo, "test zipalign stage", TaskListener.NULL)) {
+            assertThat(stage.getBusyNanos(), equalTo(0L));
+        }
+    }
+}
@@ -12,14 +12,19 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Util;
 import hudson.util.ArgumentListBuilder;
 
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 
 public class ZipalignToolTest {
@@ -352,4 +357,31 @@ public class ZipalignToolTest {
 
         assertThat(cmd.toString(), startsWith(winAndroidHome.getRemote()));
     }
+
+    @Test
+    public void pageAlignsNativeLibrariesForTheConfiguredPageSize() throws Exception {
+        EnvVars env = new EnvVars();
+        env.put(ZipalignTool.ENV_ZIPALIGN_PATH, altZipalign.getRemote());
+
+        List<String> cmd = new ZipalignTool(env, workspace, System.out, null, null).commandFor("test.apk", "test-aligned.apk").toList();
+        assertThat(cmd.subList(1, cmd.size()), equalTo(Arrays.asList("-f", "-p", "4", "test.apk", "test-aligned.apk")));
+
+        cmd = new ZipalignTool(env, workspace, System.out, null, null, 16).commandFor("test.apk", "test-aligned.apk").toList();
+        assertThat(cmd.subList(1, cmd.size()), equalTo(Arrays.asList("-f", "-P", "16", "4", "test.apk", "test-aligned.apk")));
+    }
+
+    @Test
+    public void parsesTheSupportedPageSizes() throws Exception {
+        assertThat(ZipalignTool.parsePageSizeKb(null), equalTo(4));
+        assertThat(ZipalignTool.parsePageSizeKb("16"), equalTo(16));
+        assertThat(ZipalignTool.parsePageSizeKb(" 64 "), equalTo(64));
+        for (String unsupported : new String[] { "8", "16k", "-4" }) {
+            try {
+                ZipalignTool.parsePageSizeKb(unsupported);
+                fail("expected page size " + unsupported + " to be rejected");
+            }
+            catch (AbortException expected) {
+            }
+        }
+    }
 }